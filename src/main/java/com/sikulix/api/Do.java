@@ -878,6 +878,33 @@ public class Do {
     return elem.capture();
   }
 
+  /**
+   * run some checks against one capture of the default element (see Element.freeze)
+   *
+   * @param actions the finds, exists, ... to run (without a where or with Do.on())
+   */
+  public static void snapshot(Runnable actions) {
+    snapshot(getDefaultElement(), actions);
+  }
+
+  /**
+   * run some checks against one capture of the given element (see Element.freeze)
+   *
+   * @param elem    the element captured once
+   * @param actions the finds, exists, ... to run in this element
+   */
+  public static void snapshot(Element elem, Runnable actions) {
+    if (SX.isNull(elem)) {
+      elem = getDefaultElement();
+    }
+    elem.freeze();
+    try {
+      actions.run();
+    } finally {
+      elem.unfreeze();
+    }
+  }
+
   public static Picture userCapture(Object... args) {
     return getDevice().userCapture(args);
   }
@@ -1056,6 +1083,13 @@ public class Do {
     return matches;
   }
 
+  public static Element findFirst(Object... args) {
+    log.trace("findFirst: start");
+    Element match = Finder.runFindFirst(args);
+    log.trace("findFirst: end");
+    return match;
+  }
+
   public static boolean hasMatch() {
     return getDefaultElement().hasMatch();
   }
@@ -22,12 +22,14 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.util.*;
 import java.util.List;
@@ -877,14 +879,14 @@ public class Element implements Comparable<Element> {
   private java.util.List<Element> lastMatches = new ArrayList<Element>();
   private int matchIndex = -1;
 
-  public void resetMatches() {
+  public synchronized void resetMatches() {
     lastMatch = null;
     lastMatches = new ArrayList<Element>();
     matchIndex = -1;
     lastScores = new double[]{0, 0, 0};
   }
 
-  public boolean hasMatch() {
+  public synchronized boolean hasMatch() {
     return SX.isNotNull(lastMatch);
   }
 
@@ -892,11 +894,11 @@ public class Element implements Comparable<Element> {
     return SX.isNotNull(lastVanish);
   }
 
-  public boolean hasMatches() {
+  public synchronized boolean hasMatches() {
     return lastMatches.size() > 0;
   }
 
-  public Element getLastMatch() {
+  public synchronized Element getLastMatch() {
     if (SX.isNotNull(lastMatch)) {
       return lastMatch;
     }
@@ -907,15 +909,15 @@ public class Element implements Comparable<Element> {
     return lastVanish;
   }
 
-  public java.util.List<Element> getLastMatches() {
+  public synchronized java.util.List<Element> getLastMatches() {
     return lastMatches;
   }
 
-  public void setLastMatch(Element match) {
+  public synchronized void setLastMatch(Element match) {
     lastMatch = match;
   }
 
-  public void setLastVanish(Element match) {
+  public synchronized void setLastVanish(Element match) {
     if (SX.isNotNull(match)) {
       lastMatch = null;
       lastVanish = match;
@@ -924,20 +926,39 @@ public class Element implements Comparable<Element> {
 
   private double[] lastScores = new double[]{0, 0, 0};
 
-  public void setLastScores(double[] scores) {
+  public synchronized void setLastScores(double[] scores) {
+    double[] newScores = new double[]{0, 0, 0};
     for (int i = 0; i < scores.length; i++) {
-      lastScores[i] = scores[i];
+      newScores[i] = scores[i];
     }
+    lastScores = newScores;
   }
 
-  public double[] getLastScores() {
+  public synchronized double[] getLastScores() {
     return lastScores;
   }
 
-  public void setLastMatches(java.util.List<Element> lastMatches) {
+  public synchronized void setLastMatches(java.util.List<Element> lastMatches) {
     this.lastMatches = lastMatches;
   }
 
+  /**
+   * set the outcome of a search in one step, so a concurrent reader never sees a mix of old and new
+   *
+   * @param match   the match (null if none)
+   * @param matches the matches (null if none)
+   * @param scores  best, mean and standard deviation of the scores (null if not evaluated)
+   */
+  public synchronized void setLastMatches(Element match, java.util.List<Element> matches, double[] scores) {
+    lastMatch = match;
+    lastMatches = SX.isNull(matches) ? new ArrayList<Element>() : new ArrayList<Element>(matches);
+    matchIndex = -1;
+    lastScores = new double[]{0, 0, 0};
+    if (SX.isNotNull(scores)) {
+      setLastScores(scores);
+    }
+  }
+
   public int getMatchIndex() {
     return matchIndex;
   }
@@ -1256,6 +1277,32 @@ public class Element implements Comparable<Element> {
   private Mat content = null;
   private Mat mask = null;
 
+  private String contentHash = null;
+  private Mat hashedContent = null;
+  private Mat hashedMask = null;
+
+  /**
+   * @return the content hash given with setContentHash (see LastSeen),
+   * null if not yet known or content or mask were replaced since
+   */
+  public String getContentHash() {
+    if (SX.isNotNull(contentHash) && hashedContent == content && hashedMask == mask) {
+      return contentHash;
+    }
+    return null;
+  }
+
+  /**
+   * remember the hash of the current content and mask (pixels changed in place are not noticed)
+   *
+   * @param hash content hash
+   */
+  public void setContentHash(String hash) {
+    contentHash = hash;
+    hashedContent = content;
+    hashedMask = mask;
+  }
+
   public Element load() {
     capture();
     return this;
@@ -1343,64 +1390,140 @@ public class Element implements Comparable<Element> {
   protected final static String PNG = "png";
   protected final static String dotPNG = "." + PNG;
 
+  /**
+   * the pixels of the BufferedImage as Mat: copied directly from the raster<br>
+   * images of other types or with a special raster layout are drawn into a 3BYTE_BGR/4BYTE_ABGR image first
+   *
+   * @param bImg the image
+   * @return BGR, BGRA (with alpha) or gray
+   */
   protected static Mat makeMat(BufferedImage bImg) {
+    int w = bImg.getWidth();
+    int h = bImg.getHeight();
+    int type = bImg.getType();
+    if (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_BGR
+            || type == BufferedImage.TYPE_INT_ARGB) {
+      if (isPlainRaster(bImg, 1)) {
+        log.trace("makeMat: INT_RGB/BGR/ARGB (%dx%d)", w, h);
+        int[] data = ((DataBufferInt) bImg.getRaster().getDataBuffer()).getData();
+        Mat mBGRA = getNewMat(new Size(w, h), 4, -1);
+        putIntPixels(data, w, h, mBGRA);
+        if (type == BufferedImage.TYPE_INT_ARGB) {
+          return mBGRA;
+        }
+        Mat mBGR = getNewMat(mBGRA.size(), 3, -1);
+        Imgproc.cvtColor(mBGRA, mBGR, type == BufferedImage.TYPE_INT_BGR ? Imgproc.COLOR_RGBA2BGR : Imgproc.COLOR_BGRA2BGR);
+        MatPool.release(mBGRA);
+        return mBGR;
+      }
+    } else if (type == BufferedImage.TYPE_3BYTE_BGR) {
+      if (isPlainRaster(bImg, 3)) {
+        log.trace("makeMat: 3BYTE_BGR (%dx%d)", w, h);
+        Mat mat = getNewMat(new Size(w, h), 3, -1);
+        mat.put(0, 0, ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData());
+        return mat;
+      }
+    } else if (type == BufferedImage.TYPE_4BYTE_ABGR) {
+      if (isPlainRaster(bImg, 4)) {
+        log.trace("makeMat: 4BYTE_ABGR (%dx%d)", w, h);
+        Mat mABGR = getNewMat(new Size(w, h), 4, -1);
+        mABGR.put(0, 0, ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData());
+        Mat mBGRA = getNewMat(mABGR.size(), 4, -1);
+        //A 0 - B 1 - G 2 - R 3 -> B 0 - G 1 - R 2 - A 3
+        Core.mixChannels(Arrays.asList(mABGR), Arrays.asList(mBGRA), new MatOfInt(1, 0, 2, 1, 3, 2, 0, 3));
+        MatPool.release(mABGR);
+        return mBGRA;
+      }
+    } else if (type == BufferedImage.TYPE_BYTE_GRAY) {
+      if (isPlainRaster(bImg, 1)) {
+        log.trace("makeMat: BYTE_GRAY (%dx%d)", w, h);
+        Mat mat = getNewMat(new Size(w, h), 1, -1);
+        mat.put(0, 0, ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData());
+        return mat;
+      }
+    }
+    if (w < 1 || h < 1) {
+      log.error("makeMat: Type not supported: %d (%dx%d)", type, w, h);
+      return getNewMat();
+    }
+    log.trace("makeMat: type %d (%dx%d) converted", type, w, h);
+    BufferedImage bImgConverted = new BufferedImage(w, h,
+            bImg.getColorModel().hasAlpha() ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D g = bImgConverted.createGraphics();
+    g.drawImage(bImg, 0, 0, null);
+    g.dispose();
+    return makeMat(bImgConverted);
+  }
 
-    Mat aMat = getNewMat();
-    if (bImg.getType() == BufferedImage.TYPE_INT_RGB) {
-      log.trace("makeMat: INT_RGB (%dx%d)", bImg.getWidth(), bImg.getHeight());
-      int[] data = ((DataBufferInt) bImg.getRaster().getDataBuffer()).getData();
-      ByteBuffer byteBuffer = ByteBuffer.allocate(data.length * 4);
-      IntBuffer intBuffer = byteBuffer.asIntBuffer();
-      intBuffer.put(data);
-      aMat = new Mat(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC4);
-      aMat.put(0, 0, byteBuffer.array());
-      Mat oMatBGR = new Mat(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC3);
-      Mat oMatA = new Mat(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC1);
-      java.util.List<Mat> mixIn = new ArrayList<Mat>(Arrays.asList(new Mat[]{aMat}));
-      java.util.List<Mat> mixOut = new ArrayList<Mat>(Arrays.asList(new Mat[]{oMatA, oMatBGR}));
-      //A 0 - R 1 - G 2 - B 3 -> A 0 - B 1 - G 2 - R 3
-      Core.mixChannels(mixIn, mixOut, new MatOfInt(0, 0, 1, 3, 2, 2, 3, 1));
-      return oMatBGR;
-    } else if (bImg.getType() == BufferedImage.TYPE_3BYTE_BGR) {
-      log.trace("makeMat: 3BYTE_BGR (%dx%d)", bImg.getWidth(), bImg.getHeight());
-      byte[] data = ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData();
-      aMat = new Mat(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC3);
-      aMat.put(0, 0, data);
-      return aMat;
-    } else if (bImg.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
-      log.trace("makeMat: TYPE_4BYTE_ABGR (%dx%d)", bImg.getWidth(), bImg.getHeight());
-      byte[] data = ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData();
-      aMat = new Mat(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC4);
-      aMat.put(0, 0, data);
-      Mat mBGRA = getNewMat(aMat.size(), 4, -1);
-      List<Mat> mats = new ArrayList<Mat>();
-      Core.split(aMat, mats);
-      mats.add(mats.remove(0));
-      Core.merge(mats, mBGRA);
-      return mBGRA;
-    } else if (bImg.getType() == BufferedImage.TYPE_BYTE_GRAY) {
-      log.trace("makeMat: BYTE_GRAY (%dx%d)", bImg.getWidth(), bImg.getHeight());
-      byte[] data = ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData();
-      aMat = new Mat(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC1);
-      aMat.put(0, 0, data);
-      return aMat;
-    } else {
-      log.error("makeMat: Type not supported: %d (%dx%d)",
-              bImg.getType(), bImg.getWidth(), bImg.getHeight());
+  // bytes per thread for the int pixels on their way into a Mat (some rows of the image)
+  private static final int INT_PIXEL_BYTES = 1 << 20;
+  private static final ThreadLocal<byte[]> intPixelBytes = new ThreadLocal<>();
+
+  /**
+   * the int pixels as bytes into the 8UC4 Mat: a Mat only takes ints into a 32S Mat,
+   * so they go through a small byte view kept per thread, some rows at a time
+   * (little endian the int 0xAARRGGBB gives the bytes B G R A - INT_BGR: R G B -)
+   */
+  private static void putIntPixels(int[] data, int w, int h, Mat mBGRA) {
+    int rows = Math.max(1, INT_PIXEL_BYTES / (4 * w));
+    byte[] bytes = intPixelBytes.get();
+    if (SX.isNull(bytes) || bytes.length != rows * 4 * w) {
+      bytes = new byte[rows * 4 * w];
+      intPixelBytes.set(bytes);
+    }
+    IntBuffer view = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    for (int row = 0; row < h; row += rows) {
+      view.clear();
+      view.put(data, row * w, Math.min(rows, h - row) * w);
+      // the last rows: the Mat takes only as many bytes as it has left
+      mBGRA.put(row, 0, bytes);
     }
-    return aMat;
+  }
+
+  private static boolean isPlainRaster(BufferedImage bImg, int elementsPerPixel) {
+    WritableRaster raster = bImg.getRaster();
+    return raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+            && raster.getDataBuffer().getNumBanks() == 1 && raster.getDataBuffer().getOffset() == 0
+            && raster.getDataBuffer().getSize() == bImg.getWidth() * bImg.getHeight() * elementsPerPixel;
   }
 
   public static BufferedImage getBufferedImage(Mat mat) {
     return getBufferedImage(mat, dotPNG);
   }
 
+  /**
+   * the Mat as BufferedImage, as if written to and read back from an image file of the given type<br>
+   * for PNG (lossless) gray, BGR and BGRA Mats are copied directly into the raster
+   *
+   * @param mat  the pixels
+   * @param type file ending (.png, .jpg, ...)
+   * @return the image (null if not possible)
+   */
   public static BufferedImage getBufferedImage(Mat mat, String type) {
     BufferedImage bImg = null;
-    MatOfByte bytemat = new MatOfByte();
     if (SX.isNull(mat)) {
       mat = getNewMat();
     }
+    if (dotPNG.equals(type) && !mat.empty()) {
+      if (mat.type() == CvType.CV_8UC1) {
+        bImg = new BufferedImage(mat.cols(), mat.rows(), BufferedImage.TYPE_BYTE_GRAY);
+      } else if (mat.type() == CvType.CV_8UC3) {
+        bImg = new BufferedImage(mat.cols(), mat.rows(), BufferedImage.TYPE_3BYTE_BGR);
+      } else if (mat.type() == CvType.CV_8UC4) {
+        bImg = new BufferedImage(mat.cols(), mat.rows(), BufferedImage.TYPE_4BYTE_ABGR);
+        Mat mABGR = getNewMat(mat.size(), 4, -1);
+        //B 0 - G 1 - R 2 - A 3 -> A 0 - B 1 - G 2 - R 3
+        Core.mixChannels(Arrays.asList(mat), Arrays.asList(mABGR), new MatOfInt(3, 0, 0, 1, 1, 2, 2, 3));
+        mABGR.get(0, 0, ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData());
+        MatPool.release(mABGR);
+        return bImg;
+      }
+      if (SX.isNotNull(bImg)) {
+        mat.get(0, 0, ((DataBufferByte) bImg.getRaster().getDataBuffer()).getData());
+        return bImg;
+      }
+    }
+    MatOfByte bytemat = new MatOfByte();
     Imgcodecs.imencode(type, mat, bytemat);
     byte[] bytes = bytemat.toArray();
     InputStream in = new ByteArrayInputStream(bytes);
@@ -1423,8 +1546,53 @@ public class Element implements Comparable<Element> {
   }
 
   public Picture capture() {
+    if (isFrozen()) {
+      return getAsPicture();
+    }
     return getDevice().capture(this);
   }
+
+  private int frozen = 0;
+  private Finder frozenFinder = null;
+
+  /**
+   * capture once and use this frame for all following finds, waits, ... in this element until unfreeze<br>
+   * the finds share one Finder, so the gray and downsized versions of the frame are only made once<br>
+   * calls may be nested: only the first freeze captures, the last unfreeze ends the snapshot
+   *
+   * @return this element
+   */
+  public synchronized Element freeze() {
+    if (frozen == 0) {
+      if (isOnScreen()) {
+        capture();
+      }
+      frozenFinder = hasContent() ? new Finder(this) : null;
+    }
+    frozen++;
+    return this;
+  }
+
+  public synchronized Element unfreeze() {
+    if (frozen > 0 && --frozen == 0) {
+      if (SX.isNotNull(frozenFinder)) {
+        frozenFinder.release();
+      }
+      frozenFinder = null;
+    }
+    return this;
+  }
+
+  public synchronized boolean isFrozen() {
+    return frozen > 0;
+  }
+
+  /**
+   * @return the Finder shared by the finds in a frozen element (null if not frozen)
+   */
+  public synchronized Finder getFrozenFinder() {
+    return frozenFinder;
+  }
   //</editor-fold>
 
   //<editor-fold desc="***** show, highlight">
@@ -16,6 +16,7 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.*;
 
@@ -91,11 +92,19 @@ public class Picture extends Element {
   }
 
   public Picture(Mat mat) {
+    this(mat, true);
+  }
+
+  /**
+   * @param mat  the content
+   * @param copy false: the Mat is taken as is (e.g. a view into a frame, that is not changed anymore)
+   */
+  public Picture(Mat mat, boolean copy) {
     if (SX.isNull(mat)) {
       setContent();
     } else {
       long start = new Date().getTime();
-      setContent(mat.clone());
+      setContent(copy ? mat.clone() : mat);
       timeToLoad = new Date().getTime() - start;
     }
     init(0, 0, getContent().width(), getContent().height());
@@ -172,6 +181,12 @@ public class Picture extends Element {
       setName(getNameFromURL(urlImg));
       if (urlImg != null) {
         long start = new Date().getTime();
+        String cacheKey = getCacheKey(urlImg);
+        if (fromCache(cacheKey)) {
+          timeToLoad = new Date().getTime() - start;
+          log.trace("getAll: from cache: (%dx%s) %s", getContent().width(), getContent().height(), urlImg);
+          return;
+        }
         String urlProto = urlImg.getProtocol();
         if (urlProto.equals("file")) {
           File imgFile = new File(urlImg.getPath());
@@ -186,6 +201,7 @@ public class Picture extends Element {
         timeToLoad = new Date().getTime() - start;
         if (isValid()) {
           setAttributes();
+          toCache(cacheKey);
           log.debug("getAll: loaded: (%dx%s) %s", getContent().width(), getContent().height(), urlImg);
         } else {
           log.error("getAll: not loaded: %s", urlImg);
@@ -284,6 +300,224 @@ public class Picture extends Element {
 
   //</editor-fold>
 
+  //<editor-fold desc="*** image cache">
+  /**
+   * process wide cache of decoded images loaded from a URL (file, jar, http)<br>
+   * keyed by the resolved URL plus a version stamp (file: last modified and size, http: ETag or Last-Modified),
+   * so a changed image file is decoded again<br>
+   * the http stamp is asked for (HEAD request) at most every Settings.ImageCacheRevalidate seconds per URL<br>
+   * the cache is bounded by Settings.ImageCacheSize (MB, 0 switches caching off),
+   * the least recently used entries are evicted first<br>
+   * a Picture always gets its own copy of the cached content and mask,
+   * so the Mats of dropped entries are released right away
+   */
+  private static class CacheEntry {
+    Mat content;
+    Mat mask;
+    double resizeFactor;
+    boolean plainColor;
+    boolean blackColor;
+    boolean whiteColor;
+    int[] meanColor;
+    long bytes;
+  }
+
+  private static final Map<String, CacheEntry> imageCache = new LinkedHashMap<>(64, 0.75f, true);
+  private static long imageCacheBytes = 0;
+  private static long imageCacheHits = 0;
+  private static long imageCacheMisses = 0;
+  private static long imageCacheEvictions = 0;
+
+  private static class HttpStamp {
+    String stamp;
+    long time;
+  }
+
+  private static final Map<String, HttpStamp> httpStamps = new LinkedHashMap<String, HttpStamp>(64, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, HttpStamp> eldest) {
+      return size() > 1000;
+    }
+  };
+
+  private static long getCacheMaxBytes() {
+    return (long) (SX.getOptionNumber("Settings.ImageCacheSize", 64) * 1024 * 1024);
+  }
+
+  private static String getCacheKey(URL url) {
+    if (getCacheMaxBytes() <= 0) {
+      return null;
+    }
+    String stamp = "";
+    String urlProto = url.getProtocol();
+    if ("file".equals(urlProto)) {
+      File imgFile = new File(url.getPath());
+      if (!imgFile.exists()) {
+        return null;
+      }
+      stamp = String.format("%d/%d", imgFile.lastModified(), imgFile.length());
+    } else if (urlProto.startsWith("http")) {
+      stamp = getHttpStamp(url);
+      if (SX.isNull(stamp)) {
+        return null;
+      }
+    }
+    return url.toString() + "#" + stamp;
+  }
+
+  // the known stamp, if asked for not longer than Settings.ImageCacheRevalidate seconds ago
+  private static String getHttpStamp(URL url) {
+    long now = new Date().getTime();
+    long revalidate = (long) (1000 * SX.getOptionNumber("Settings.ImageCacheRevalidate", 60));
+    synchronized (httpStamps) {
+      HttpStamp known = httpStamps.get(url.toString());
+      if (SX.isNotNull(known) && now - known.time < revalidate) {
+        return known.stamp;
+      }
+    }
+    String stamp;
+    HttpURLConnection conn = null;
+    try {
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestMethod("HEAD");
+      stamp = conn.getHeaderField("ETag");
+      if (SX.isNull(stamp)) {
+        long lastModified = conn.getLastModified();
+        if (lastModified == 0) {
+          return null;
+        }
+        stamp = "" + lastModified;
+      }
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (SX.isNotNull(conn)) {
+        conn.disconnect();
+      }
+    }
+    HttpStamp known = new HttpStamp();
+    known.stamp = stamp;
+    known.time = now;
+    synchronized (httpStamps) {
+      httpStamps.put(url.toString(), known);
+    }
+    return stamp;
+  }
+
+  private boolean fromCache(String key) {
+    if (SX.isNull(key)) {
+      return false;
+    }
+    CacheEntry entry;
+    Mat content;
+    Mat mask = null;
+    // copied while locked: an evicted entry is released
+    synchronized (imageCache) {
+      entry = imageCache.get(key);
+      if (SX.isNull(entry)) {
+        imageCacheMisses++;
+        return false;
+      }
+      imageCacheHits++;
+      content = entry.content.clone();
+      if (SX.isNotNull(entry.mask)) {
+        mask = entry.mask.clone();
+      }
+    }
+    setContent(content);
+    if (SX.isNotNull(mask)) {
+      setMask(mask);
+    }
+    resizeFactor = entry.resizeFactor;
+    plainColor = entry.plainColor;
+    blackColor = entry.blackColor;
+    whiteColor = entry.whiteColor;
+    meanColor = entry.meanColor;
+    return true;
+  }
+
+  private void toCache(String key) {
+    if (SX.isNull(key)) {
+      return;
+    }
+    CacheEntry entry = new CacheEntry();
+    entry.content = getContentBGR().clone();
+    entry.bytes = entry.content.total() * entry.content.elemSize();
+    if (hasMask()) {
+      entry.mask = getMask().clone();
+      entry.bytes += entry.mask.total() * entry.mask.elemSize();
+    }
+    entry.resizeFactor = resizeFactor;
+    entry.plainColor = plainColor;
+    entry.blackColor = blackColor;
+    entry.whiteColor = whiteColor;
+    entry.meanColor = meanColor;
+    long maxBytes = getCacheMaxBytes();
+    if (entry.bytes > maxBytes) {
+      return;
+    }
+    String url = key.substring(0, key.lastIndexOf("#") + 1);
+    synchronized (imageCache) {
+      Iterator<Map.Entry<String, CacheEntry>> entries = imageCache.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<String, CacheEntry> next = entries.next();
+        if (next.getKey().startsWith(url)) {
+          releaseEntry(next.getValue());
+          entries.remove();
+        }
+      }
+      imageCache.put(key, entry);
+      imageCacheBytes += entry.bytes;
+      entries = imageCache.entrySet().iterator();
+      while (imageCacheBytes > maxBytes && entries.hasNext()) {
+        releaseEntry(entries.next().getValue());
+        entries.remove();
+        imageCacheEvictions++;
+      }
+    }
+  }
+
+  // only while imageCache is locked: the Mats are not used by any Picture
+  private static void releaseEntry(CacheEntry entry) {
+    imageCacheBytes -= entry.bytes;
+    entry.content.release();
+    if (SX.isNotNull(entry.mask)) {
+      entry.mask.release();
+    }
+  }
+
+  /**
+   * @return cache statistics: entries, bytes, hits, misses, evictions
+   */
+  public static long[] getCacheStats() {
+    synchronized (imageCache) {
+      return new long[]{imageCache.size(), imageCacheBytes, imageCacheHits, imageCacheMisses, imageCacheEvictions};
+    }
+  }
+
+  public static String getCacheStatsString() {
+    long[] stats = getCacheStats();
+    return String.format("ImageCache: %d entries (%d KB) hits: %d misses: %d evictions: %d",
+            stats[0], stats[1] / 1024, stats[2], stats[3], stats[4]);
+  }
+
+  public static void clearCache() {
+    synchronized (imageCache) {
+      for (CacheEntry entry : imageCache.values()) {
+        releaseEntry(entry);
+      }
+      imageCache.clear();
+      imageCacheBytes = 0;
+      imageCacheHits = 0;
+      imageCacheMisses = 0;
+      imageCacheEvictions = 0;
+    }
+    synchronized (httpStamps) {
+      httpStamps.clear();
+    }
+  }
+  //</editor-fold>
+
   public static boolean handleImageMissing(String type, Finder.PossibleMatch possibleMatch) {
     if (possibleMatch.isImageMissingWhat()) {
       log.trace("%s: handling image missing: what: %s", type, possibleMatch.getWhat());
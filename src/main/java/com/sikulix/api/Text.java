@@ -6,6 +6,11 @@ package com.sikulix.api;
 
 import com.sikulix.core.SX;
 import com.sikulix.core.SXLog;
+import com.sikulix.core.TextFinder;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * implements the API for text search and OCR features<br>
@@ -20,6 +25,7 @@ public class Text extends Element {
 
   private String searchText = null;
   private String ocrText = null;
+  private TextFinder textFinder = null;
 
   /**
    * create a Text object with specific settings to be used later with read
@@ -43,6 +49,12 @@ public class Text extends Element {
 
   private void init(Object... settings) {
     //TODO what settings and how to process/store/access
+    for (Object setting : settings) {
+      // a TextFinder with other settings (datapath, language, ...)
+      if (setting instanceof TextFinder) {
+        textFinder = (TextFinder) setting;
+      }
+    }
   }
 
   /**
@@ -52,10 +64,87 @@ public class Text extends Element {
    * @return
    */
   public Text read(Element where) {
-    //TODO read the text according to settings and fill ocrText
+    ocrText = getTextFinder().read(getPixels(where));
     return this;
   }
 
+  /**
+   * @return the text of the last read
+   */
+  @Override
+  public String getText() {
+    return ocrText;
+  }
+
+  private TextFinder getTextFinder() {
+    if (SX.isNull(textFinder)) {
+      textFinder = new TextFinder();
+    }
+    return textFinder;
+  }
+
+  // a screen element is captured, otherwise its content is used as is
+  private static Mat getPixels(Element where) {
+    if (where.isOnScreen()) {
+      return where.capture().getContent();
+    }
+    return where.getContent();
+  }
+
+  private List<Element> getMatches(Element where) {
+    if (SX.isNull(searchText) || searchText.trim().isEmpty()) {
+      return new ArrayList<>();
+    }
+    List<Element> words = getTextFinder().getWords(getPixels(where), null);
+    // the word boxes are relative to the pixels of where
+    for (Element word : words) {
+      word.translate(where.x, where.y);
+    }
+    return getMatches(searchText, words);
+  }
+
+  /**
+   * the words of the text as consecutive words on one line (case ignored)
+   *
+   * @param searchText one or more words
+   * @param words      as returned by TextFinder.getWords (in reading order, the text as name)
+   * @return the matches (union of the words, score: the lowest confidence)
+   */
+  public static List<Element> getMatches(String searchText, List<Element> words) {
+    List<Element> matches = new ArrayList<>();
+    if (SX.isNull(searchText) || searchText.trim().isEmpty()) {
+      return matches;
+    }
+    String[] searchWords = searchText.trim().split("\\s+");
+    for (int n = 0; n + searchWords.length <= words.size(); n++) {
+      Element first = words.get(n);
+      java.awt.Rectangle rect = first.getRectangle();
+      double score = first.getScore();
+      int found = 0;
+      while (found < searchWords.length) {
+        Element word = words.get(n + found);
+        if (!searchWords[found].equalsIgnoreCase(word.getName()) || !isOnLine(first, word)) {
+          break;
+        }
+        rect = rect.union(word.getRectangle());
+        score = Math.min(score, word.getScore());
+        found++;
+      }
+      if (found == searchWords.length) {
+        Element match = new Element(rect);
+        match.setScore(score);
+        match.setName(searchText);
+        matches.add(match);
+      }
+    }
+    return matches;
+  }
+
+  private static boolean isOnLine(Element first, Element word) {
+    int center = word.y + word.h / 2;
+    return center > first.y && center < first.y + first.h;
+  }
+
   /**
    * convenience: OCR in the given Element according to the standard settings
    *
@@ -75,7 +164,13 @@ public class Text extends Element {
    * @return
    */
   public Text find(Element where) {
-    //TODO search the text and fill lastMatch
+    Element best = null;
+    for (Element match : getMatches(where)) {
+      if (SX.isNull(best) || match.getScore() > best.getScore()) {
+        best = match;
+      }
+    }
+    setLastMatch(best);
     return this;
   }
 
@@ -100,7 +195,7 @@ public class Text extends Element {
    * @return
    */
   public Text findAll(Element where) {
-    //TODO search the text and fill lastMatches
+    setLastMatches(null, getMatches(where), null);
     return this;
   }
 
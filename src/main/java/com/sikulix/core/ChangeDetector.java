@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2017 - sikulix.com - MIT license
+ */
+
+package com.sikulix.core;
+
+import com.sikulix.api.Element;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * finds the changed areas between two frames of the same size (observe onChange, incremental search, device settle)<br>
+ * - detect(base, changed) / hasChanged(base, changed): compares the two given frames<br>
+ * - detect(frame): compares with the frame of the previous call on a grid of tiles (Settings.ChangeTileSize),
+ * by checksums of the gray pixels<br>
+ * difference, threshold, morphology and contours are only evaluated in the area of the changes<br>
+ * the frames might be downsized before (Settings.ChangeDownsample), gray frames are used as is<br>
+ * all buffers are kept and reused from call to call
+ */
+public class ChangeDetector {
+
+  private static final SXLog log = SX.getSXLog("SX.ChangeDetector");
+
+  private static final int PIXEL_DIFF_THRESHOLD = 3;
+  private static final int IMAGE_DIFF_THRESHOLD = 5;
+  private static final int MARGIN = 4;
+  private static final int MAX_EXACT_CHANGES = 50;
+
+  private int tileSize = (int) Math.max(8, SX.getOptionNumber("Settings.ChangeTileSize", 32));
+  private int factor = (int) Math.max(1, SX.getOptionNumber("Settings.ChangeDownsample", 1));
+  private int minimumSize = 0;
+
+  private Mat mPrevious = Element.getNewMat();
+  private Mat mCurrent = Element.getNewMat();
+  private Mat mBaseGray = Element.getNewMat();
+  private Mat mBaseWork = Element.getNewMat();
+  private Mat mChangedGray = Element.getNewMat();
+  private Mat mChangedWork = Element.getNewMat();
+  private Mat mDiff = Element.getNewMat();
+  private Mat mRows = Element.getNewMat();
+  private Mat mCols = Element.getNewMat();
+  private Mat mHierarchy = Element.getNewMat();
+  private Mat mDilate = Element.getNewMat();
+  private Mat mExact = Element.getNewMat();
+  private Mat mExactMax = Element.getNewMat();
+  private Mat mClose = null;
+  private byte[] pixels = new byte[0];
+  private byte[] reduced = new byte[0];
+  private long[] previousSums = new long[0];
+  private long[] currentSums = new long[0];
+
+  public ChangeDetector() {
+  }
+
+  /**
+   * @param minimumSize changes smaller in both directions are not reported
+   */
+  public ChangeDetector(int minimumSize) {
+    this.minimumSize = minimumSize;
+  }
+
+  public void setMinimumSize(int minimumSize) {
+    this.minimumSize = minimumSize;
+  }
+
+  public int getMinimumSize() {
+    return minimumSize;
+  }
+
+  /**
+   * @param factor the frames are downsized by this factor before comparing (1 = original size)
+   */
+  public synchronized void setDownsample(int factor) {
+    this.factor = Math.max(1, factor);
+    reset();
+  }
+
+  public int getDownsample() {
+    return factor;
+  }
+
+  //<editor-fold desc="compare two frames">
+
+  /**
+   * @param base    the frame before (BGR, BGRA or gray)
+   * @param changed the frame after (same size)
+   * @return true, if more than a few pixels differ (no contours evaluated)
+   */
+  public synchronized boolean hasChanged(Mat base, Mat changed) {
+    return getDiff(base, changed);
+  }
+
+  /**
+   * @param base    the frame before (BGR, BGRA or gray)
+   * @param changed the frame after (same size)
+   * @return the bounding rectangles of the changed areas, at least minimumSize wide or high (might be empty)
+   */
+  public synchronized List<Element> detect(Mat base, Mat changed) {
+    if (!getDiff(base, changed)) {
+      return new ArrayList<>();
+    }
+    Core.reduce(mDiff, mRows, 0, Core.REDUCE_MAX);
+    Core.reduce(mDiff, mCols, 1, Core.REDUCE_MAX);
+    int[] xRange = getRange(mRows, mDiff.cols());
+    int[] yRange = getRange(mCols, mDiff.rows());
+    return getContours(getArea(xRange[0], yRange[0], xRange[1], yRange[1]));
+  }
+
+  /**
+   * every changed pixel counts: all channels compared in the original size, no thresholds, no minimum size
+   * (for reusing results computed on the base frame, e.g. incremental find)
+   *
+   * @param base    the frame before
+   * @param changed the frame after (same size and type)
+   * @return rectangles containing all changed pixels (might be empty)
+   */
+  public synchronized List<Element> detectExact(Mat base, Mat changed) {
+    List<Element> changes = new ArrayList<>();
+    if (base.empty() || !base.size().equals(changed.size()) || base.type() != changed.type()) {
+      return changes;
+    }
+    Core.absdiff(base, changed, mExact);
+    Mat mChanged = mExact;
+    if (mExact.channels() > 1) {
+      // the largest difference of the channels per pixel
+      Core.reduce(mExact.reshape(1, (int) mExact.total()), mExactMax, 1, Core.REDUCE_MAX);
+      mChanged = mExactMax.reshape(1, base.rows());
+    }
+    if (Core.countNonZero(mChanged) == 0) {
+      return changes;
+    }
+    Imgproc.threshold(mChanged, mChanged, 0, 255, Imgproc.THRESH_BINARY);
+    List<MatOfPoint> contours = new ArrayList<>();
+    Imgproc.findContours(mChanged, contours, mHierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
+    if (contours.size() > MAX_EXACT_CHANGES) {
+      Rect all = Imgproc.boundingRect(contours.get(0));
+      for (MatOfPoint contour : contours) {
+        Rect rect = Imgproc.boundingRect(contour);
+        int x2 = Math.max(all.x + all.width, rect.x + rect.width);
+        int y2 = Math.max(all.y + all.height, rect.y + rect.height);
+        all.x = Math.min(all.x, rect.x);
+        all.y = Math.min(all.y, rect.y);
+        all.width = x2 - all.x;
+        all.height = y2 - all.y;
+      }
+      changes.add(new Element(all.x, all.y, all.width, all.height));
+    } else {
+      for (MatOfPoint contour : contours) {
+        Rect rect = Imgproc.boundingRect(contour);
+        changes.add(new Element(rect.x, rect.y, rect.width, rect.height));
+      }
+    }
+    for (MatOfPoint contour : contours) {
+      contour.release();
+    }
+    return changes;
+  }
+
+  private boolean getDiff(Mat base, Mat changed) {
+    if (base.empty() || !base.size().equals(changed.size())) {
+      return false;
+    }
+    Mat mBase = prepare(base, mBaseGray, mBaseWork);
+    Mat mChanged = prepare(changed, mChangedGray, mChangedWork);
+    Core.absdiff(mBase, mChanged, mDiff);
+    Imgproc.threshold(mDiff, mDiff, PIXEL_DIFF_THRESHOLD, 255, Imgproc.THRESH_BINARY);
+    return Core.countNonZero(mDiff) > IMAGE_DIFF_THRESHOLD;
+  }
+
+  // first and last position (exclusive) with a non zero value in a reduced row or column
+  private int[] getRange(Mat mReduced, int length) {
+    if (reduced.length < length) {
+      reduced = new byte[length];
+    }
+    mReduced.get(0, 0, reduced);
+    int first = 0;
+    while (first < length && reduced[first] == 0) {
+      first++;
+    }
+    int last = length;
+    while (last > first && reduced[last - 1] == 0) {
+      last--;
+    }
+    return new int[]{first, last};
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="compare with previous frame">
+
+  /**
+   * forget the previous frame: the next frame given to detect is the new reference
+   */
+  public synchronized void reset() {
+    mPrevious.release();
+  }
+
+  /**
+   * the changes against the frame given with the previous call<br>
+   * the first frame (or a frame with another size) only becomes the reference
+   *
+   * @param frame the new frame (BGR, BGRA or gray)
+   * @return the bounding rectangles of the changed areas, at least minimumSize wide or high (might be empty)
+   */
+  public synchronized List<Element> detect(Mat frame) {
+    List<Element> changes = new ArrayList<>();
+    Mat mFrame = prepare(frame, mChangedGray, mChangedWork);
+    if (mFrame == frame) {
+      frame.copyTo(mCurrent);
+    } else {
+      Mat mSwap = mCurrent;
+      mCurrent = mFrame;
+      if (mFrame == mChangedGray) {
+        mChangedGray = mSwap;
+      } else {
+        mChangedWork = mSwap;
+      }
+    }
+    int cols = mCurrent.cols();
+    int rows = mCurrent.rows();
+    int tilesX = (cols + tileSize - 1) / tileSize;
+    int tilesY = (rows + tileSize - 1) / tileSize;
+    if (currentSums.length != tilesX * tilesY) {
+      currentSums = new long[tilesX * tilesY];
+    }
+    getSums(mCurrent, tilesX, currentSums);
+    if (!mPrevious.empty() && mPrevious.size().equals(mCurrent.size()) && previousSums.length == currentSums.length) {
+      int x1 = cols;
+      int y1 = rows;
+      int x2 = 0;
+      int y2 = 0;
+      List<Rect> tiles = new ArrayList<>();
+      for (int n = 0; n < currentSums.length; n++) {
+        if (currentSums[n] != previousSums[n]) {
+          int x = (n % tilesX) * tileSize;
+          int y = (n / tilesX) * tileSize;
+          Rect tile = new Rect(x, y, Math.min(tileSize, cols - x), Math.min(tileSize, rows - y));
+          tiles.add(tile);
+          x1 = Math.min(x1, tile.x);
+          y1 = Math.min(y1, tile.y);
+          x2 = Math.max(x2, tile.x + tile.width);
+          y2 = Math.max(y2, tile.y + tile.height);
+        }
+      }
+      if (!tiles.isEmpty()) {
+        mDiff.create(mCurrent.size(), CvType.CV_8UC1);
+        // the morphology reads pixels beyond the area: a margin around is cleared too
+        getArea(x1 - MARGIN, y1 - MARGIN, x2 + MARGIN, y2 + MARGIN).setTo(new Scalar(0));
+        Mat mArea = getArea(x1, y1, x2, y2);
+        for (Rect tile : tiles) {
+          Core.absdiff(mPrevious.submat(tile), mCurrent.submat(tile), mDiff.submat(tile));
+        }
+        Imgproc.threshold(mArea, mArea, PIXEL_DIFF_THRESHOLD, 255, Imgproc.THRESH_BINARY);
+        if (Core.countNonZero(mArea) > IMAGE_DIFF_THRESHOLD) {
+          changes = getContours(mArea);
+        }
+        log.trace("detect: %d changed tiles: %d changes", tiles.size(), changes.size());
+      }
+    }
+    Mat mSwap = mPrevious;
+    mPrevious = mCurrent;
+    mCurrent = mSwap;
+    long[] sumsSwap = previousSums;
+    previousSums = currentSums;
+    currentSums = sumsSwap;
+    return changes;
+  }
+
+  // a checksum per tile: h = 31 * h + pixel, row by row
+  private void getSums(Mat mGray, int tilesX, long[] sums) {
+    int cols = mGray.cols();
+    int rows = mGray.rows();
+    if (pixels.length != cols * rows) {
+      pixels = new byte[cols * rows];
+    }
+    mGray.get(0, 0, pixels);
+    for (int n = 0; n < sums.length; n++) {
+      sums[n] = 0;
+    }
+    for (int y = 0; y < rows; y++) {
+      int tileRow = (y / tileSize) * tilesX;
+      int pos = y * cols;
+      for (int tileX = 0; tileX < tilesX; tileX++) {
+        int end = pos + Math.min(tileSize, cols - tileX * tileSize);
+        long sum = sums[tileRow + tileX];
+        while (pos < end) {
+          sum = 31 * sum + pixels[pos++];
+        }
+        sums[tileRow + tileX] = sum;
+      }
+    }
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="helpers">
+
+  // gray as is, otherwise converted into gray - then downsized into work if requested
+  private Mat prepare(Mat frame, Mat gray, Mat work) {
+    Mat mGray = frame;
+    if (frame.channels() > 1) {
+      Imgproc.cvtColor(frame, gray, frame.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+      mGray = gray;
+    }
+    if (factor > 1) {
+      Imgproc.resize(mGray, work, new Size(mGray.cols() / factor, mGray.rows() / factor), 0, 0, Imgproc.INTER_AREA);
+      return work;
+    }
+    return mGray;
+  }
+
+  // the area of mDiff containing the changes plus a margin for the morphology
+  private Mat getArea(int x1, int y1, int x2, int y2) {
+    int x = Math.max(0, x1 - MARGIN);
+    int y = Math.max(0, y1 - MARGIN);
+    return mDiff.submat(new Rect(x, y, Math.min(mDiff.cols(), x2 + MARGIN) - x,
+            Math.min(mDiff.rows(), y2 + MARGIN) - y));
+  }
+
+  // the pipeline of the former Finder.detectChanges on the thresholded difference (changed in place)
+  private List<Element> getContours(Mat mArea) {
+    List<Element> changes = new ArrayList<>();
+    if (SX.isNull(mClose)) {
+      mClose = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
+    }
+    Size size = new Size();
+    Point offset = new Point();
+    mArea.locateROI(size, offset);
+    Imgproc.dilate(mArea, mArea, mDilate);
+    Imgproc.morphologyEx(mArea, mArea, Imgproc.MORPH_CLOSE, mClose);
+    List<MatOfPoint> contours = new ArrayList<>();
+    Imgproc.findContours(mArea, contours, mHierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+    for (Element change : Finder.contoursToRectangle(contours)) {
+      change = new Element((change.x + (int) offset.x) * factor, (change.y + (int) offset.y) * factor,
+              change.w * factor, change.h * factor);
+      if (change.w < minimumSize && change.h < minimumSize) {
+        continue;
+      }
+      changes.add(change);
+    }
+    for (MatOfPoint contour : contours) {
+      contour.release();
+    }
+    return changes;
+  }
+  //</editor-fold>
+}
@@ -6,9 +6,14 @@ package com.sikulix.core;
 
 import com.sikulix.api.Element;
 import com.sikulix.api.Event;
+import com.sikulix.api.Picture;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 
+import java.awt.Rectangle;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.concurrent.*;
 
 public class Events {
   private static SXLog log = SX.getSXLog("SX.Events");
@@ -16,6 +21,8 @@ public class Events {
   //<editor-fold desc="housekeeping">
   private static Events instance = null;
   private ConcurrentHashMap<Element, ConcurrentHashMap<Long, Event>> elements = new ConcurrentHashMap<>();
+  // added by observe, not yet taken by the EventLoop
+  private ConcurrentLinkedQueue<Event> pending = new ConcurrentLinkedQueue<>();
 
   private boolean running = false;
 
@@ -44,14 +51,17 @@ public class Events {
   //</editor-fold>
 
   //<editor-fold desc="start/stop">
+  // the EventLoop decides to end under this lock, so events added before startObserving are never left behind
+  private static final Object loopLock = new Object();
+
   public static void startObserving() {
-    if (!get().running) {
-      if (SX.isNull(get().eventLoop)) {
+    synchronized (loopLock) {
+      if (SX.isNull(get().eventLoop) || !get().eventLoop.isLooping()) {
         get().eventLoop = new EventLoop();
         new Thread(get().eventLoop).start();
       }
+      get().running = true;
     }
-    get().running = true;
     log.trace("startObserving");
   }
 
@@ -85,6 +95,7 @@ public class Events {
     for (Event evt : evts) {
       evt.reset();
       events.put(evt.getKey(), evt);
+      get().pending.add(evt);
     }
   }
 
@@ -185,152 +196,344 @@ public class Events {
     waitForEventLoopToFinish();
   }
 
+  private static ExecutorService observePool = null;
+  private static ExecutorService handlerPool = null;
+
+  private static ExecutorService newPool(int threads, final String name) {
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int threadCount = 0;
+
+      @Override
+      public synchronized Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, String.format("%s-%d", name, threadCount++));
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * the events are evaluated in parallel by Settings.ObserveThreads threads (0 = number of processors)
+   */
+  private static synchronized ExecutorService getObservePool() {
+    if (SX.isNull(observePool)) {
+      int threads = (int) SX.getOptionNumber("Settings.ObserveThreads", 0);
+      observePool = newPool(threads < 1 ? Runtime.getRuntime().availableProcessors() : threads, "SX.Observe");
+    }
+    return observePool;
+  }
+
+  /**
+   * the handlers run in Settings.ObserveHandlerThreads threads, so a slow handler does not stall the observation
+   */
+  private static synchronized ExecutorService getHandlerPool() {
+    if (SX.isNull(handlerPool)) {
+      int threads = (int) Math.max(1, SX.getOptionNumber("Settings.ObserveHandlerThreads", 1));
+      handlerPool = newPool(threads, "SX.ObserveHandler");
+    }
+    return handlerPool;
+  }
+
+  /**
+   * one thread for all observed elements: per tick (Settings.ObserveScanRate per second)
+   * overlapping elements on the same device are captured once together,
+   * the events of each element are evaluated against this frame with one Finder per element
+   * (incremental, so unchanged parts are not searched again)
+   */
   private static class EventLoop implements Runnable {
 
-    boolean running = true;
+    volatile boolean running = true;
+
+    private final Map<Event, Observe> observes = new LinkedHashMap<>();
+    private final Map<Element, Picture> frames = new HashMap<>();
+    private final Map<Element, Finder> finders = new HashMap<>();
 
     public boolean isLooping() {
       return running;
     }
 
     @Override
-    public void run()
-    {
+    public void run() {
       log.trace("EventLoop: started for %d elements", get().elements.size());
-      int numWhere = 1;
-      Element[] wheres = get().elements.keySet().toArray(new Element[0]);
+      long tick = (long) (1000 / Math.max(0.1, SX.getOptionNumber("Settings.ObserveScanRate", 3)));
       while (true) {
-        for (Element where : wheres) {
-          if (!where.isObserving()) {
-            int numEvents = getEventList(where).size();
-            if (numEvents > 0) {
-              log.trace("EventLoop: starting observe for (%d) %s with %d events",
-                      numWhere, where, numEvents);
-              for (Event evt : getEvents(where)) {
-                if (processEvents) {
-                  new Thread(new Observe(evt, numWhere)).start();
-                } else {
-                  log.trace("Observe skipped: %s", evt);
-                  evt.setWhen(new Date().getTime());
-                }
-              }
-            }
-          }
-        }
-        SX.pause(1);
+        long begin_t = new Date().getTime();
         if (!isRunning()) {
-          for (Element where : wheres) {
+          for (Element where : get().elements.keySet()) {
             where.observeStop();
           }
         }
-        boolean someObserving = false;
-        while (true) {
-          for (Element where : wheres) {
-            someObserving |= where.isObserving();
+        startObserves();
+        List<Observe> due = new ArrayList<>();
+        for (Observe observe : new ArrayList<>(observes.values())) {
+          if (observe.isDone() || !observe.where.isObserving()) {
+            observe.finish();
+            observes.remove(observe.event);
+          } else if (observe.isDue(begin_t)) {
+            due.add(observe);
           }
-          if (!isRunning() && someObserving) {
-            continue;
+        }
+        synchronized (loopLock) {
+          if (observes.isEmpty() && get().pending.isEmpty()) {
+            running = false;
+            break;
           }
-          break;
         }
-        if (!someObserving) {
-          break;
+        if (!due.isEmpty()) {
+          evaluate(due);
+        }
+        long pause = tick - (new Date().getTime() - begin_t);
+        if (pause > 0) {
+          SX.pause(pause / 1000.0);
         }
       }
-      running = false;
+      frames.clear();
+      finders.clear();
       log.trace("EventLoop: stopped");
     }
+
+    private void startObserves() {
+      Event evt;
+      while (SX.isNotNull(evt = get().pending.poll())) {
+        if (processEvents) {
+          Observe observe = observes.get(evt);
+          if (SX.isNull(observe) || observe.isDone()) {
+            observes.put(evt, new Observe(evt));
+          }
+        } else {
+          log.trace("Observe skipped: %s", evt);
+          evt.setWhen(new Date().getTime());
+        }
+      }
+    }
+
+    private void evaluate(List<Observe> due) {
+      Map<Element, List<Observe>> byWhere = new LinkedHashMap<>();
+      for (Observe observe : due) {
+        List<Observe> whereObserves = byWhere.get(observe.where);
+        if (SX.isNull(whereObserves)) {
+          whereObserves = new ArrayList<>();
+          byWhere.put(observe.where, whereObserves);
+        }
+        whereObserves.add(observe);
+      }
+      for (List<Element> group : getCaptureGroups(byWhere.keySet())) {
+        capture(group);
+      }
+      List<Future<?>> runs = new ArrayList<>();
+      for (Element where : byWhere.keySet()) {
+        final Finder finder = finders.get(where);
+        if (SX.isNull(finder) || !finder.isValid()) {
+          continue;
+        }
+        final Element frame = frames.containsKey(where) ? frames.get(where) : where;
+        for (final Observe observe : byWhere.get(where)) {
+          runs.add(getObservePool().submit(new Runnable() {
+            @Override
+            public void run() {
+              observe.evaluate(finder, frame);
+            }
+          }));
+        }
+      }
+      for (Future<?> run : runs) {
+        try {
+          run.get();
+        } catch (InterruptedException | ExecutionException e) {
+          log.error("EventLoop: evaluate: %s", e);
+        }
+      }
+    }
+
+    /**
+     * elements on the screen of the same device, that overlap, are captured together
+     */
+    private List<List<Element>> getCaptureGroups(Collection<Element> wheres) {
+      List<List<Element>> groups = new ArrayList<>();
+      List<Rectangle> unions = new ArrayList<>();
+      for (Element where : wheres) {
+        List<Element> group = new ArrayList<>();
+        group.add(where);
+        Rectangle union = where.getRectangle();
+        if (where.isOnScreen()) {
+          boolean merged = true;
+          while (merged) {
+            merged = false;
+            for (int n = 0; n < groups.size(); n++) {
+              Element other = groups.get(n).get(0);
+              if (other.isOnScreen() && other.getDevice() == where.getDevice() && unions.get(n).intersects(union)) {
+                group.addAll(groups.remove(n));
+                union = union.union(unions.remove(n));
+                merged = true;
+                break;
+              }
+            }
+          }
+        }
+        groups.add(group);
+        unions.add(union);
+      }
+      return groups;
+    }
+
+    private void capture(List<Element> group) {
+      Element first = group.get(0);
+      if (!first.isOnScreen()) {
+        if (!finders.containsKey(first)) {
+          finders.put(first, new Finder(first));
+        }
+        return;
+      }
+      Rectangle union = first.getRectangle();
+      for (Element where : group) {
+        union = union.union(where.getRectangle());
+      }
+      Element captured = new Element(union);
+      captured.setDevice(first.getDevice());
+      Mat mFrame = first.getDevice().capture(captured).getContentBGR();
+      if (mFrame.empty()) {
+        return;
+      }
+      Rectangle rFrame = new Rectangle(union.x, union.y, mFrame.cols(), mFrame.rows());
+      for (Element where : group) {
+        Rectangle part = rFrame.intersection(where.getRectangle());
+        if (part.isEmpty()) {
+          continue;
+        }
+        Mat mWhere = mFrame.submat(new Rect(part.x - union.x, part.y - union.y, part.width, part.height)).clone();
+        Picture frame = frames.get(where);
+        Finder finder = finders.get(where);
+        if (SX.isNull(frame) || SX.isNull(finder)) {
+          frame = new Picture(mWhere);
+          frames.put(where, frame);
+          finder = new Finder(frame);
+          finder.setIncremental(SX.isOption("Settings.WaitIncremental", true));
+          finders.put(where, finder);
+        } else {
+          frame.setContent(mWhere);
+          finder.refreshBase();
+        }
+      }
+    }
   }
   //</editor-fold>
 
   //<editor-fold desc="Observe">
-  private static class Observe implements Runnable {
 
-    Event event = null;
-    int nWhere = 0;
-
-    public Observe(Event event, int nWhere) {
+  /**
+   * the state of one observed event between the ticks of the EventLoop
+   */
+  private static class Observe {
+
+    final Event event;
+    final Element where;
+    final String cType;
+    private volatile boolean done = false;
+    private volatile boolean handling = false;
+    private volatile long nextTime = 0;
+    private boolean first = true;
+    private boolean visible = false;
+    private ChangeDetector detector = null;
+
+    public Observe(Event event) {
       this.event = event;
-      this.nWhere = nWhere;
+      where = event.getWhere();
+      cType = event.getTypeShort();
+      where.incrementObserveCount();
+      log.trace("Observe start: %s%d in %s", cType, event.getKey(), where);
     }
 
-    boolean shouldRepeat = true;
+    boolean isDone() {
+      return done;
+    }
 
-    public void stop() {
-      shouldRepeat = false;
+    boolean isDue(long now) {
+      return !done && !handling && now >= nextTime;
     }
 
-    @Override
-    public void run() {
-      event.getWhere().incrementObserveCount();
-      String cType = event.getTypeShort();
-      log.trace("Observe start: %s%d in %d", cType, event.getKey(), nWhere);
-      while (true) {
-        if (event.shouldRepeat()) {
-          SX.pause(event.getRepeat());
+    void finish() {
+      if (where.isObserving()) {
+        where.decrementObserveCount();
+      }
+    }
+
+    void evaluate(Finder finder, Element frame) {
+      boolean success = false;
+      boolean found = false;
+      Element match = null;
+      if (!event.isChange()) {
+        match = finder.find(event.getWhat());
+        found = match.isMatch();
+      }
+      if (event.isAppear()) {
+        if (found) {
+          event.setMatch(match);
+          success = true;
         }
-        event.pause();
-        boolean success = false;
-        Finder.PossibleMatch possibleMatch = new Finder.PossibleMatch();
-        Element where = possibleMatch.get(event.getWhat(), event.getWhere(), nWhere);
-        if (event.isAppear()) {
-          if (!where.hasMatch()) {
-            while (where.isObserving() && shouldRepeat) {
-              log.trace("Observe repeat: %s%d in %d", cType, event.getKey(), nWhere);
-              possibleMatch.repeat();
-              if (where.hasMatch()) {
-                success = true;
-                break;
-              }
-            }
-          } else {
-            success = true;
-          }
-          if (success) {
-            event.setMatch(where.getLastMatch());
-            success = true;
-          }
-        } else if (event.isVanish()) {
-          where.setLastVanish(null);
-          if (where.hasMatch()) {
-            Element match = where.getLastMatch();
-            where.setLastVanish(match);
-            while (where.isObserving() && shouldRepeat) {
-              log.trace("Observe repeat: %s%d in %d", cType, event.getKey(), nWhere);
-              possibleMatch.repeat();
-              if (where.hasMatch()) {
-                match = where.getLastMatch();
-                where.setLastVanish(match);
-                event.setVanish(match);
-              } else {
-                success = true;
-                break;
+      } else if (event.isVanish()) {
+        if (found) {
+          visible = true;
+          where.setLastVanish(match);
+          event.setVanish(match);
+        } else if (visible) {
+          success = true;
+        } else if (first) {
+          log.trace("Observe stopped: %s%d not visible", cType, event.getKey());
+          done = true;
+        }
+      } else if (event.isChange()) {
+        if (SX.isNull(detector)) {
+          detector = new ChangeDetector(event.getWhat().w);
+        }
+        List<Element> changes = detector.detect(frame.getContentBGR());
+        if (changes.size() > 0) {
+          event.setChanges(changes);
+          success = true;
+        }
+      } else {
+        log.error("Observe: Event invalid: %s", event);
+        done = true;
+      }
+      first = false;
+      if (success) {
+        event.setWhen(new Date().getTime());
+        event.incrementCount();
+        log.trace("Observe success: %s%d %s", cType, event.getKey(),
+                event.isChange() ? event.getChanges() : (found ? event.getMatch() : event.getVanish()));
+        handling = true;
+        if (event.hasHandler()) {
+          getHandlerPool().submit(new Runnable() {
+            @Override
+            public void run() {
+              log.trace("Observe handler: %s%d", cType, event.getKey());
+              try {
+                event.getHandler().run(event);
+              } finally {
+                handled();
               }
             }
-          }
-        } else if (event.isChange()) {
-          log.error("Observe: onChange not implemented: %s", event);
-        } else {
-          log.error("Observe: Event invalid: %s", event);
-        }
-        if (success) {
-          event.setWhen(new Date().getTime());
-          event.incrementCount();
-          log.trace("Observe success: %s%d in %d %s", cType, event.getKey(), nWhere,
-                  (Event.TYPE.ONAPPEAR.equals(event.isAppear()) ? event.getMatch() : event.getVanish()));
-          if (event.hasHandler()) {
-            log.trace("Observe handler: %s%d in %d", cType, event.getKey(), nWhere);
-            event.getHandler().run(event);
-          }
+          });
         } else {
-          log.trace("Observe stopped: %s%d in %d", cType, event.getKey(), nWhere);
+          handled();
         }
-        if (!event.shouldRepeat()) {
-          event.getWhere().decrementObserveCount();
-          break;
+      }
+    }
+
+    // the handler might have asked to repeat the observation (Event.repeat)
+    private void handled() {
+      if (event.shouldRepeat()) {
+        nextTime = new Date().getTime() + 1000 * event.getRepeat();
+        event.pause();
+        first = true;
+        visible = false;
+        if (SX.isNotNull(detector)) {
+          detector.reset();
         }
+      } else {
+        done = true;
       }
+      handling = false;
     }
   }
   //</editor-fold>
-}
\ No newline at end of file
+}
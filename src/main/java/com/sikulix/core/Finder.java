@@ -16,6 +16,8 @@ import org.opencv.imgproc.Imgproc;
 import java.awt.Rectangle;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Finder {
 
@@ -23,8 +25,9 @@ public class Finder {
   private static final SXLog log = SX.getSXLog("SX.Finder");
 
   private Element base = null;
-  private Mat mBase = Element.getNewMat();
-  private Mat mResult = Element.getNewMat();
+  private volatile Mat mBase = Element.getNewMat();
+  private volatile FindResult lastFindResult = null;
+  private final AtomicInteger activeFinds = new AtomicInteger();
 
   private enum FindType {
     ONE, ALL
@@ -47,173 +50,1117 @@ public class Finder {
   }
 
   public void refreshBase() {
+    Mat mPrevious = mBase;
     mBase = base.getContentBGR();
+    releaseBases(activeFinds.get() == 0);
+    if (incremental) {
+      List<Rect> changes = getChanges(mPrevious, mBase);
+      synchronized (incrementalStates) {
+        baseChanges = changes;
+        baseGeneration++;
+      }
+    }
+  }
+
+  /**
+   * gives the Mats made for the base (downsized, gray, kept score maps) back to the pool<br>
+   * to be called when the Finder is not used anymore (otherwise they are freed by GC only)
+   */
+  public void release() {
+    boolean reuse = activeFinds.get() == 0;
+    releaseBases(reuse);
+    synchronized (incrementalStates) {
+      if (reuse) {
+        for (IncrementalState state : incrementalStates.values()) {
+          synchronized (state) {
+            MatPool.put(state.scoreMap);
+            state.scoreMap = null;
+          }
+        }
+      }
+      incrementalStates.clear();
+    }
   }
   //</editor-fold>
 
   //<editor-fold desc="find basic">
+  /**
+   * searches only use local working storage, so the same Finder (base) can be searched by many threads at once<br>
+   * the match state of the base is updated in one step at the end
+   *
+   * @param target what to search
+   * @return the match or an invalid Element if not found
+   */
   public Element find(Element target) {
-    base.resetMatches();
     FindResult findResult = doFind(target, FindType.ONE);
-    if (SX.isNotNull(findResult) && findResult.hasNext()) {
-      base.setLastMatch(findResult.next());
-      return base.getLastMatch();
+    lastFindResult = findResult;
+    base.setLastMatches(findResult.getMatch(), null, null);
+    if (findResult.hasMatch()) {
+      return findResult.getMatch();
     }
     return new Element();
   }
 
+  /**
+   * all matches of the target, overlapping ones removed (see setFindAllMaxOverlap)<br>
+   * with the pyramid search at most Settings.FindPyramidCandidatesAll (default 500) candidates
+   * are taken from the coarsest level, so more matches are only found with setPyramidLevels(1)
+   *
+   * @param target what to search
+   * @return the matches sorted by position (empty if none)
+   */
   public List<Element> findAll(Element target) {
-    base.resetMatches();
     FindResult findResult = doFind(target, FindType.ALL);
-    List<Element> matches = findResult.getMatches();
+    lastFindResult = findResult;
+    List<Element> matches = new ArrayList<>(findResult.getMatches());
     Collections.sort(matches);
-    base.setLastMatches(matches);
-    base.setLastScores(findResult.getScores());
+    base.setLastMatches(null, matches, findResult.getScores());
     return matches;
   }
 
-  private final double resizeMinFactor = 1.5;
-  private final double[] resizeLevels = new double[]{1f, 0.4f};
-  private int resizeMaxLevel = resizeLevels.length - 1;
-  private double resizeMinSim = 0.8;
-  private boolean isCheckLastSeen = false;
-  private static final double downSimDiff = 0.15;
+  /**
+   * @return the result of the last completed find or findAll with this Finder (null if none yet)
+   */
+  public FindResult getLastFindResult() {
+    return lastFindResult;
+  }
 
   private FindResult doFind(Element target, FindType findType) {
+    activeFinds.incrementAndGet();
+    try {
+      return doFindInBase(target, findType);
+    } finally {
+      activeFinds.decrementAndGet();
+    }
+  }
+
+  private FindResult doFindInBase(Element target, FindType findType) {
     if (!target.isTarget()) {
-      return null;
+      return new FindResult(new long[0]);
     }
     log.trace("doFind: start");
     if (target.getWantedScore() < 0) {
       target.setWantedScore(0.8);
     }
-    boolean success = false;
-    long begin_t = 0;
-    Core.MinMaxLocResult mMinMax = null;
-    FindResult findResult = null;
-    if (FindType.ONE.equals(findType) && !isCheckLastSeen && SX.isOption("CheckLastSeen")
-            && target.getLastSeen().isValid()) {
-      begin_t = new Date().getTime();
-      Finder lastSeenFinder = new Finder(target.getLastSeen());
-      lastSeenFinder.isCheckLastSeen = true;
-      findResult = lastSeenFinder.doFind(new Target(target, target.getLastSeen().getScore() - 0.01), FindType.ONE);
-      if (findResult.hasNext()) {
-        log.trace("doFind: checkLastSeen: success %d msec", new Date().getTime() - begin_t);
+    Mat mBase = this.mBase;
+    if (mBase.cols() < target.w || mBase.rows() < target.h) {
+      log.trace("doFind: target larger than base: %s", target);
+      return new FindResult(new long[0]);
+    }
+    String lastSeenKey = null;
+    if (FindType.ONE.equals(findType) && SX.isOption("Settings.CheckLastSeen")) {
+      lastSeenKey = LastSeen.getKey(target, base);
+      FindResult findResult = doFindLastSeen(target, mBase, lastSeenKey);
+      if (findResult.hasMatch()) {
         return findResult;
+      }
+    }
+    int maxMatches = FindType.ONE.equals(findType) ? 1 : findAllMaxMatches;
+    boolean gray = isGrayFirst(target, mBase);
+    SearchRun searchRun;
+    IncrementalState state = getIncrementalState(target, gray, maxMatches);
+    if (SX.isNull(state)) {
+      searchRun = doFindSearch(target, mBase, maxMatches, gray, null);
+    } else {
+      synchronized (state) {
+        searchRun = state.getUnchanged();
+        if (SX.isNull(searchRun)) {
+          searchRun = doFindSearch(target, mBase, maxMatches, gray, state);
+          state.searchRun = searchRun;
+        } else {
+          log.trace("doFind: incremental: base not changed - search skipped");
+        }
+        state.generation = state.nextGeneration;
+      }
+    }
+    List<Element> matches = new ArrayList<>();
+    for (double[] candidate : searchRun.candidates) {
+      matches.add(new Element(new Element((int) candidate[0], (int) candidate[1], target.w, target.h), candidate[2]));
+    }
+    FindResult findResult = new FindResult(new ResultIterator(matches, target), findType, searchRun.times);
+    if (SX.isNotNull(lastSeenKey) && findResult.hasMatch()) {
+      Element match = findResult.getMatch();
+      LastSeen.add(lastSeenKey, match.x, match.y);
+      target.setLastSeen(match);
+    }
+    log.trace("doFind: end");
+    return findResult;
+  }
+
+  private SearchRun doFindSearch(Element target, Mat mBase, int maxMatches, boolean gray, IncrementalState state) {
+    if (gray) {
+      return doFindGrayFirst(target, mBase, maxMatches, state);
+    }
+    return doFindCandidates(target, mBase, maxMatches, state);
+  }
+
+  /**
+   * the candidates of one search ({x, y, score}, best first) and the msec per level
+   */
+  private static class SearchRun {
+    List<double[]> candidates = new ArrayList<>();
+    long[] times = new long[0];
+  }
+
+  /**
+   * search in the given base: coarse to fine if the target allows downsizing, otherwise in the original
+   *
+   * @param target     what to search
+   * @param mBase      where to search
+   * @param maxMatches at most this many (0 = all)
+   * @param state      null or the state of the previous search for an incremental search
+   * @return the candidates with a score above the target's wanted score
+   */
+  private SearchRun doFindCandidates(Element target, Mat mBase, int maxMatches, IncrementalState state) {
+    double[] factors = getPyramidFactors(target, mBase);
+    if (factors.length > 1) {
+      // ************************************* coarse to fine in downsized
+      return doFindPyramid(target, factors, mBase, maxMatches, state);
+    }
+    // ************************************** search in original
+    return doFindOriginal(target, mBase, maxMatches, state);
+  }
+
+  private SearchRun doFindOriginal(Element target, Mat mBase, int maxMatches, IncrementalState state) {
+    SearchRun searchRun = new SearchRun();
+    long begin_t = new Date().getTime();
+    Mat mResult = getScoreMap(target, mBase, null, 1, state);
+    Core.MinMaxLocResult mMinMax = Core.minMaxLoc(mResult);
+    searchRun.times = new long[]{new Date().getTime() - begin_t};
+    log.trace("doFind: search in original: %%%.2f(?%%%.2f) %d msec",
+            mMinMax.maxVal * 100, target.getWantedScore() * 100, searchRun.times[0]);
+    if (mMinMax.maxVal > target.getWantedScore()) {
+      if (maxMatches == 1) {
+        searchRun.candidates.add(new double[]{mMinMax.maxLoc.x, mMinMax.maxLoc.y, mMinMax.maxVal});
       } else {
-        log.trace("doFind: checkLastSeen: not found %d msec", new Date().getTime() - begin_t);
-      }
-    }
-    double rfactor = 0;
-    boolean downSizeFound = false;
-    double downSizeScore = 0;
-    double downSizeWantedScore = 0;
-    if (FindType.ONE.equals(findType) && target.getResizeFactor() > resizeMinFactor) {
-      // ************************************************* search in downsized
-      begin_t = new Date().getTime();
-      double imgFactor = target.getResizeFactor();
-      Size sizeBase, sizePattern;
-      Mat mBase = Element.getNewMat();
-      Mat mPattern = Element.getNewMat();
-      Mat mPatternMask = Element.getNewMat();
-      mResult = null;
-      for (double factor : resizeLevels) {
-        rfactor = factor * imgFactor;
-        sizeBase = new Size(this.mBase.cols() / rfactor, this.mBase.rows() / rfactor);
-        sizePattern = new Size(target.getContent().cols() / rfactor, target.getContent().rows() / rfactor);
-        Imgproc.resize(this.mBase, mBase, sizeBase, 0, 0, Imgproc.INTER_AREA);
-        Imgproc.resize(target.getContentBGR(), mPattern, sizePattern, 0, 0, Imgproc.INTER_AREA);
-        Picture pPattern = new Picture(mPattern);
-        if (target.hasMask()) {
-          Imgproc.resize(target.getMask(), mPatternMask, sizePattern, 0, 0, Imgproc.INTER_AREA);
-          pPattern.setMask(mPatternMask);
+        begin_t = new Date().getTime();
+        searchRun.candidates = getPeaks(mResult, target.getWantedScore(), target.w, target.h,
+                maxMatches, findAllMinSpacing);
+        log.trace("doFind: peaks: %d in %d msec", searchRun.candidates.size(), new Date().getTime() - begin_t);
+      }
+    }
+    if (SX.isNull(state)) {
+      MatPool.put(mResult);
+    }
+    return searchRun;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="find last seen">
+  /**
+   * with Settings.CheckLastSeen find first looks around the places, where the same image was found before
+   * in the same base (see LastSeen, kept across runs)<br>
+   * only if it is not there, the whole base is searched (and the new place remembered)
+   *
+   * @param target what to search
+   * @param mBase  where to search
+   * @param key    the key in the LastSeen store
+   * @return the match found at one of the known places or an empty result
+   */
+  private FindResult doFindLastSeen(Element target, Mat mBase, String key) {
+    List<int[]> hints = LastSeen.get(key);
+    if (hints.isEmpty()) {
+      return new FindResult(new long[0]);
+    }
+    long begin_t = new Date().getTime();
+    int margin = (int) SX.getOptionNumber("Settings.LastSeenMargin", 10);
+    Element baseRect = new Element(0, 0, mBase.cols(), mBase.rows());
+    for (int[] hint : hints) {
+      Element around = baseRect.intersection(
+              new Element(hint[0] - margin, hint[1] - margin, target.w + 2 * margin, target.h + 2 * margin));
+      if (around.w < target.w || around.h < target.h) {
+        continue;
+      }
+      Mat mAround = mBase.submat(new Rect(around.x, around.y, around.w, around.h));
+      Mat mResult = doFindMatch(target, mAround, null);
+      Core.MinMaxLocResult mMinMax = Core.minMaxLoc(mResult);
+      MatPool.put(mResult);
+      if (mMinMax.maxVal > target.getWantedScore()) {
+        int x = around.x + (int) mMinMax.maxLoc.x;
+        int y = around.y + (int) mMinMax.maxLoc.y;
+        long time = new Date().getTime() - begin_t;
+        log.trace("doFind: lastSeen: success at (%d,%d) %%%.2f %d msec", x, y, mMinMax.maxVal * 100, time);
+        LastSeen.add(key, x, y);
+        List<Element> matches = new ArrayList<>();
+        matches.add(new Element(new Element(x, y, target.w, target.h), mMinMax.maxVal));
+        FindResult findResult = new FindResult(new ResultIterator(matches, target), FindType.ONE, new long[]{time});
+        target.setLastSeen(findResult.getMatch());
+        return findResult;
+      }
+    }
+    log.trace("doFind: lastSeen: not found at %d places %d msec", hints.size(), new Date().getTime() - begin_t);
+    return new FindResult(new long[0]);
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="find incremental">
+  private boolean incremental = false;
+  private int baseGeneration = 0;
+  private List<Rect> baseChanges = null;
+  private final Map<Element, IncrementalState> incrementalStates = new IdentityHashMap<>();
+
+  /**
+   * for repeated searches in a refreshed base (wait, waitVanish, observe):<br>
+   * refreshBase looks for the changes against the previous base (every changed pixel in any channel),
+   * a search is skipped if nothing changed, otherwise only the changed parts are searched again
+   * and merged into the score map kept from the previous search
+   *
+   * @param incremental true/false
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    if (!incremental) {
+      synchronized (incrementalStates) {
+        for (IncrementalState state : incrementalStates.values()) {
+          synchronized (state) {
+            MatPool.put(state.scoreMap);
+            state.scoreMap = null;
+          }
         }
-        mResult = doFindMatch(target, mBase, pPattern);
-        mMinMax = Core.minMaxLoc(mResult);
-        downSizeWantedScore = ((int) ((target.getWantedScore() - downSimDiff) * 100)) / 100.0;
-        downSizeScore = mMinMax.maxVal;
-        if (downSizeScore > downSizeWantedScore) {
-          downSizeFound = true;
-          break;
+        incrementalStates.clear();
+      }
+    }
+  }
+
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  /**
+   * the score map and the candidates of the last search of a target
+   */
+  private static class IncrementalState {
+    boolean gray;
+    int maxMatches;
+    int generation = -1;
+    int nextGeneration;
+    List<Rect> nextChanges;
+    double factor = 0;
+    Mat scoreMap = null;
+    SearchRun searchRun = null;
+
+    boolean isPrevious() {
+      return generation == nextGeneration - 1 && SX.isNotNull(nextChanges);
+    }
+
+    SearchRun getUnchanged() {
+      if (SX.isNull(searchRun)) {
+        return null;
+      }
+      if (generation == nextGeneration || (isPrevious() && nextChanges.isEmpty())) {
+        return searchRun;
+      }
+      return null;
+    }
+  }
+
+  private IncrementalState getIncrementalState(Element target, boolean gray, int maxMatches) {
+    if (!incremental) {
+      return null;
+    }
+    synchronized (incrementalStates) {
+      IncrementalState state = incrementalStates.get(target);
+      if (SX.isNull(state) || state.gray != gray || state.maxMatches != maxMatches) {
+        state = new IncrementalState();
+        state.gray = gray;
+        state.maxMatches = maxMatches;
+        incrementalStates.put(target, state);
+      }
+      state.nextGeneration = baseGeneration;
+      state.nextChanges = baseChanges;
+      return state;
+    }
+  }
+
+  private ChangeDetector baseChangeDetector = null;
+
+  // exact: a previous result is only reused, where not a single pixel changed in any channel
+  private List<Rect> getChanges(Mat mPrevious, Mat mBase) {
+    if (mPrevious == mBase || mPrevious.empty() || !mPrevious.size().equals(mBase.size())
+            || mPrevious.type() != mBase.type()) {
+      return null;
+    }
+    if (SX.isNull(baseChangeDetector)) {
+      baseChangeDetector = new ChangeDetector();
+    }
+    List<Rect> changes = new ArrayList<>();
+    for (Element change : baseChangeDetector.detectExact(mPrevious, mBase)) {
+      changes.add(new Rect(change.x, change.y, change.w + 1, change.h + 1));
+    }
+    return changes;
+  }
+
+  /**
+   * the score map of the target in the base (the base might be downsized by factor)<br>
+   * if possible, the map of the previous search is reused, only the changed parts are matched again
+   *
+   * @param target what to search
+   * @param mBase  where to search
+   * @param probe  null or the downsized target
+   * @param factor the downsize factor of base and probe
+   * @param state  null or the state of the previous search
+   * @return the score map
+   */
+  private Mat getScoreMap(Element target, Mat mBase, Element probe, double factor, IncrementalState state) {
+    if (SX.isNull(state)) {
+      return doFindMatch(target, mBase, probe);
+    }
+    Mat mProbe = SX.isNull(probe) ? target.getContentBGR() : probe.getContentBGR();
+    int cols = mBase.cols() - mProbe.cols() + 1;
+    int rows = mBase.rows() - mProbe.rows() + 1;
+    if (state.isPrevious() && state.factor == factor && SX.isNotNull(state.scoreMap)
+            && state.scoreMap.cols() == cols && state.scoreMap.rows() == rows) {
+      long begin_t = new Date().getTime();
+      for (Rect change : state.nextChanges) {
+        // all positions, where the probe covers a changed pixel (+1 for the blur by downsizing)
+        int x1 = Math.max(0, (int) (change.x / factor) - mProbe.cols());
+        int y1 = Math.max(0, (int) (change.y / factor) - mProbe.rows());
+        int x2 = Math.min(cols, (int) Math.ceil((change.x + change.width) / factor) + 1);
+        int y2 = Math.min(rows, (int) Math.ceil((change.y + change.height) / factor) + 1);
+        if (x2 <= x1 || y2 <= y1) {
+          continue;
+        }
+        Mat mSubBase = mBase.submat(new Rect(x1, y1, x2 - x1 + mProbe.cols() - 1, y2 - y1 + mProbe.rows() - 1));
+        Mat mResult = doFindMatch(target, mSubBase, probe);
+        mResult.copyTo(state.scoreMap.submat(new Rect(x1, y1, x2 - x1, y2 - y1)));
+        MatPool.put(mResult);
+      }
+      log.trace("doFind: incremental: %d changes (1/%.2f) matched again %d msec",
+              state.nextChanges.size(), factor, new Date().getTime() - begin_t);
+      return state.scoreMap;
+    }
+    MatPool.put(state.scoreMap);
+    state.scoreMap = doFindMatch(target, mBase, probe);
+    state.factor = factor;
+    return state.scoreMap;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="find gray first">
+  private boolean grayFirst = SX.isOption("Settings.FindGrayFirst", false);
+  private int grayCandidates = (int) SX.getOptionNumber("Settings.FindGrayCandidates", 5);
+  private Mat grayBase = null;
+  private Mat grayBaseOf = null;
+
+  /**
+   * search in gray first and only check the best candidates in color
+   *
+   * @param grayFirst true/false
+   */
+  public void setGrayFirst(boolean grayFirst) {
+    this.grayFirst = grayFirst;
+  }
+
+  public boolean isGrayFirst() {
+    return grayFirst;
+  }
+
+  /**
+   * @param candidates number of gray candidates checked in color with find (findAll checks all)
+   */
+  public void setGrayCandidates(int candidates) {
+    grayCandidates = candidates;
+  }
+
+  private boolean isGrayFirst(Element target, Mat mBase) {
+    return grayFirst && mBase.channels() == 3 && !target.isPlainColor()
+            && target.getContentBGR().channels() == 3;
+  }
+
+  /**
+   * the base in gray: made once per capture and used for all targets searched in it
+   *
+   * @param mBase the base in color
+   * @return the base in gray
+   */
+  private Mat getGrayBase(Mat mBase) {
+    synchronized (pyramidBases) {
+      if (grayBaseOf != mBase) {
+        // the old gray base and its downsized levels are dropped together
+        releaseBases(mBase, activeFinds.get() == 1);
+        grayBase = MatPool.get(mBase.rows(), mBase.cols(), CvType.CV_8UC1);
+        Imgproc.cvtColor(mBase, grayBase, Imgproc.COLOR_BGR2GRAY);
+        grayBaseOf = mBase;
+      }
+      return grayBase;
+    }
+  }
+
+  // the content is a pooled Mat: give it back with MatPool.put, when the gray target is dropped
+  private Element getGrayTarget(Element target) {
+    Mat mTarget = target.getContentBGR();
+    Mat mGray = MatPool.get(mTarget.rows(), mTarget.cols(), CvType.CV_8UC1);
+    Imgproc.cvtColor(mTarget, mGray, Imgproc.COLOR_BGR2GRAY);
+    Picture grayTarget = new Picture(mGray, false);
+    if (target.hasMask()) {
+      grayTarget.setMask(target.getMask());
+    }
+    grayTarget.setWantedScore(target.getWantedScore());
+    return grayTarget;
+  }
+
+  /**
+   * the search is done in gray, then the best candidates are scored again in color,
+   * so they are only accepted, if they have the wanted score in color too
+   *
+   * @param target     what to search
+   * @param mBase      where to search (in color)
+   * @param maxMatches at most this many (0 = all)
+   * @param state      null or the state for an incremental search
+   * @return the candidates with their color scores
+   */
+  private SearchRun doFindGrayFirst(Element target, Mat mBase, int maxMatches, IncrementalState state) {
+    int maxGray = maxMatches == 1 ? Math.max(1, grayCandidates) : maxMatches;
+    Element grayTarget = getGrayTarget(target);
+    SearchRun searchRun = doFindCandidates(grayTarget, getGrayBase(mBase), maxGray, state);
+    MatPool.put(grayTarget.getContentBGR());
+    long begin_t = new Date().getTime();
+    int w = target.getContentBGR().cols();
+    int h = target.getContentBGR().rows();
+    List<double[]> verified = new ArrayList<>();
+    for (double[] candidate : searchRun.candidates) {
+      Rect rect = new Rect((int) candidate[0], (int) candidate[1], w, h);
+      Mat mResult = doFindMatch(target, mBase.submat(rect), null);
+      Core.MinMaxLocResult mMinMax = Core.minMaxLoc(mResult);
+      MatPool.put(mResult);
+      if (mMinMax.maxVal > target.getWantedScore()) {
+        verified.add(new double[]{candidate[0], candidate[1], mMinMax.maxVal});
+      }
+    }
+    sortPeaks(verified);
+    if (maxMatches > 0 && verified.size() > maxMatches) {
+      verified = new ArrayList<>(verified.subList(0, maxMatches));
+    }
+    log.trace("doFind: gray first: %d of %d candidates ok in color %d msec",
+            verified.size(), searchRun.candidates.size(), new Date().getTime() - begin_t);
+    searchRun.candidates = verified;
+    return searchRun;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="find pyramid">
+  private static final double resizeMinFactor = 1.5;
+  private static final double resizeLevelStep = 0.25;
+  private static final int resizeMaxLevels = 6;
+
+  private int pyramidLevels = (int) SX.getOptionNumber("Settings.FindPyramidLevels", 3);
+  private double pyramidScoreDrop = SX.getOptionNumber("Settings.FindPyramidScoreDrop", 0.15);
+  private int pyramidCandidates = (int) SX.getOptionNumber("Settings.FindPyramidCandidates", 5);
+  private int pyramidCandidatesAll = (int) SX.getOptionNumber("Settings.FindPyramidCandidatesAll", 500);
+  private boolean pyramidFallback = SX.isOption("Settings.FindPyramidFallback", true);
+
+  // per base (color and gray): the downsized bases per factor
+  private final Map<Mat, Map<Double, Mat>> pyramidBases = new IdentityHashMap<>();
+
+  /**
+   * the msec used per pyramid level by the last search (coarsest first, original size last)
+   *
+   * @return the timings (only one entry, if the search was done in the original size only)
+   */
+  public long[] getLastLevelTimes() {
+    FindResult findResult = lastFindResult;
+    return SX.isNull(findResult) ? new long[0] : findResult.getLevelTimes();
+  }
+
+  public void setPyramidLevels(int levels) {
+    pyramidLevels = levels;
+  }
+
+  public int getPyramidLevels() {
+    return pyramidLevels;
+  }
+
+  public void setPyramidScoreDrop(double scoreDrop) {
+    pyramidScoreDrop = scoreDrop;
+  }
+
+  public void setPyramidCandidates(int candidates) {
+    pyramidCandidates = candidates;
+  }
+
+  /**
+   * a target, that does not survive downsizing, is not found in the coarsest level
+   *
+   * @param fallback true: search again in the original size, if the coarsest level has no candidate
+   */
+  public void setPyramidFallback(boolean fallback) {
+    pyramidFallback = fallback;
+  }
+
+  /**
+   * the downsize factors to be used for the given target<br>
+   * coarsest first, the last is always 1 (original size)<br>
+   * the coarsest reduces the target to about 12 pixels in its smaller dimension
+   *
+   * @param target the target
+   * @return the factors (only 1, if the target is too small to be downsized)
+   */
+  private double[] getPyramidFactors(Element target, Mat mBase) {
+    double maxFactor = target.getResizeFactor();
+    int levels = Math.min(pyramidLevels, resizeMaxLevels);
+    if (levels < 2 || maxFactor < resizeMinFactor ||
+            (mBase.cols() == target.w && mBase.rows() == target.h)) {
+      return new double[]{1};
+    }
+    List<Double> factors = new ArrayList<>();
+    double lastFactor = 0;
+    for (int n = levels - 1; n > 0; n--) {
+      double factor = Math.pow(maxFactor, ((double) n) / (levels - 1));
+      factor = Math.floor(factor / resizeLevelStep) * resizeLevelStep;
+      if (factor < resizeMinFactor || factor == lastFactor) {
+        continue;
+      }
+      factors.add(factor);
+      lastFactor = factor;
+    }
+    double[] pyramid = new double[factors.size() + 1];
+    for (int n = 0; n < factors.size(); n++) {
+      pyramid[n] = factors.get(n);
+    }
+    pyramid[factors.size()] = 1;
+    return pyramid;
+  }
+
+  private double getPyramidScore(double wantedScore, int level, int levels) {
+    double drop = pyramidScoreDrop * (levels - 1 - level) / (levels - 1);
+    return ((int) ((wantedScore - drop) * 100)) / 100.0;
+  }
+
+  private Mat getPyramidBase(Mat mBase, double factor) {
+    if (factor == 1) {
+      return mBase;
+    }
+    synchronized (pyramidBases) {
+      Map<Double, Mat> levelBases = pyramidBases.get(mBase);
+      if (SX.isNull(levelBases)) {
+        if (pyramidBases.size() > 1) {
+          releaseBases(mBase, activeFinds.get() == 1);
+        }
+        levelBases = new HashMap<>();
+        pyramidBases.put(mBase, levelBases);
+      }
+      Mat mLevelBase = levelBases.get(factor);
+      if (SX.isNull(mLevelBase)) {
+        Size size = new Size((int) (mBase.cols() / factor), (int) (mBase.rows() / factor));
+        mLevelBase = MatPool.get((int) size.height, (int) size.width, mBase.type());
+        Imgproc.resize(mBase, mLevelBase, size, 0, 0, Imgproc.INTER_AREA);
+        levelBases.put(factor, mLevelBase);
+      }
+      return mLevelBase;
+    }
+  }
+
+  // forget all downsized and gray bases
+  private void releaseBases(boolean reuse) {
+    releaseBases(null, reuse);
+  }
+
+  /**
+   * forget the downsized and gray bases made for earlier bases
+   *
+   * @param mKeep the bases made of this one are kept (it might be searched right now)
+   * @param reuse true: give the Mats back to the pool (only if no search can be using them)
+   */
+  private void releaseBases(Mat mKeep, boolean reuse) {
+    synchronized (pyramidBases) {
+      Map<Double, Mat> keptBases = null;
+      for (Mat mLevelsOf : pyramidBases.keySet()) {
+        if (mLevelsOf == mKeep) {
+          keptBases = pyramidBases.get(mLevelsOf);
+        } else if (reuse) {
+          for (Mat mLevelBase : pyramidBases.get(mLevelsOf).values()) {
+            MatPool.put(mLevelBase);
+          }
+        }
+      }
+      pyramidBases.clear();
+      if (SX.isNotNull(keptBases)) {
+        pyramidBases.put(mKeep, keptBases);
+      }
+      if (grayBaseOf != mKeep && grayBase != mKeep) {
+        if (reuse) {
+          MatPool.put(grayBase);
         }
+        grayBase = null;
+        grayBaseOf = null;
       }
-      log.trace("downSizeFound: %s", downSizeFound);
-      log.trace("doFind: down: %%%.2f %d msec", 100 * mMinMax.maxVal, new Date().getTime() - begin_t);
     }
-    if (FindType.ONE.equals(findType) && downSizeFound) {
-      // ************************************* check after downsized success
-      if (mBase.size().equals(target.getContent().size())) {
-        // trust downsized mResult, if images have same size
-        return new FindResult(mResult, target);
+  }
+
+  // content and mask are pooled Mats: give them back with MatPool.put, when the probe is dropped
+  private Element getPyramidProbe(Element target, double factor) {
+    if (factor == 1) {
+      return target;
+    }
+    Size sizePattern = new Size(Math.max(1, target.getContentBGR().cols() / factor),
+            Math.max(1, target.getContentBGR().rows() / factor));
+    Mat mPattern = MatPool.get((int) sizePattern.height, (int) sizePattern.width, target.getContentBGR().type());
+    Imgproc.resize(target.getContentBGR(), mPattern, sizePattern, 0, 0, Imgproc.INTER_AREA);
+    Picture pPattern = new Picture(mPattern, false);
+    if (target.hasMask()) {
+      Mat mPatternMask = MatPool.get((int) sizePattern.height, (int) sizePattern.width, CvType.CV_8UC1);
+      Imgproc.resize(target.getMask(), mPatternMask, sizePattern, 0, 0, Imgproc.INTER_AREA);
+      pPattern.setMask(mPatternMask);
+    }
+    return pPattern;
+  }
+
+  /**
+   * search in the coarsest level in the whole base, keep the best candidates<br>
+   * then on each finer level only check small regions around the candidates<br>
+   * each level has its own minimum score (wanted score minus a part of the score drop)
+   *
+   * @param target     what to search
+   * @param factors    the downsize factors as from getPyramidFactors
+   * @param mBase      the base to search in
+   * @param maxMatches at most this many (0 = all)
+   * @param state      null or the state for an incremental search (only the coarsest level is kept)
+   * @return the candidates found in the original size
+   */
+  private SearchRun doFindPyramid(Element target, double[] factors, Mat mBase, int maxMatches,
+                                  IncrementalState state) {
+    int levels = factors.length;
+    long[] times = new long[levels];
+    int maxCandidates = maxMatches > 0 && maxMatches <= pyramidCandidates ? pyramidCandidates : pyramidCandidatesAll;
+    List<double[]> candidates = new ArrayList<>();
+    for (int level = 0; level < levels; level++) {
+      long begin_t = new Date().getTime();
+      double factor = factors[level];
+      double levelScore = getPyramidScore(target.getWantedScore(), level, levels);
+      Mat mLevelBase = getPyramidBase(mBase, factor);
+      Element probe = getPyramidProbe(target, factor);
+      int probeW = probe.getContentBGR().cols();
+      int probeH = probe.getContentBGR().rows();
+      if (level == 0) {
+        Mat mLevelResult = getScoreMap(target, mLevelBase, probe, factor, state);
+        candidates = getPeaks(mLevelResult, levelScore, probeW, probeH, maxCandidates,
+                (int) (findAllMinSpacing / factor));
+        if (SX.isNull(state)) {
+          MatPool.put(mLevelResult);
+        }
       } else {
-        int maxLocX = (int) (mMinMax.maxLoc.x * rfactor);
-        int maxLocY = (int) (mMinMax.maxLoc.y * rfactor);
-        begin_t = new Date().getTime();
-        int margin = ((int) target.getResizeFactor()) + 1;
-        Rectangle rSub = new Rectangle(Math.max(0, maxLocX - margin), Math.max(0, maxLocY - margin),
-                Math.min(target.w + 2 * margin, mBase.width()),
-                Math.min(target.h + 2 * margin, mBase.height()));
-        rSub = new Rectangle(0, 0, mBase.cols(), mBase.rows()).intersection(rSub);
-        Rect rectSub = new Rect(rSub.x, rSub.y, rSub.width, rSub.height);
-        mResult = doFindMatch(target, mBase.submat(rectSub), null);
-        mMinMax = Core.minMaxLoc(mResult);
-        if (mMinMax.maxVal > target.getWantedScore()) {
-          findResult = new FindResult(mResult, target, new int[]{rectSub.x, rectSub.y});
+        double scale = factors[level - 1] / factor;
+        int margin = ((int) Math.ceil(scale)) + 1;
+        Rectangle rLevelBase = new Rectangle(0, 0, mLevelBase.cols(), mLevelBase.rows());
+        List<double[]> refined = new ArrayList<>();
+        for (double[] candidate : candidates) {
+          Rectangle rSub = new Rectangle((int) (candidate[0] * scale) - margin, (int) (candidate[1] * scale) - margin,
+                  probeW + 2 * margin, probeH + 2 * margin).intersection(rLevelBase);
+          if (rSub.width < probeW || rSub.height < probeH) {
+            continue;
+          }
+          Rect rectSub = new Rect(rSub.x, rSub.y, rSub.width, rSub.height);
+          Mat mResult = doFindMatch(target, mLevelBase.submat(rectSub), probe);
+          Core.MinMaxLocResult mMinMax = Core.minMaxLoc(mResult);
+          MatPool.put(mResult);
+          if (mMinMax.maxVal > levelScore) {
+            addCandidate(refined, new double[]{rSub.x + mMinMax.maxLoc.x, rSub.y + mMinMax.maxLoc.y,
+                    mMinMax.maxVal}, probeW, probeH);
+          }
         }
-        if (SX.isNotNull(findResult)) {
-          log.trace("doFind: after down: %%%.2f(?%%%.2f) %d msec",
-                  mMinMax.maxVal * 100, target.getWantedScore() * 100, new Date().getTime() - begin_t);
+        candidates = refined;
+      }
+      if (probe != target) {
+        MatPool.put(probe.getContentBGR());
+        if (probe.hasMask()) {
+          MatPool.put(probe.getMask());
         }
       }
+      times[level] = new Date().getTime() - begin_t;
+      log.trace("doFind: pyramid: level %d (1/%.2f) %%%.2f: %d candidates %d msec",
+              level, factor, levelScore * 100, candidates.size(), times[level]);
+      if (level == 0 && candidates.size() == maxCandidates && maxCandidates == pyramidCandidatesAll) {
+        log.debug("doFind: pyramid: %d candidates (Settings.FindPyramidCandidatesAll): further matches dropped",
+                maxCandidates);
+      }
+      if (level == 0 && candidates.isEmpty() && pyramidFallback && !Thread.currentThread().isInterrupted()) {
+        // not incremental: the kept score map stays the one of the coarsest level
+        SearchRun searchRun = doFindOriginal(target, mBase, maxMatches, null);
+        log.trace("doFind: pyramid: nothing in the coarsest level: %d in original %d msec",
+                searchRun.candidates.size(), searchRun.times[0]);
+        searchRun.times = new long[]{times[0], searchRun.times[0]};
+        return searchRun;
+      }
+      if (candidates.isEmpty() || Thread.currentThread().isInterrupted()) {
+        break;
+      }
     }
-    // ************************************** search in original
-    if (((int) (100 * downSizeScore)) == 0) {
-      begin_t = new Date().getTime();
-      mResult = doFindMatch(target, mBase, null);
-      mMinMax = Core.minMaxLoc(mResult);
-      if (!isCheckLastSeen) {
-        log.trace("doFind: search in original: %%%.2f(?%%%.2f) %d msec",
-                mMinMax.maxVal * 100, target.getWantedScore() * 100, new Date().getTime() - begin_t);
+    SearchRun searchRun = new SearchRun();
+    searchRun.times = times;
+    if (candidates.isEmpty() || Thread.currentThread().isInterrupted()) {
+      return searchRun;
+    }
+    sortPeaks(candidates);
+    searchRun.candidates = suppressOverlaps(candidates, target.w, target.h, maxMatches, findAllMinSpacing);
+    return searchRun;
+  }
+
+  private void addCandidate(List<double[]> candidates, double[] candidate, int w, int h) {
+    for (int n = 0; n < candidates.size(); n++) {
+      double[] other = candidates.get(n);
+      if (Math.abs(other[0] - candidate[0]) < w / 2.0 && Math.abs(other[1] - candidate[1]) < h / 2.0) {
+        if (candidate[2] > other[2]) {
+          candidates.set(n, candidate);
+        }
+        return;
       }
-      if (mMinMax.maxVal > target.getWantedScore()) {
-        findResult = new FindResult(mResult, target);
+    }
+    candidates.add(candidate);
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="find peaks">
+  private double findAllMaxOverlap = SX.getOptionNumber("Settings.FindAllMaxOverlap", 0.3);
+  private int findAllMaxMatches = (int) SX.getOptionNumber("Settings.FindAllMaxMatches", 0);
+  private int findAllMinSpacing = (int) SX.getOptionNumber("Settings.FindAllMinSpacing", 0);
+
+  /**
+   * how much two matches of findAll may overlap (intersection over union)
+   *
+   * @param maxOverlap 0 ... 1 (0 = matches must not overlap at all)
+   */
+  public void setFindAllMaxOverlap(double maxOverlap) {
+    findAllMaxOverlap = maxOverlap;
+  }
+
+  /**
+   * @param maxMatches findAll returns at most the given number of best matches (0 = no limit)
+   */
+  public void setFindAllMaxMatches(int maxMatches) {
+    findAllMaxMatches = maxMatches;
+  }
+
+  /**
+   * @param minSpacing the minimum distance in pixels between the top left corners of two matches (0 = not checked)
+   */
+  public void setFindAllMinSpacing(int minSpacing) {
+    findAllMinSpacing = minSpacing;
+  }
+
+  /**
+   * the peaks of a score matrix in one pass: all local maxima above minScore,
+   * best first, overlapping ones removed (non maximum suppression)
+   *
+   * @param mResult    the score matrix (CV_32F) as returned by doFindMatch
+   * @param minScore   only scores above are taken
+   * @param w          width of the target
+   * @param h          height of the target
+   * @param maxPeaks   at most this many (0 = all)
+   * @param minSpacing minimum distance between two peaks (0 = not checked)
+   * @return {x, y, score} per peak
+   */
+  private List<double[]> getPeaks(Mat mResult, double minScore, int w, int h, int maxPeaks, int minSpacing) {
+    if (!mResult.isContinuous()) {
+      mResult = mResult.clone();
+    }
+    int cols = mResult.cols();
+    int rows = mResult.rows();
+    float[] scores = new float[cols * rows];
+    mResult.get(0, 0, scores);
+    List<double[]> peaks = new ArrayList<>();
+    for (int y = 0; y < rows; y++) {
+      int row = y * cols;
+      for (int x = 0; x < cols; x++) {
+        float score = scores[row + x];
+        if (score <= minScore || !isPeak(scores, cols, rows, x, y, score)) {
+          continue;
+        }
+        peaks.add(new double[]{x, y, score});
       }
     }
-    log.trace("doFind: end");
-    return findResult;
+    sortPeaks(peaks);
+    return suppressOverlaps(peaks, w, h, maxPeaks, minSpacing);
+  }
+
+  private boolean isPeak(float[] scores, int cols, int rows, int x, int y, float score) {
+    for (int dy = -1; dy < 2; dy++) {
+      int ny = y + dy;
+      if (ny < 0 || ny >= rows) {
+        continue;
+      }
+      for (int dx = -1; dx < 2; dx++) {
+        int nx = x + dx;
+        if (nx < 0 || nx >= cols || (dx == 0 && dy == 0)) {
+          continue;
+        }
+        float other = scores[ny * cols + nx];
+        if (other > score) {
+          return false;
+        }
+        // a plateau only counts once: at its first pixel in scan order
+        if (other == score && (dy < 0 || (dy == 0 && dx < 0))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private void sortPeaks(List<double[]> peaks) {
+    Collections.sort(peaks, new Comparator<double[]>() {
+      @Override
+      public int compare(double[] p1, double[] p2) {
+        return Double.compare(p2[2], p1[2]);
+      }
+    });
+  }
+
+  /**
+   * non maximum suppression: walking from the best, a peak is dropped,
+   * if it overlaps too much with one already taken or is too near to it
+   *
+   * @param peaks      {x, y, score}, best first
+   * @param w          width of the target
+   * @param h          height of the target
+   * @param maxPeaks   at most this many (0 = all)
+   * @param minSpacing minimum distance between two peaks (0 = not checked)
+   * @return the remaining peaks, best first
+   */
+  private List<double[]> suppressOverlaps(List<double[]> peaks, int w, int h, int maxPeaks, int minSpacing) {
+    List<double[]> taken = new ArrayList<>();
+    for (double[] peak : peaks) {
+      if (maxPeaks > 0 && taken.size() >= maxPeaks) {
+        break;
+      }
+      boolean isSuppressed = false;
+      for (double[] other : taken) {
+        if (isOverlapping(peak, other, w, h, minSpacing)) {
+          isSuppressed = true;
+          break;
+        }
+      }
+      if (!isSuppressed) {
+        taken.add(peak);
+      }
+    }
+    return taken;
   }
 
+  private boolean isOverlapping(double[] peak, double[] other, int w, int h, int minSpacing) {
+    double dx = Math.abs(peak[0] - other[0]);
+    double dy = Math.abs(peak[1] - other[1]);
+    if (minSpacing > 0 && dx * dx + dy * dy < minSpacing * minSpacing) {
+      return true;
+    }
+    if (dx >= w || dy >= h) {
+      return false;
+    }
+    double intersection = (w - dx) * (h - dy);
+    return intersection / (2.0 * w * h - intersection) > findAllMaxOverlap;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="find match">
   private Mat doFindMatch(Element target, Mat mBase, Element probe) {
     if (SX.isNull(probe)) {
       probe = target;
     }
-    Mat mResult = Element.getNewMat();
     Mat mProbe = probe.getContentBGR();
+    Mat mResult = MatPool.get(mBase.rows() - mProbe.rows() + 1, mBase.cols() - mProbe.cols() + 1, CvType.CV_32F);
     if (!target.isPlainColor()) {
       if (probe.hasMask()) {
         Mat mMask = matMulti(probe.getMask(), mProbe.channels());
-        Imgproc.matchTemplate(mBase, mProbe, mResult, Imgproc.TM_CCORR_NORMED, mMask);
+        matchTemplate(mBase, mProbe, mResult, Imgproc.TM_CCORR_NORMED, mMask);
+        if (mMask != probe.getMask()) {
+          MatPool.put(mMask);
+        }
       } else {
-        Imgproc.matchTemplate(mBase, mProbe, mResult, Imgproc.TM_CCOEFF_NORMED);
+        matchTemplate(mBase, mProbe, mResult, Imgproc.TM_CCOEFF_NORMED, null);
       }
     } else {
       Mat mBasePlain = mBase;
       Mat mProbePlain = mProbe;
       if (target.isBlack()) {
+        mBasePlain = MatPool.get(mBase.rows(), mBase.cols(), mBase.type());
+        mProbePlain = MatPool.get(mProbe.rows(), mProbe.cols(), mProbe.type());
         Core.bitwise_not(mBase, mBasePlain);
         Core.bitwise_not(mProbe, mProbePlain);
       }
       if (probe.hasMask()) {
         Mat mMask = matMulti(probe.getMask(), mProbe.channels());
-        Imgproc.matchTemplate(mBasePlain, mProbePlain, mResult, Imgproc.TM_SQDIFF_NORMED, mMask);
+        matchTemplate(mBasePlain, mProbePlain, mResult, Imgproc.TM_SQDIFF_NORMED, mMask);
+        if (mMask != probe.getMask()) {
+          MatPool.put(mMask);
+        }
       } else {
-        Imgproc.matchTemplate(mBasePlain, mProbePlain, mResult, Imgproc.TM_SQDIFF_NORMED);
+        matchTemplate(mBasePlain, mProbePlain, mResult, Imgproc.TM_SQDIFF_NORMED, null);
+      }
+      if (target.isBlack()) {
+        MatPool.put(mBasePlain, mProbePlain);
       }
-      Core.subtract(Mat.ones(mResult.size(), CvType.CV_32F), mResult, mResult);
+      // score = 1 - difference
+      mResult.convertTo(mResult, CvType.CV_32F, -1, 1);
     }
     return mResult;
   }
 
+  //<editor-fold desc="find tiled">
+  private static ExecutorService findTilePool = null;
+
+  private int tileMinPixels = (int) SX.getOptionNumber("Settings.FindTileMinPixels", 2000000);
+  private int tileThreads = (int) SX.getOptionNumber("Settings.FindTileThreads", 0);
+
+  /**
+   * bases with at least this many pixels are searched in parallel in horizontal tiles
+   *
+   * @param minPixels the minimum (0 = never split)
+   */
+  public void setTileMinPixels(int minPixels) {
+    tileMinPixels = minPixels;
+  }
+
+  /**
+   * @param threads number of tiles searched in parallel (0 = number of available processors, 1 = no tiles)
+   */
+  public void setTileThreads(int threads) {
+    tileThreads = threads;
+  }
+
+  private int getTileThreads() {
+    return tileThreads < 1 ? Runtime.getRuntime().availableProcessors() : tileThreads;
+  }
+
+  private static synchronized ExecutorService getFindTilePool(int threads) {
+    if (SX.isNull(findTilePool)) {
+      threads = Math.max(threads, Runtime.getRuntime().availableProcessors());
+      findTilePool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, String.format("SX.FindTile-%d", threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      log.trace("matchTemplate: tile pool started with %d threads", threads);
+    }
+    return findTilePool;
+  }
+
+  /**
+   * Imgproc.matchTemplate, but large bases are split into horizontal tiles,
+   * that overlap by the probe height - 1 and are matched in parallel<br>
+   * each tile writes its own rows of the one score matrix, so the result is the same as without tiles<br>
+   * if a tile fails, the other tiles are stopped and the base is searched without tiles,
+   * if interrupted, the other tiles are stopped and the result holds no match
+   *
+   * @param mBase   where to search
+   * @param mProbe  what to search
+   * @param mResult gets the score matrix
+   * @param method  an Imgproc.TM_... method
+   * @param mMask   null or the mask to be used with the probe
+   */
+  private void matchTemplate(final Mat mBase, final Mat mProbe, final Mat mResult, final int method, final Mat mMask) {
+    int resultRows = mBase.rows() - mProbe.rows() + 1;
+    int resultCols = mBase.cols() - mProbe.cols() + 1;
+    int tiles = Math.min(getTileThreads(), resultRows / Math.max(mProbe.rows(), 16));
+    if (tileMinPixels < 1 || mBase.total() < tileMinPixels || tiles < 2 || resultCols < 1) {
+      matchTemplateTile(mBase, mProbe, mResult, method, mMask);
+      return;
+    }
+    mResult.create(resultRows, resultCols, CvType.CV_32F);
+    final TileRuns tileRuns = new TileRuns();
+    ExecutorService pool = getFindTilePool(tiles);
+    for (int n = 0; n < tiles; n++) {
+      final int rowStart = n * resultRows / tiles;
+      final int rowEnd = (n + 1) * resultRows / tiles;
+      tileRuns.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          if (!tileRuns.begin()) {
+            return;
+          }
+          try {
+            Mat mTileBase = mBase.rowRange(rowStart, rowEnd + mProbe.rows() - 1);
+            Mat mTileResult = MatPool.get(rowEnd - rowStart, resultCols, CvType.CV_32F);
+            matchTemplateTile(mTileBase, mProbe, mTileResult, method, mMask);
+            mTileResult.copyTo(mResult.rowRange(rowStart, rowEnd));
+            MatPool.put(mTileResult);
+          } finally {
+            tileRuns.end();
+          }
+        }
+      }));
+    }
+    try {
+      tileRuns.waitAll();
+    } catch (InterruptedException e) {
+      tileRuns.stop();
+      log.trace("matchTemplate: interrupted - tiles stopped");
+      mResult.setTo(new Scalar(method == Imgproc.TM_SQDIFF_NORMED ? 1 : 0));
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      tileRuns.stop();
+      log.error("matchTemplate: tile: %s - searching without tiles", e.getCause());
+      matchTemplateTile(mBase, mProbe, mResult, method, mMask);
+    }
+  }
+
+  /**
+   * the tiles of one matchTemplate: stop() cancels the tiles not yet started
+   * and returns after the running tiles have written their rows
+   */
+  private static class TileRuns {
+    private final List<Future<?>> runs = new ArrayList<>();
+    private int running = 0;
+    private boolean stopped = false;
+
+    void add(Future<?> run) {
+      runs.add(run);
+    }
+
+    synchronized boolean begin() {
+      if (stopped) {
+        return false;
+      }
+      running++;
+      return true;
+    }
+
+    synchronized void end() {
+      running--;
+      notifyAll();
+    }
+
+    void waitAll() throws InterruptedException, ExecutionException {
+      for (Future<?> run : runs) {
+        run.get();
+      }
+    }
+
+    void stop() {
+      synchronized (this) {
+        stopped = true;
+      }
+      for (Future<?> run : runs) {
+        run.cancel(false);
+      }
+      boolean interrupted = false;
+      synchronized (this) {
+        while (running > 0) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void matchTemplateTile(Mat mBase, Mat mProbe, Mat mResult, int method, Mat mMask) {
+    if (SX.isNull(mMask)) {
+      Imgproc.matchTemplate(mBase, mProbe, mResult, method);
+    } else {
+      Imgproc.matchTemplate(mBase, mProbe, mResult, method, mMask);
+    }
+  }
+  //</editor-fold>
+
   private Mat matMulti(Mat mat, int channels) {
     if (mat.type() != CvType.CV_8UC1 || mat.channels() == channels) {
       return mat;
@@ -222,50 +1169,112 @@ public class Finder {
     for (int n = 0; n < channels; n++) {
       listMat.add(mat);
     }
-    Mat mResult = Element.getNewMat();
+    Mat mResult = MatPool.get(mat.rows(), mat.cols(), CvType.CV_8UC(channels));
     Core.merge(listMat, mResult);
     return mResult;
   }
 
-  private static class FindResult implements Iterator<Element> {
+  /**
+   * the outcome of one search: the accepted matches (best first), their score statistics
+   * and the msec per search level<br>
+   * it is evaluated completely when created and cannot be changed afterwards,
+   * so it can be handed over to other threads
+   */
+  public static final class FindResult {
+
+    private final List<Element> matches;
+    private final double[] scores;
+    private final long[] levelTimes;
+
+    private FindResult(long[] levelTimes) {
+      matches = Collections.emptyList();
+      scores = new double[]{0, 0, 0};
+      this.levelTimes = levelTimes;
+    }
+
+    private FindResult(Iterator<Element> found, FindType findType, long[] levelTimes) {
+      List<Element> matches = new ArrayList<>();
+      List<Double> scores = new ArrayList<>();
+      double bestScore = 0;
+      double meanScore = 0;
+      while (found.hasNext()) {
+        Element match = found.next();
+        meanScore = (meanScore * matches.size() + match.getScore()) / (matches.size() + 1);
+        bestScore = Math.max(bestScore, match.getScore());
+        matches.add(match);
+        scores.add(match.getScore());
+        if (FindType.ONE.equals(findType)) {
+          break;
+        }
+      }
+      this.matches = Collections.unmodifiableList(matches);
+      this.scores = new double[]{bestScore, meanScore, calcStdDev(scores, meanScore)};
+      this.levelTimes = levelTimes;
+    }
 
-    private static final SXLog log = SX.getSXLog("SX.FindResult");
+    public boolean hasMatch() {
+      return matches.size() > 0;
+    }
 
-    private FindResult() {
+    /**
+     * @return the best match or null if none
+     */
+    public Element getMatch() {
+      return hasMatch() ? matches.get(0) : null;
     }
 
-    public FindResult(Mat result, Element target) {
-      this.result = result;
-      this.target = target;
+    /**
+     * @return the matches (not modifiable)
+     */
+    public List<Element> getMatches() {
+      return matches;
     }
 
-    public FindResult(Mat result, Element target, int[] off) {
-      this(result, target);
-      offX = off[0];
-      offY = off[1];
+    /**
+     * @return best, mean and standard deviation of the match scores
+     */
+    public double[] getScores() {
+      return scores.clone();
     }
 
-    public String name = "";
-    //  public boolean success = false;
+    public long[] getLevelTimes() {
+      return levelTimes.clone();
+    }
+
+    private static double calcStdDev(List<Double> doubles, double mean) {
+      if (doubles.isEmpty()) {
+        return 0;
+      }
+      double stdDev = 0;
+      for (double doubleVal : doubles) {
+        stdDev += (doubleVal - mean) * (doubleVal - mean);
+      }
+      return Math.sqrt(stdDev / doubles.size());
+    }
+  }
+
+  /**
+   * walks through the given matches (best first) as long as they are acceptable for the target
+   */
+  private static class ResultIterator implements Iterator<Element> {
+
+    public ResultIterator(List<Element> matches, Element target) {
+      this.matches = matches;
+      this.target = target;
+    }
 
     private Element target = null;
-    private Mat result = null;
-    private Core.MinMaxLocResult resultMinMax = null;
-    private int offX = 0;
-    private int offY = 0;
+    private List<Element> matches = null;
+    private int matchIndex = 0;
 
-    private double currentScore = -1;
     double firstScore = -1;
     double scoreMaxDiff = 0.001;
 
-    private int currentX = -1;
-    private int currentY = -1;
-
     public boolean hasNext() {
-      resultMinMax = Core.minMaxLoc(result);
-      currentScore = resultMinMax.maxVal;
-      currentX = (int) resultMinMax.maxLoc.x;
-      currentY = (int) resultMinMax.maxLoc.y;
+      if (matchIndex >= matches.size()) {
+        return false;
+      }
+      double currentScore = matches.get(matchIndex).getScore();
       if (firstScore < 0) {
         firstScore = currentScore;
       }
@@ -278,64 +1287,12 @@ public class Finder {
     }
 
     public Element next() {
-      Element match = null;
       if (hasNext()) {
-        match = new Element(new Element(currentX + offX, currentY + offY, target.w, target.h), currentScore);
-        int margin = getPurgeMargin();
-        Range rangeX = new Range(Math.max(currentX - margin, 0), currentX + 1);
-        Range rangeY = new Range(Math.max(currentY - margin, 0), currentY + 1);
-        result.colRange(rangeX).rowRange(rangeY).setTo(new Scalar(0f));
-      }
-      return match;
-    }
-
-    private int getPurgeMargin() {
-      if (currentScore < 0.95) {
-        return 4;
-      } else if (currentScore < 0.85) {
-        return 8;
-      } else if (currentScore < 0.71) {
-        return 16;
-      }
-      return 2;
-    }
-
-    double bestScore = 0;
-    double meanScore = 0;
-    double stdDevScore = 0;
-
-    public List<Element> getMatches() {
-      if (hasNext()) {
-        List<Element> matches = new ArrayList<Element>();
-        List<Double> scores = new ArrayList<>();
-        while (true) {
-          Element match = next();
-          if (SX.isNull(match)) {
-            break;
-          }
-          meanScore = (meanScore * matches.size() + match.getScore()) / (matches.size() + 1);
-          bestScore = Math.max(bestScore, match.getScore());
-          matches.add(match);
-          scores.add(match.getScore());
-        }
-        stdDevScore = calcStdDev(scores, meanScore);
-        return matches;
+        return matches.get(matchIndex++);
       }
       return null;
     }
 
-    public double[] getScores() {
-      return new double[]{bestScore, meanScore, stdDevScore};
-    }
-
-    private double calcStdDev(List<Double> doubles, double mean) {
-      double stdDev = 0;
-      for (double doubleVal : doubles) {
-        stdDev += (doubleVal - mean) * (doubleVal - mean);
-      }
-      return Math.sqrt(stdDev / doubles.size());
-    }
-
     @Override
     public void remove() {
     }
@@ -343,86 +1300,124 @@ public class Finder {
   //</editor-fold>
 
   //<editor-fold desc="find extended">
+  private static ExecutorService findAnyPool = null;
+
+  /**
+   * the searches of findAny/findBest run on one shared pool of daemon threads<br>
+   * size: Settings.FindAnyThreads (0 = number of available processors)
+   *
+   * @return the pool
+   */
+  private static synchronized ExecutorService getFindAnyPool() {
+    if (SX.isNull(findAnyPool)) {
+      int threads = (int) SX.getOptionNumber("Settings.FindAnyThreads", 0);
+      if (threads < 1) {
+        threads = Runtime.getRuntime().availableProcessors();
+      }
+      findAnyPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, String.format("SX.FindAny-%d", threadCount++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      log.trace("findAny: pool started with %d threads", threads);
+    }
+    return findAnyPool;
+  }
+
   public List<Element> findAny(List<Picture> targets) {
-    base.resetMatches();
-    int targetCount = 0;
+    return findAny(targets, false);
+  }
+
+  /**
+   * search all given targets in parallel
+   *
+   * @param targets   the images to look for (null entries are skipped)
+   * @param firstOnly true: stop with the first target found, the remaining searches are cancelled
+   * @return a list in the order of the targets: the match or an invalid Element if not found (null for null targets)
+   */
+  public List<Element> findAny(List<Picture> targets, boolean firstOnly) {
     if (SX.isNull(targets)) {
+      base.resetMatches();
       return null;
-    } else {
-      targetCount = targets.size();
     }
+    int targetCount = targets.size();
     List<Element> matches = new ArrayList<>();
-    SubFindRun[] theSubs = new SubFindRun[targetCount];
-    int nobj = 0;
-    for (Element target : targets) {
+    CompletionService<Element> findAnyService = new ExecutorCompletionService<>(getFindAnyPool());
+    Map<Future<Element>, Integer> subs = new HashMap<>();
+    for (int nobj = 0; nobj < targetCount; nobj++) {
       matches.add(null);
-      theSubs[nobj] = null;
+      Element target = targets.get(nobj);
       if (target != null) {
-        theSubs[nobj] = new SubFindRun(matches, nobj, target);
-        new Thread(theSubs[nobj]).start();
+        subs.put(findAnyService.submit(new SubFindRun(nobj, target)), nobj);
       }
-      nobj++;
     }
-    log.trace("findAnyCollect: waiting for (%d) SubFindRuns", targetCount);
-    nobj = 0;
-    boolean all = false;
-    while (!all) {
-      all = true;
-      int waitCount = targetCount;
-      for (SubFindRun sub : theSubs) {
-        if (sub.hasFinished()) {
-          waitCount -= 1;
-        }
-        all &= sub.hasFinished();
+    log.trace("findAny: waiting for (%d) SubFindRuns", subs.size());
+    long begin_t = new Date().getTime();
+    while (subs.size() > 0) {
+      Future<Element> sub;
+      try {
+        sub = findAnyService.take();
+      } catch (InterruptedException e) {
+        log.error("findAny: interrupted while waiting");
+        break;
+      }
+      int subN = subs.remove(sub);
+      Element match = new Element();
+      try {
+        match = sub.get();
+      } catch (CancellationException e) {
+      } catch (InterruptedException | ExecutionException e) {
+        log.error("findAny: SubFindRun %d: %s", subN, e.getCause());
+      }
+      matches.set(subN, match);
+      if (firstOnly && match.isMatch()) {
+        log.trace("findAny: first: %d found - cancel remaining %d", subN, subs.size());
+        break;
       }
-      SX.pause((waitCount * 10) / 1000);
     }
-    log.trace("findAnyCollect: SubFindRuns finished");
-    nobj = 0;
+    for (Future<Element> sub : subs.keySet()) {
+      sub.cancel(true);
+      matches.set(subs.get(sub), new Element());
+    }
+    log.trace("findAny: SubFindRuns finished %d msec", new Date().getTime() - begin_t);
+    int nobj = 0;
     for (Element match : matches) {
       if (match != null) {
         match.setMatchIndex(nobj);
       }
       nobj++;
     }
-    base.setLastMatches(matches);
+    base.setLastMatches(null, matches, null);
     return matches;
   }
 
-  private class SubFindRun implements Runnable {
+  private class SubFindRun implements Callable<Element> {
 
-    List<Element> matches;
-    boolean finished = false;
     int subN;
     Element target;
 
-    public SubFindRun(List<Element> matches, int pSubN, Element target) {
+    public SubFindRun(int pSubN, Element target) {
       subN = pSubN;
-      this.matches = matches;
       this.target = target;
     }
 
     @Override
-    public void run() {
+    public Element call() {
       Element match = new Element();
+      if (Thread.currentThread().isInterrupted()) {
+        return match;
+      }
       FindResult findResult = doFind(target, FindType.ONE);
-      if (SX.isNotNull(findResult) && findResult.hasNext()) {
-        match = findResult.next();
+      if (findResult.hasMatch()) {
+        match = findResult.getMatch();
       }
-      matches.set(subN, match);
       log.trace("SubFindRun: %d finished", subN);
-      hasFinished(true);
-    }
-
-    public boolean hasFinished() {
-      return hasFinished(false);
-    }
-
-    public synchronized boolean hasFinished(boolean state) {
-      if (state) {
-        finished = true;
-      }
-      return finished;
+      return match;
     }
   }
   //</editor-fold>
@@ -489,36 +1484,22 @@ public class Finder {
     return mat.type() == colored || mat.type() == transparent;
   }
 
+  private static ChangeDetector changeDetector = null;
+
+  /**
+   * the changed areas between two frames of the same size (see ChangeDetector)
+   *
+   * @param base     the frame before
+   * @param mChanged the frame after
+   * @return the bounding rectangles of the changed areas (might be empty)
+   */
   public static List<Element> detectChanges(Mat base, Mat mChanged) {
-    int PIXEL_DIFF_THRESHOLD = 3;
-    int IMAGE_DIFF_THRESHOLD = 5;
-    Mat mBaseGray = Element.getNewMat();
-    Mat mChangedGray = Element.getNewMat();
-    Mat mDiffAbs = Element.getNewMat();
-    Mat mDiffTresh = Element.getNewMat();
-    Mat mChanges = Element.getNewMat();
-    List<Element> rectangles = new ArrayList<>();
-
-    Imgproc.cvtColor(base, mBaseGray, toGray);
-    Imgproc.cvtColor(mChanged, mChangedGray, toGray);
-    Core.absdiff(mBaseGray, mChangedGray, mDiffAbs);
-    Imgproc.threshold(mDiffAbs, mDiffTresh, PIXEL_DIFF_THRESHOLD, 0.0, Imgproc.THRESH_TOZERO);
-    if (Core.countNonZero(mDiffTresh) > IMAGE_DIFF_THRESHOLD) {
-      Imgproc.threshold(mDiffAbs, mDiffAbs, PIXEL_DIFF_THRESHOLD, 255, Imgproc.THRESH_BINARY);
-      Imgproc.dilate(mDiffAbs, mDiffAbs, Element.getNewMat());
-      Mat se = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
-      Imgproc.morphologyEx(mDiffAbs, mDiffAbs, Imgproc.MORPH_CLOSE, se);
-
-      List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-      Mat mHierarchy = Element.getNewMat();
-      Imgproc.findContours(mDiffAbs, contours, mHierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
-      rectangles = contoursToRectangle(contours);
-
-      Core.subtract(mDiffAbs, mDiffAbs, mChanges);
-      Imgproc.drawContours(mChanges, contours, -1, new Scalar(255));
-      //logShow(mDiffAbs);
-    }
-    return rectangles;
+    synchronized (Finder.class) {
+      if (SX.isNull(changeDetector)) {
+        changeDetector = new ChangeDetector();
+      }
+    }
+    return changeDetector.detect(base, mChanged);
   }
 
   public static List<MatOfPoint> getContours(Mat mBase, boolean external) {
@@ -729,6 +1710,7 @@ public class Finder {
   public static final String FIND = "find()";
   public static final String BEST = "findBest()";
   public static final String ANY = "findAny()";
+  public static final String FIRST = "findFirst()";
   public static final String WAIT = "wait()";
   public static final String EXISTS = "exists()";
   static final String VANISH = "waitVanish()";
@@ -759,6 +1741,7 @@ public class Finder {
         }
       }
     }
+    possibleMatch.release();
     return match;
   }
 
@@ -799,6 +1782,7 @@ public class Finder {
         }
       }
     }
+    possibleMatch.release();
     return match;
   }
 
@@ -831,6 +1815,7 @@ public class Finder {
         }
       }
     }
+    possibleMatch.release();
     return vanished;
   }
 
@@ -851,6 +1836,7 @@ public class Finder {
         }
       }
     }
+    possibleMatch.release();
     return matches;
   }
 
@@ -867,8 +1853,18 @@ public class Finder {
     return runFindAny(ANY, args);
   }
 
+  public static Element runFindFirst(Object... args) {
+    List<Element> matches = runFindAny(FIRST, args);
+    for (Element match : matches) {
+      if (SX.isNotNull(match) && match.isMatch()) {
+        return match;
+      }
+    }
+    return null;
+  }
+
   private static List<Element> runFindAny(String type, Object... args) {
-    PossibleMatch possibleMatch = new PossibleMatch(PossibleMatch.Type.ANY);
+    PossibleMatch possibleMatch = new PossibleMatch(FIRST.equals(type) ? PossibleMatch.Type.FIRST : PossibleMatch.Type.ANY);
     boolean shouldRepeat = true;
     List<Element> matches = new ArrayList<>();
     while (shouldRepeat) {
@@ -903,6 +1899,7 @@ public class Finder {
         }
       }
     }
+    possibleMatch.release();
     return matches;
   }
 //</editor-fold>
@@ -927,12 +1924,13 @@ public class Finder {
     Element target = new Element();
 
     public static enum Type {
-      FIND, WAIT, ALL, ANY, OBSERVE, DEVICE
+      FIND, WAIT, ALL, ANY, FIRST, OBSERVE, DEVICE
     }
 
     Type type = Type.FIND;
 
     Finder finder = null;
+    boolean ownFinder = false;
     long startTime = new Date().getTime();
     long endTime = startTime;
     long lastRepeatTime = 0;
@@ -1008,7 +2006,7 @@ public class Finder {
       log.trace(form, args);
       if (args.length > 0 && SX.isNotNull(args[0])) {
         args0 = args[0];
-        if (Type.ANY.equals(type)) {
+        if (Type.ANY.equals(type) || Type.FIRST.equals(type)) {
           if (whatsGiven.getClass().isAssignableFrom(args0.getClass())) {
             isListWhat = true;
             what = new Element();
@@ -1078,10 +2076,18 @@ public class Finder {
             if (SX.isNull(where)) {
               where = Do.on();
             }
-            if (where.isOnScreen()) {
-              where.capture();
+            release();
+            finder = where.getFrozenFinder();
+            if (SX.isNull(finder)) {
+              if (where.isOnScreen()) {
+                where.capture();
+              }
+              finder = new Finder(where);
+              ownFinder = true;
+            }
+            if (!Type.ANY.equals(type) && !Type.FIRST.equals(type)) {
+              finder.setIncremental(SX.isOption("Settings.WaitIncremental", true));
             }
-            finder = new Finder(where);
             where.setLastTarget(null);
             if (finder.isValid()) {
               where.setLastTarget(what);
@@ -1097,6 +2103,8 @@ public class Finder {
                 finder.findAll(what);
               } else if (Type.ANY.equals(type)) {
                 finder.findAny(whats);
+              } else if (Type.FIRST.equals(type)) {
+                finder.findAny(whats, true);
               }
             }
           } else {
@@ -1121,7 +2129,7 @@ public class Finder {
       log.trace("EvaluateTarget: repeat: delayed: %d", repeatDelay);
       lastRepeatTime = new Date().getTime();
       if (new Date().getTime() < endTime) {
-        if (where.isOnScreen()) {
+        if (where.isOnScreen() && !where.isFrozen()) {
           where.capture();
           finder.refreshBase();
         }
@@ -1138,6 +2146,14 @@ public class Finder {
       }
     }
 
+    // the Mats of a Finder made here go back to the pool (a frozen element keeps its Finder)
+    void release() {
+      if (ownFinder && SX.isNotNull(finder)) {
+        finder.release();
+      }
+      ownFinder = false;
+    }
+
     public boolean shouldWait() {
       if (waitTime < 0) {
         return false;
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2017 - sikulix.com - MIT license
+ */
+
+package com.sikulix.core;
+
+import com.sikulix.api.Element;
+import org.opencv.core.Mat;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * where images were found before: a persistent store of search hints<br>
+ * per image (content hash) and base (geometry on the device) it keeps the locations (relative to the base),
+ * where the image was found, with a count and the time of the last hit<br>
+ * kept in SXSTORE/LastSeen.txt, shared by all processes (merged on save), bounded by Settings.LastSeenMaxEntries
+ */
+public class LastSeen {
+
+  private static final SXLog log = SX.getSXLog("SX.LastSeen");
+
+  private static final String storeName = "LastSeen.txt";
+  private static final int maxLocations = 3;
+
+  private static Map<String, Entry> entries = null;
+  private static boolean dirty = false;
+  private static boolean cleared = false;
+  private static boolean savePending = false;
+  private static long lastSave = 0;
+  private static File storeFile = null;
+  private static final Object saveLock = new Object();
+
+  private LastSeen() {
+  }
+
+  private static class Location {
+    int x;
+    int y;
+    int count;
+    long time;
+
+    Location(int x, int y, int count, long time) {
+      this.x = x;
+      this.y = y;
+      this.count = count;
+      this.time = time;
+    }
+  }
+
+  private static class Entry {
+    long time = 0;
+    List<Location> locations = new ArrayList<>();
+
+    void add(Location location) {
+      for (Location known : locations) {
+        if (known.x == location.x && known.y == location.y) {
+          known.count = Math.max(known.count, location.count);
+          known.time = Math.max(known.time, location.time);
+          time = Math.max(time, known.time);
+          return;
+        }
+      }
+      locations.add(location);
+      time = Math.max(time, location.time);
+      sort();
+    }
+
+    void sort() {
+      Collections.sort(locations, new Comparator<Location>() {
+        @Override
+        public int compare(Location l1, Location l2) {
+          if (l1.count != l2.count) {
+            return l2.count - l1.count;
+          }
+          return Long.compare(l2.time, l1.time);
+        }
+      });
+      while (locations.size() > maxLocations) {
+        locations.remove(locations.size() - 1);
+      }
+    }
+  }
+
+  //<editor-fold desc="key">
+
+  /**
+   * the key for a target searched in a base: content hash of the target plus the geometry of the base<br>
+   * the hash is made once per target content (kept with the target)
+   *
+   * @param target the image
+   * @param base   where it is searched
+   * @return the key or null, if the target has no content
+   */
+  public static String getKey(Element target, Element base) {
+    if (!target.hasContent()) {
+      return null;
+    }
+    String hash = target.getContentHash();
+    if (SX.isNull(hash)) {
+      hash = getHash(target);
+      if (SX.isNull(hash)) {
+        return null;
+      }
+      target.setContentHash(hash);
+    }
+    return String.format("%s@%d,%d,%dx%d", hash, base.x, base.y, base.w, base.h);
+  }
+
+  private static String getHash(Element target) {
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      md5.update(getBytes(target.getContentBGR()));
+      if (target.hasMask()) {
+        md5.update(getBytes(target.getMask()));
+      }
+      StringBuilder hash = new StringBuilder();
+      for (byte digit : md5.digest()) {
+        hash.append(String.format("%02x", digit));
+      }
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      log.error("getHash: %s", e.getMessage());
+    }
+    return null;
+  }
+
+  private static byte[] getBytes(Mat mat) {
+    if (!mat.isContinuous()) {
+      mat = mat.clone();
+    }
+    byte[] bytes = new byte[(int) (mat.total() * mat.channels()) + 12];
+    mat.get(0, 0, bytes);
+    int pos = bytes.length - 12;
+    for (int value : new int[]{mat.cols(), mat.rows(), mat.type()}) {
+      bytes[pos++] = (byte) (value >> 24);
+      bytes[pos++] = (byte) (value >> 16);
+      bytes[pos++] = (byte) (value >> 8);
+      bytes[pos++] = (byte) value;
+    }
+    return bytes;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="get, add">
+
+  /**
+   * @param key as from getKey
+   * @return the locations {x, y} relative to the base, most often seen first (empty if none)
+   */
+  public static List<int[]> get(String key) {
+    List<int[]> hints = new ArrayList<>();
+    if (SX.isNull(key)) {
+      return hints;
+    }
+    synchronized (LastSeen.class) {
+      Entry entry = getEntries().get(key);
+      if (SX.isNotNull(entry)) {
+        for (Location location : entry.locations) {
+          hints.add(new int[]{location.x, location.y});
+        }
+      }
+    }
+    return hints;
+  }
+
+  /**
+   * count a hit at the given location
+   *
+   * @param key as from getKey
+   * @param x   relative to the base
+   * @param y   relative to the base
+   */
+  public static void add(String key, int x, int y) {
+    if (SX.isNull(key)) {
+      return;
+    }
+    boolean shouldSave;
+    synchronized (LastSeen.class) {
+      Map<String, Entry> entries = getEntries();
+      Entry entry = entries.get(key);
+      if (SX.isNull(entry)) {
+        entry = new Entry();
+        entries.put(key, entry);
+      }
+      long now = new Date().getTime();
+      Location hit = null;
+      for (Location location : entry.locations) {
+        if (location.x == x && location.y == y) {
+          hit = location;
+          break;
+        }
+      }
+      if (SX.isNull(hit)) {
+        hit = new Location(x, y, 0, now);
+        entry.locations.add(hit);
+      }
+      hit.count++;
+      hit.time = now;
+      entry.time = now;
+      entry.sort();
+      evict(entries);
+      dirty = true;
+      shouldSave = !savePending && SX.isNotNull(storeFile)
+              && now - lastSave > 1000 * SX.getOptionNumber("Settings.LastSeenSaveInterval", 10);
+      savePending |= shouldSave;
+    }
+    if (shouldSave) {
+      saveLater();
+    }
+  }
+
+  // the find does not wait for the file
+  private static void saveLater() {
+    Thread saver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          save();
+        } finally {
+          synchronized (LastSeen.class) {
+            savePending = false;
+          }
+        }
+      }
+    }, "SX.LastSeen-save");
+    saver.setDaemon(true);
+    saver.start();
+  }
+
+  /**
+   * forget all locations: the store is replaced with the next save (not merged)
+   */
+  public static void clear() {
+    synchronized (LastSeen.class) {
+      getEntries();
+      entries = new HashMap<>();
+      dirty = true;
+      cleared = true;
+    }
+  }
+
+  public static int size() {
+    synchronized (LastSeen.class) {
+      return getEntries().size();
+    }
+  }
+
+  private static void evict(Map<String, Entry> entries) {
+    int maxEntries = (int) SX.getOptionNumber("Settings.LastSeenMaxEntries", 2000);
+    if (entries.size() <= maxEntries) {
+      return;
+    }
+    List<Map.Entry<String, Entry>> byTime = new ArrayList<>(entries.entrySet());
+    Collections.sort(byTime, new Comparator<Map.Entry<String, Entry>>() {
+      @Override
+      public int compare(Map.Entry<String, Entry> e1, Map.Entry<String, Entry> e2) {
+        return Long.compare(e1.getValue().time, e2.getValue().time);
+      }
+    });
+    for (int n = 0; n < byTime.size() - maxEntries; n++) {
+      entries.remove(byTime.get(n).getKey());
+    }
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="load, save">
+  private static Map<String, Entry> getEntries() {
+    if (SX.isNull(entries)) {
+      entries = new HashMap<>();
+      if (isPersistent()) {
+        storeFile = new File(SX.getSXSTORE(), storeName);
+        if (storeFile.exists()) {
+          entries = load();
+        }
+        lastSave = new Date().getTime();
+        log.trace("load: %d entries from %s", entries.size(), storeFile);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          @Override
+          public void run() {
+            save();
+          }
+        });
+      }
+    }
+    return entries;
+  }
+
+  // shared lock: a save of another process is not read half written
+  private static Map<String, Entry> load() {
+    RandomAccessFile store = null;
+    FileLock lock = null;
+    try {
+      store = new RandomAccessFile(storeFile, "r");
+      lock = store.getChannel().lock(0, Long.MAX_VALUE, true);
+      byte[] content = new byte[(int) store.length()];
+      store.readFully(content);
+      return read(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      log.error("load: %s: %s", storeFile, e.getMessage());
+    } finally {
+      try {
+        if (SX.isNotNull(lock)) {
+          lock.release();
+        }
+        if (SX.isNotNull(store)) {
+          store.close();
+        }
+      } catch (IOException e) {
+      }
+    }
+    return new HashMap<>();
+  }
+
+  private static boolean isPersistent() {
+    return SX.isOption("Settings.LastSeenStore", true);
+  }
+
+  /**
+   * write the store, if something changed (done in the background while finding and at exit)<br>
+   * the file is locked while it is read, merged with the entries of this process and written back
+   */
+  public static void save() {
+    synchronized (saveLock) {
+      saveStore();
+    }
+  }
+
+  private static void saveStore() {
+    Map<String, Entry> snapshot;
+    boolean replace;
+    synchronized (LastSeen.class) {
+      if (!dirty || SX.isNull(storeFile)) {
+        return;
+      }
+      snapshot = copy(entries);
+      dirty = false;
+      replace = cleared;
+      cleared = false;
+      lastSave = new Date().getTime();
+    }
+    RandomAccessFile store = null;
+    FileLock lock = null;
+    try {
+      store = new RandomAccessFile(storeFile, "rw");
+      FileChannel channel = store.getChannel();
+      lock = channel.lock();
+      Map<String, Entry> merged = new HashMap<>();
+      if (!replace) {
+        byte[] content = new byte[(int) store.length()];
+        store.readFully(content);
+        merged = read(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+      }
+      for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+        Entry known = merged.get(entry.getKey());
+        if (SX.isNull(known)) {
+          merged.put(entry.getKey(), entry.getValue());
+        } else {
+          for (Location location : entry.getValue().locations) {
+            known.add(location);
+          }
+        }
+      }
+      evict(merged);
+      byte[] text = write(merged).getBytes(StandardCharsets.UTF_8);
+      store.setLength(0);
+      store.write(text);
+      log.trace("save: %d entries to %s", merged.size(), storeFile);
+    } catch (IOException e) {
+      log.error("save: %s: %s", storeFile, e.getMessage());
+    } finally {
+      try {
+        if (SX.isNotNull(lock)) {
+          lock.release();
+        }
+        if (SX.isNotNull(store)) {
+          store.close();
+        }
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private static Map<String, Entry> copy(Map<String, Entry> entries) {
+    Map<String, Entry> copy = new HashMap<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      Entry entryCopy = new Entry();
+      for (Location location : entry.getValue().locations) {
+        entryCopy.add(new Location(location.x, location.y, location.count, location.time));
+      }
+      copy.put(entry.getKey(), entryCopy);
+    }
+    return copy;
+  }
+
+  // one line per entry: key x,y,count,time x,y,count,time ...
+  private static Map<String, Entry> read(Reader reader) throws IOException {
+    Map<String, Entry> entries = new HashMap<>();
+    BufferedReader lines = new BufferedReader(reader);
+    String line;
+    while (SX.isNotNull(line = lines.readLine())) {
+      String[] parts = line.trim().split(" ");
+      if (parts.length < 2) {
+        continue;
+      }
+      Entry entry = new Entry();
+      for (int n = 1; n < parts.length; n++) {
+        String[] values = parts[n].split(",");
+        if (values.length != 4) {
+          continue;
+        }
+        try {
+          entry.add(new Location(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                  Integer.parseInt(values[2]), Long.parseLong(values[3])));
+        } catch (NumberFormatException e) {
+        }
+      }
+      if (entry.locations.size() > 0) {
+        entries.put(parts[0], entry);
+      }
+    }
+    return entries;
+  }
+
+  private static String write(Map<String, Entry> entries) {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      text.append(entry.getKey());
+      for (Location location : entry.getValue().locations) {
+        text.append(String.format(" %d,%d,%d,%d", location.x, location.y, location.count, location.time));
+      }
+      text.append("\n");
+    }
+    return text.toString();
+  }
+  //</editor-fold>
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2017 - sikulix.com - MIT license
+ */
+
+package com.sikulix.core;
+
+import com.sikulix.api.Element;
+import org.opencv.core.Mat;
+
+import java.util.*;
+
+/**
+ * scratch Mats for the capture/find path: the native memory of a Mat is only freed,
+ * when the Java object is finalized by GC - so scratch Mats are released explicitly
+ * and Mats of the same size and type are reused<br>
+ * the pool is bounded by Settings.MatPoolSize (MB), Mats beyond are released<br>
+ * the counters (getStats) allow to check, that long running scripts come to a steady state
+ */
+public class MatPool {
+
+  private static final SXLog log = SX.getSXLog("SX.MatPool");
+
+  private static final Map<String, Deque<Mat>> pool = new HashMap<>();
+  private static long poolBytes = 0;
+
+  private static long allocated = 0;
+  private static long allocatedBytes = 0;
+  private static long reused = 0;
+  private static long released = 0;
+  private static long releasedBytes = 0;
+  private static long pooled = 0;
+
+  private MatPool() {
+  }
+
+  private static String getKey(int rows, int cols, int type) {
+    return String.format("%dx%d/%d", cols, rows, type);
+  }
+
+  private static long getBytes(Mat mat) {
+    return mat.total() * mat.elemSize();
+  }
+
+  private static long getMaxBytes() {
+    return (long) (SX.getOptionNumber("Settings.MatPoolSize", 64) * 1024 * 1024);
+  }
+
+  //<editor-fold desc="get, put, release">
+
+  /**
+   * a Mat with the given size and type (content undefined) - from the pool if possible
+   *
+   * @param rows number of rows
+   * @param cols number of columns
+   * @param type a CvType
+   * @return the Mat - to be given back with put or release
+   */
+  public static Mat get(int rows, int cols, int type) {
+    synchronized (pool) {
+      Deque<Mat> free = pool.get(getKey(rows, cols, type));
+      if (SX.isNotNull(free) && !free.isEmpty()) {
+        Mat mat = free.pop();
+        poolBytes -= getBytes(mat);
+        reused++;
+        return mat;
+      }
+    }
+    Mat mat = Element.getNewMat();
+    mat.create(rows, cols, type);
+    synchronized (pool) {
+      allocated++;
+      allocatedBytes += getBytes(mat);
+    }
+    return mat;
+  }
+
+  /**
+   * give Mats back to the pool for reuse (released, if the pool is full)<br>
+   * the Mats must not be used anymore by the caller (submats are released only)
+   *
+   * @param mats the Mats (null and empty Mats are ignored)
+   */
+  public static void put(Mat... mats) {
+    for (Mat mat : mats) {
+      if (SX.isNull(mat) || mat.empty()) {
+        continue;
+      }
+      if (mat.isSubmatrix()) {
+        mat.release();
+        continue;
+      }
+      long bytes = getBytes(mat);
+      synchronized (pool) {
+        if (poolBytes + bytes <= getMaxBytes()) {
+          String key = getKey(mat.rows(), mat.cols(), mat.type());
+          Deque<Mat> free = pool.get(key);
+          if (SX.isNull(free)) {
+            free = new ArrayDeque<>();
+            pool.put(key, free);
+          }
+          free.push(mat);
+          poolBytes += bytes;
+          pooled++;
+          continue;
+        }
+      }
+      release(mat);
+    }
+  }
+
+  /**
+   * free the native memory of Mats now
+   *
+   * @param mats the Mats (null and empty Mats are ignored)
+   */
+  public static void release(Mat... mats) {
+    for (Mat mat : mats) {
+      if (SX.isNull(mat) || mat.empty()) {
+        continue;
+      }
+      if (!mat.isSubmatrix()) {
+        synchronized (pool) {
+          released++;
+          releasedBytes += getBytes(mat);
+        }
+      }
+      mat.release();
+    }
+  }
+
+  /**
+   * release all pooled Mats
+   */
+  public static void clear() {
+    List<Mat> mats = new ArrayList<>();
+    synchronized (pool) {
+      for (Deque<Mat> free : pool.values()) {
+        mats.addAll(free);
+      }
+      pool.clear();
+      poolBytes = 0;
+    }
+    release(mats.toArray(new Mat[0]));
+    log.trace("clear: %d Mats released", mats.size());
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="stats">
+
+  /**
+   * @return {allocated, allocated bytes, reused, released, released bytes, given back to pool, pooled bytes}
+   */
+  public static long[] getStats() {
+    synchronized (pool) {
+      return new long[]{allocated, allocatedBytes, reused, released, releasedBytes, pooled, poolBytes};
+    }
+  }
+
+  public static String getStatsString() {
+    long[] stats = getStats();
+    return String.format("MatPool: allocated %d (%d MB) reused %d released %d (%d MB) pooled %d MB",
+            stats[0], stats[1] / 1024 / 1024, stats[2], stats[3], stats[4] / 1024 / 1024, stats[6] / 1024 / 1024);
+  }
+  //</editor-fold>
+}
@@ -4,21 +4,43 @@
 
 package com.sikulix.core;
 
+import com.sikulix.api.Element;
 import com.sikulix.api.Picture;
-import net.sourceforge.tess4j.Tesseract1;
-import net.sourceforge.tess4j.TesseractException;
+import com.sun.jna.Pointer;
+import net.sourceforge.tess4j.ITessAPI;
+import net.sourceforge.tess4j.TessAPI1;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
 
+import java.awt.Rectangle;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Implements all text search and OCR features using Tesseract via Tess4J
+ * Implements all text search and OCR features using Tesseract via Tess4J<br>
+ * the pixels are given to Tesseract directly from the Mat (gray 8 bit, only the area containing the regions to read),
+ * several regions are read with one engine and image, words are returned with their bounding rectangles and confidence<br>
+ * a TextFinder only holds the settings (datapath, language, page segmentation mode, variables):
+ * the OCR is done by an initialized Tesseract engine borrowed from a pool per settings
+ * and given back afterwards (an engine is used by one thread at a time)<br>
+ * at most Settings.TextEngines engines per settings (0 = number of processors),
+ * Settings.TextWarmUp engines are initialized in the background, when the settings are first used
  */
 public class TextFinder {
 
   private static final SXLog log = SX.getSXLog("SX.TextFinder");
 
-  private Tesseract1 tess = null;
   private String datapath = SX.getSXSYSAPPDATA() + "/Sikulix/SikulixTesseract";
+  private String language = SX.getOption("Settings.OcrLanguage", "eng");
+  private int pageSegMode = ITessAPI.TessPageSegMode.PSM_AUTO;
+  private final Map<String, String> variables = new TreeMap<>();
   private boolean valid = false;
 
   public TextFinder() {
@@ -31,17 +53,19 @@ public class TextFinder {
   }
 
   private void init() {
-    tess = new Tesseract1();
     valid = setTessdata();
     if (valid) {
       log.trace("init: tessdata = %s", datapath);
+      int warmUp = (int) SX.getOptionNumber("Settings.TextWarmUp", 0);
+      if (warmUp > 0) {
+        getPool().warmUpInBackground(warmUp);
+      }
     }
   }
 
   private boolean setTessdata() {
     File tessdata = new File(datapath, "tessdata");
     if (tessdata.exists()) {
-      tess.setDatapath(datapath);
       return true;
     } else  {
       log.error("init: tessdata not found: %s", tessdata);
@@ -53,17 +77,492 @@ public class TextFinder {
     return valid;
   }
 
+  //<editor-fold desc="settings">
+  public void setLanguage(String language) {
+    this.language = language;
+  }
+
+  public String getLanguage() {
+    return language;
+  }
+
+  /**
+   * @param pageSegMode one of ITessAPI.TessPageSegMode
+   */
+  public void setPageSegMode(int pageSegMode) {
+    this.pageSegMode = pageSegMode;
+  }
+
+  public int getPageSegMode() {
+    return pageSegMode;
+  }
+
+  /**
+   * @param name  a Tesseract variable (e.g. tessedit_char_whitelist)
+   * @param value its value
+   */
+  public void setVariable(String name, String value) {
+    variables.put(name, value);
+  }
+
+  private String getKey() {
+    return String.format("%s|%s|%d|%s", datapath, language, pageSegMode, variables);
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="read">
   public String read(Picture picture) {
-    if (valid) {
+    return read(picture.getContent());
+  }
+
+  /**
+   * @param mat gray (8 bit), BGR or BGRA - a submat is read in place
+   * @return the text or "did not work"
+   */
+  public String read(Mat mat) {
+    List<String> texts = read(mat, null);
+    return texts.isEmpty() ? "did not work" : texts.get(0);
+  }
+
+  /**
+   * the regions are read one after the other with the same engine and image
+   *
+   * @param mat     gray (8 bit), BGR or BGRA
+   * @param regions rectangles in the mat (null: the whole mat)
+   * @return the text per region (empty if it did not work)
+   */
+  public List<String> read(Mat mat, List<Rectangle> regions) {
+    final List<String> texts = new ArrayList<>();
+    withEngine(mat, regions, new EngineTask() {
+      @Override
+      public void run(Engine engine) {
+        texts.add(engine.getText());
+      }
+    });
+    return texts;
+  }
+
+  /**
+   * the words in the regions with their bounding rectangles (in the mat) and their confidence as score (0 ... 1),
+   * the text is the name of the element
+   *
+   * @param mat     gray (8 bit), BGR or BGRA
+   * @param regions rectangles in the mat (null: the whole mat)
+   * @return the words in reading order
+   */
+  public List<Element> getWords(Mat mat, List<Rectangle> regions) {
+    final List<Element> words = new ArrayList<>();
+    withEngine(mat, regions, new EngineTask() {
+      @Override
+      public void run(Engine engine) {
+        words.addAll(engine.getWords());
+      }
+    });
+    return words;
+  }
+
+  private interface EngineTask {
+    void run(Engine engine);
+  }
+
+  // borrows an engine, gives it the gray pixels of the area containing the regions once and runs the task per region
+  private void withEngine(Mat mat, List<Rectangle> regions, EngineTask task) {
+    if (!valid) {
+      log.error("read: TextFinder not valid");
+      return;
+    }
+    if (SX.isNull(mat) || mat.empty()) {
+      log.error("read: no content");
+      return;
+    }
+    Rectangle area = new Rectangle(0, 0, mat.cols(), mat.rows());
+    if (SX.isNotNull(regions) && !regions.isEmpty()) {
+      Rectangle union = regions.get(0);
+      for (Rectangle region : regions) {
+        union = union.union(region);
+      }
+      area = area.intersection(union);
+      if (area.isEmpty()) {
+        log.error("read: regions outside: %s", regions);
+        return;
+      }
+    }
+    Mat mArea = mat;
+    if (area.width < mat.cols() || area.height < mat.rows()) {
+      mArea = mat.submat(new Rect(area.x, area.y, area.width, area.height));
+    }
+    Mat mGray = mArea;
+    if (mArea.type() != CvType.CV_8UC1) {
+      mGray = MatPool.get(area.height, area.width, CvType.CV_8UC1);
+      Imgproc.cvtColor(mArea, mGray, mArea.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+    }
+    EnginePool pool = getPool();
+    Engine engine = pool.borrow();
+    if (SX.isNull(engine)) {
+      log.error("read: no engine available (%s)", Thread.currentThread().isInterrupted() ?
+              "interrupted while waiting" : pool.isDisposed() ? "disposed while waiting" : "init failed");
+    } else {
       try {
-        return tess.doOCR(picture.get());
-      } catch (TesseractException e) {
+        engine.setImage(mGray, area.getLocation());
+        if (SX.isNull(regions)) {
+          task.run(engine);
+        } else {
+          for (Rectangle region : regions) {
+            engine.setRegion(region);
+            task.run(engine);
+          }
+        }
+      } catch (Exception e) {
         log.error("read: %s", e.getMessage());
+      } finally {
+        engine.clear();
+        pool.giveBack(engine);
       }
-    } else {
-      log.error("read: TextFinder not valid");
     }
-    return "did not work";
+    if (mGray != mArea) {
+      MatPool.put(mGray);
+    }
+    if (mArea != mat) {
+      mArea.release();
+    }
+  }
+  //</editor-fold>
+
+  /**
+   * initializes engines for the settings of this TextFinder in parallel (e.g. at startup),
+   * so the first reads do not have to wait for the tessdata being loaded
+   *
+   * @param engines how many engines should be ready (at most Settings.TextEngines)
+   * @return the number of engines ready now
+   */
+  public int warmUp(int engines) {
+    if (!valid) {
+      return 0;
+    }
+    return getPool().warmUp(engines);
+  }
+
+  //<editor-fold desc="engine pool">
+  private static final Map<String, EnginePool> pools = new HashMap<>();
+
+  private EnginePool getPool() {
+    String key = getKey();
+    synchronized (pools) {
+      EnginePool pool = pools.get(key);
+      if (SX.isNull(pool)) {
+        pool = new EnginePool(datapath, language, pageSegMode, new TreeMap<>(variables));
+        pools.put(key, pool);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * ends all idle engines (engines currently borrowed are ended, when given back)
+   */
+  public static void dispose() {
+    synchronized (pools) {
+      for (EnginePool pool : pools.values()) {
+        pool.dispose();
+      }
+      pools.clear();
+    }
+  }
+
+  /**
+   * per settings: {engines, init msec, reads, ocr msec, borrows that had to wait, wait msec, max wait msec}
+   */
+  public static Map<String, long[]> getStats() {
+    Map<String, long[]> stats = new LinkedHashMap<>();
+    synchronized (pools) {
+      for (EnginePool pool : pools.values()) {
+        stats.put(String.format("%s/psm%d%s", pool.language, pool.pageSegMode,
+                pool.variables.isEmpty() ? "" : pool.variables), pool.getStats());
+      }
+    }
+    return stats;
+  }
+
+  public static String getStatsString() {
+    StringBuilder stats = new StringBuilder();
+    for (Map.Entry<String, long[]> entry : getStats().entrySet()) {
+      long[] values = entry.getValue();
+      stats.append(String.format("TextFinder %s: engines %d (init %d msec each) reads %d (ocr %d msec each) " +
+                      "waited %d (%d msec each, max %d msec)\n", entry.getKey(),
+              values[0], values[0] > 0 ? values[1] / values[0] : 0, values[2], values[2] > 0 ? values[3] / values[2] : 0,
+              values[4], values[4] > 0 ? values[5] / values[4] : 0, values[6]));
+    }
+    return stats.toString();
+  }
+
+  /**
+   * the initialized engines for one combination of settings
+   */
+  private static class EnginePool {
+
+    final String datapath;
+    final String language;
+    final int pageSegMode;
+    final Map<String, String> variables;
+    final int maxEngines;
+
+    private static final int WAIT_POLL = 100;
+
+    private final BlockingQueue<Engine> idle = new LinkedBlockingQueue<>();
+    private int engines = 0;
+    private boolean disposed = false;
+
+    private long initTime = 0;
+    private long reads = 0;
+    private long ocrTime = 0;
+    private long waits = 0;
+    private long waitTime = 0;
+    private long maxWait = 0;
+
+    EnginePool(String datapath, String language, int pageSegMode, Map<String, String> variables) {
+      this.datapath = datapath;
+      this.language = language;
+      this.pageSegMode = pageSegMode;
+      this.variables = variables;
+      int max = (int) SX.getOptionNumber("Settings.TextEngines", 0);
+      maxEngines = max < 1 ? Runtime.getRuntime().availableProcessors() : max;
+    }
+
+    // an idle engine, a new one if there are not yet maxEngines, otherwise wait for one given back
+    Engine borrow() {
+      Engine engine = idle.poll();
+      if (SX.isNotNull(engine)) {
+        return engine;
+      }
+      if (reserve()) {
+        return create();
+      }
+      long start = new Date().getTime();
+      // polled: a dispose or a failed init of another engine does not leave the waiting reads hanging
+      while (SX.isNull(engine)) {
+        if (isDisposed()) {
+          return null;
+        }
+        try {
+          engine = idle.poll(WAIT_POLL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+        if (SX.isNull(engine) && reserve()) {
+          engine = create();
+          if (SX.isNull(engine)) {
+            return null;
+          }
+        }
+      }
+      long waited = new Date().getTime() - start;
+      synchronized (this) {
+        waits++;
+        waitTime += waited;
+        maxWait = Math.max(maxWait, waited);
+      }
+      return engine;
+    }
+
+    void giveBack(Engine engine) {
+      synchronized (this) {
+        reads += engine.reads;
+        ocrTime += engine.ocrTime;
+        engine.reads = 0;
+        engine.ocrTime = 0;
+        if (!disposed) {
+          idle.offer(engine);
+          return;
+        }
+        engines--;
+      }
+      engine.end();
+    }
+
+    synchronized boolean isDisposed() {
+      return disposed;
+    }
+
+    private synchronized boolean reserve() {
+      if (disposed || engines >= maxEngines) {
+        return false;
+      }
+      engines++;
+      return true;
+    }
+
+    // a reserved engine: initialized or (if failed) the reservation is given back
+    private Engine create() {
+      long start = new Date().getTime();
+      Engine engine = Engine.create(this);
+      synchronized (this) {
+        if (SX.isNull(engine)) {
+          engines--;
+        } else {
+          initTime += new Date().getTime() - start;
+        }
+      }
+      return engine;
+    }
+
+    int warmUp(int count) {
+      List<Thread> threads = new ArrayList<>();
+      for (int n = idle.size(); n < count && reserve(); n++) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Engine engine = create();
+            if (SX.isNotNull(engine)) {
+              giveBack(engine);
+            }
+          }
+        }, "SX.TextWarmUp");
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      log.trace("warmUp: %s: %d engines ready", language, idle.size());
+      return idle.size();
+    }
+
+    void warmUpInBackground(final int count) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          warmUp(count);
+        }
+      }, "SX.TextWarmUp");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    void dispose() {
+      synchronized (this) {
+        disposed = true;
+      }
+      Engine engine;
+      while (SX.isNotNull(engine = idle.poll())) {
+        synchronized (this) {
+          engines--;
+        }
+        engine.end();
+      }
+    }
+
+    synchronized long[] getStats() {
+      return new long[]{engines, initTime, reads, ocrTime, waits, waitTime, maxWait};
+    }
   }
 
+  /**
+   * one initialized Tesseract engine (tessdata loaded once), not thread safe: only used while borrowed
+   */
+  private static class Engine {
+
+    private final ITessAPI.TessBaseAPI handle;
+    long reads = 0;
+    long ocrTime = 0;
+    private long start = 0;
+    private java.awt.Point offset = new java.awt.Point();
+
+    private Engine(ITessAPI.TessBaseAPI handle) {
+      this.handle = handle;
+    }
+
+    static Engine create(EnginePool pool) {
+      ITessAPI.TessBaseAPI handle = TessAPI1.TessBaseAPICreate();
+      if (TessAPI1.TessBaseAPIInit2(handle, pool.datapath, pool.language, ITessAPI.TessOcrEngineMode.OEM_DEFAULT) != 0) {
+        log.error("Engine: init failed: %s (%s)", pool.language, pool.datapath);
+        TessAPI1.TessBaseAPIDelete(handle);
+        return null;
+      }
+      TessAPI1.TessBaseAPISetPageSegMode(handle, pool.pageSegMode);
+      for (Map.Entry<String, String> variable : pool.variables.entrySet()) {
+        TessAPI1.TessBaseAPISetVariable(handle, variable.getKey(), variable.getValue());
+      }
+      return new Engine(handle);
+    }
+
+    /**
+     * the pixels are taken from the Mat's buffer as is (rows might be padded, e.g. a submat):
+     * Tesseract copies them once, no encoding or conversion in between
+     */
+    void setImage(Mat mGray, java.awt.Point offset) {
+      start = new Date().getTime();
+      this.offset = offset;
+      long bytes = mGray.step1() * (mGray.rows() - 1) + mGray.cols();
+      ByteBuffer pixels = new Pointer(mGray.dataAddr()).getByteBuffer(0, bytes);
+      TessAPI1.TessBaseAPISetImage(handle, pixels, mGray.cols(), mGray.rows(), 1, (int) mGray.step1());
+    }
+
+    void setRegion(Rectangle region) {
+      TessAPI1.TessBaseAPISetRectangle(handle, region.x - offset.x, region.y - offset.y, region.width, region.height);
+    }
+
+    String getText() {
+      Pointer text = TessAPI1.TessBaseAPIGetUTF8Text(handle);
+      if (SX.isNull(text)) {
+        return "";
+      }
+      String result = text.getString(0, "UTF-8");
+      TessAPI1.TessDeleteText(text);
+      return result;
+    }
+
+    List<Element> getWords() {
+      List<Element> words = new ArrayList<>();
+      if (TessAPI1.TessBaseAPIRecognize(handle, null) != 0) {
+        return words;
+      }
+      ITessAPI.TessResultIterator results = TessAPI1.TessBaseAPIGetIterator(handle);
+      if (SX.isNull(results)) {
+        return words;
+      }
+      ITessAPI.TessPageIterator page = TessAPI1.TessResultIteratorGetPageIterator(results);
+      IntBuffer left = IntBuffer.allocate(1);
+      IntBuffer top = IntBuffer.allocate(1);
+      IntBuffer right = IntBuffer.allocate(1);
+      IntBuffer bottom = IntBuffer.allocate(1);
+      int level = ITessAPI.TessPageIteratorLevel.RIL_WORD;
+      do {
+        Pointer text = TessAPI1.TessResultIteratorGetUTF8Text(results, level);
+        if (SX.isNull(text)) {
+          continue;
+        }
+        String word = text.getString(0, "UTF-8");
+        TessAPI1.TessDeleteText(text);
+        TessAPI1.TessPageIteratorBoundingBox(page, level, left, top, right, bottom);
+        Element element = new Element(left.get(0) + offset.x, top.get(0) + offset.y,
+                right.get(0) - left.get(0), bottom.get(0) - top.get(0));
+        element.setScore(TessAPI1.TessResultIteratorConfidence(results, level) / 100.0);
+        element.setName(word);
+        words.add(element);
+      } while (TessAPI1.TessPageIteratorNext(page, level) == ITessAPI.TRUE);
+      TessAPI1.TessResultIteratorDelete(results);
+      return words;
+    }
+
+    void clear() {
+      TessAPI1.TessBaseAPIClear(handle);
+      if (start > 0) {
+        reads++;
+        ocrTime += new Date().getTime() - start;
+        start = 0;
+      }
+    }
+
+    void end() {
+      TessAPI1.TessBaseAPIEnd(handle);
+      TessAPI1.TessBaseAPIDelete(handle);
+    }
+  }
+  //</editor-fold>
 }
@@ -6,6 +6,7 @@ package com.sikulix.devices.android;
 
 import com.sikulix.api.Picture;
 import com.sikulix.core.Content;
+import com.sikulix.core.MatPool;
 import com.sikulix.core.SX;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
@@ -22,7 +23,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -96,6 +102,9 @@ public class ADBDevice {
   }
 
   public static void reset() {
+    if (adbDevice != null) {
+      adbDevice.stopFrameStream();
+    }
     adbDevice = null;
     ADBClient.reset();
   }
@@ -151,13 +160,28 @@ public class ADBDevice {
       bImage = new BufferedImage(matImage.width(), matImage.height(), BufferedImage.TYPE_3BYTE_BGR);
       byte[] bImageData = ((DataBufferByte) bImage.getRaster().getDataBuffer()).getData();
       matImage.get(0, 0, bImageData);
+      MatPool.put(matImage);
     }
     return bImage;
   }
 
+  //<editor-fold desc="screen capture">
+  // guards the capture buffers only: input (startBatch, flush, ...) does not wait for a capture
+  private final Object captureLock = new Object();
+  private byte[] captureBuffer = new byte[0];
+  private Mat mCaptureRGBA = null;
+  private FrameStream frameStream = null;
+  private volatile boolean frameStreamFailed = false;
+
+  /**
+   * a screencap is run per capture - with Settings.ADBFrameStream the pixels are taken from the newest frame
+   * of a continuous screencap stream (if not older than Settings.ADBFrameMaxAge msec)<br>
+   * if the stream gives no frame on the device, screencap is used from then on<br>
+   * only the bytes of the requested region are stored, the rest is skipped
+   *
+   * @return the pixels (BGR, a Mat from MatPool: give it back with MatPool.put) or null if not possible
+   */
   public Mat captureDeviceScreenMat(int x, int y, int w, int h) {
-    byte[] imagePrefix = new byte[12];
-    byte[] image = new byte[0];
     int actW = w;
     if (x + w > devW) {
       actW = devW - x;
@@ -166,44 +190,256 @@ public class ADBDevice {
     if (y + h > devH) {
       actH = devH - y;
     }
-    //Debug timer = Debug.startTimer();
+    if (SX.isOption("Settings.ADBFrameStream", false) && !frameStreamFailed) {
+      Mat matImage = getFrameStream().getFrame(x, y, actW, actH,
+              (long) SX.getOptionNumber("Settings.ADBFrameMaxAge", 500));
+      if (matImage != null) {
+        return matImage;
+      }
+    }
+    InputStream stdout = null;
     try {
-      InputStream stdout = device.executeShell("screencap");
-      stdout.read(imagePrefix);
-      if (imagePrefix[8] != 0x01) {
-        log(-1, "captureDeviceScreenMat: image type not RGBA");
-        return null;
+      stdout = device.executeShell("screencap");
+      synchronized (captureLock) {
+        Mat matImage = readFrame(stdout, x, y, actW, actH);
+        log(lvl, "captureDeviceScreenMat:[%d,%d %dx%d]", x, y, actW, actH);
+        return matImage;
+      }
+    } catch (IOException | JadbException e) {
+      log(-1, "captureDeviceScreenMat: [%d,%d %dx%d] %s", x, y, actW, actH, e);
+    } finally {
+      if (stdout != null) {
+        try {
+          stdout.close();
+        } catch (IOException e) {
+        }
       }
-      if (byte2int(imagePrefix, 0, 4) != devW || byte2int(imagePrefix, 4, 4) != devH) {
-        log(-1, "captureDeviceScreenMat: width or height differ from device values");
-        return null;
+    }
+    return null;
+  }
+
+  // screencap: header (width, height, format, since Android 9 colorspace) then the RGBA pixels row by row
+  private int getHeaderSize() {
+    return deviceVersion > 8 ? 16 : 12;
+  }
+
+  private boolean readHeader(InputStream stdout) throws IOException {
+    byte[] imagePrefix = new byte[getHeaderSize()];
+    readFully(stdout, imagePrefix, 0, imagePrefix.length);
+    if (imagePrefix[8] != 0x01) {
+      log(-1, "captureDeviceScreenMat: image type not RGBA");
+      return false;
+    }
+    if (byte2int(imagePrefix, 0, 4) != devW || byte2int(imagePrefix, 4, 4) != devH) {
+      log(-1, "captureDeviceScreenMat: width or height differ from device values");
+      return false;
+    }
+    return true;
+  }
+
+  // only the region is read into the reusable buffer, the bytes before, between and after are skipped
+  private Mat readFrame(InputStream stdout, int x, int y, int w, int h) throws IOException {
+    if (!readHeader(stdout)) {
+      return null;
+    }
+    int lenRow = devW * 4;
+    int lenCrop = w * 4;
+    if (captureBuffer.length < lenCrop * h) {
+      captureBuffer = new byte[lenCrop * h];
+    }
+    skipFully(stdout, (long) y * lenRow + x * 4);
+    for (int count = 0; count < h; count++) {
+      readFully(stdout, captureBuffer, count * lenCrop, lenCrop);
+      if (count < h - 1) {
+        skipFully(stdout, lenRow - lenCrop);
       }
-      image = new byte[actW * actH * 4];
-      int lenRow = devW * 4;
-      byte[] row = new byte[lenRow];
-      for (int count = 0; count < y; count++) {
-        stdout.read(row);
+    }
+    if (mCaptureRGBA == null) {
+      mCaptureRGBA = new Mat();
+    }
+    return toBGR(captureBuffer, w, h, mCaptureRGBA);
+  }
+
+  // mRGBA: reusable work Mat, the result is from MatPool
+  private static Mat toBGR(byte[] pixels, int w, int h, Mat mRGBA) {
+    mRGBA.create(h, w, CvType.CV_8UC4);
+    mRGBA.put(0, 0, pixels);
+    Mat matImage = MatPool.get(h, w, CvType.CV_8UC3);
+    Imgproc.cvtColor(mRGBA, matImage, Imgproc.COLOR_RGBA2BGR, 3);
+    return matImage;
+  }
+
+  private static void readFully(InputStream stream, byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      int count = stream.read(buffer, offset, length);
+      if (count < 0) {
+        throw new IOException("screencap: unexpected end of stream");
       }
-      boolean shortRow = x + actW < devW;
-      for (int count = 0; count < actH; count++) {
-        if (shortRow) {
-          stdout.read(row);
-          System.arraycopy(row, x * 4, image, count * actW * 4, actW * 4);
-        } else {
-          stdout.read(image, count * actW * 4, actW * 4);
+      offset += count;
+      length -= count;
+    }
+  }
+
+  private static void skipFully(InputStream stream, long length) throws IOException {
+    while (length > 0) {
+      long count = stream.skip(length);
+      if (count <= 0) {
+        if (stream.read() < 0) {
+          throw new IOException("screencap: unexpected end of stream");
         }
+        count = 1;
       }
-      long duration = 0; //timer.end();
-      log(lvl, "captureDeviceScreenMat:[%d,%d %dx%d] %d", x, y, actW, actH, duration);
-    } catch (IOException | JadbException e) {
-      log(-1, "captureDeviceScreenMat: [%d,%d %dx%d] %s", x, y, actW, actH, e);
+      length -= count;
+    }
+  }
+
+  public synchronized FrameStream getFrameStream() {
+    if (frameStream == null || !frameStream.isAlive()) {
+      frameStream = new FrameStream();
+      frameStream.start();
+    }
+    return frameStream;
+  }
+
+  public synchronized void stopFrameStream() {
+    if (frameStream != null) {
+      frameStream.stopStream();
+      frameStream = null;
+    }
+  }
+
+  /**
+   * one long running shell on the device, that runs screencap in a loop:
+   * the frames are read into two buffers, that are used alternately<br>
+   * the stream ends, if no frame was requested for Settings.ADBFrameIdleTime seconds
+   * (started again with the next request), if it ends without any frame, the device falls back to screencap
+   */
+  public class FrameStream extends Thread {
+
+    private final Object frameLock = new Object();
+    private byte[] frontFrame = new byte[0];
+    private byte[] backFrame = new byte[0];
+    private byte[] cropBuffer = new byte[0];
+    private Mat mRGBA = new Mat();
+    private long frameTime = 0;
+    private long frameSequence = 0;
+    private long lastRequest = new Date().getTime();
+    private boolean running = true;
+    private boolean failed = false;
+    private InputStream stream = null;
+
+    private FrameStream() {
+      super("SX.ADBFrameStream");
+      setDaemon(true);
+    }
+
+    /**
+     * @param maxAge the frame must not be older (msec), otherwise the next frame is waited for
+     * @return the region of the newest frame (BGR) or null, if no frame came in time
+     */
+    public Mat getFrame(int x, int y, int w, int h, long maxAge) {
+      long requested = new Date().getTime();
+      long waitUntil = requested + Math.max(2000, 2 * maxAge);
+      synchronized (frameLock) {
+        lastRequest = requested;
+        while (running && (frameSequence == 0 || frameTime < requested - maxAge)) {
+          long waitTime = waitUntil - new Date().getTime();
+          if (waitTime <= 0) {
+            return null;
+          }
+          try {
+            frameLock.wait(waitTime);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+          }
+        }
+        if (!running) {
+          return null;
+        }
+        int lenRow = devW * 4;
+        int lenCrop = w * 4;
+        if (cropBuffer.length < lenCrop * h) {
+          cropBuffer = new byte[lenCrop * h];
+        }
+        for (int count = 0; count < h; count++) {
+          System.arraycopy(frontFrame, (y + count) * lenRow + x * 4, cropBuffer, count * lenCrop, lenCrop);
+        }
+        return toBGR(cropBuffer, w, h, mRGBA);
+      }
+    }
+
+    public long getFrameSequence() {
+      synchronized (frameLock) {
+        return frameSequence;
+      }
+    }
+
+    private void stopStream() {
+      synchronized (frameLock) {
+        running = false;
+        frameLock.notifyAll();
+      }
+      closeStream();
+    }
+
+    private void closeStream() {
+      try {
+        if (stream != null) {
+          stream.close();
+        }
+      } catch (IOException e) {
+      }
+    }
+
+    private boolean isIdle() {
+      return new Date().getTime() - lastRequest > 1000 * SX.getOptionNumber("Settings.ADBFrameIdleTime", 10);
+    }
+
+    @Override
+    public void run() {
+      try {
+        stream = device.executeShell("while true; do screencap; done");
+        int lenFrame = devW * devH * 4;
+        frontFrame = new byte[lenFrame];
+        backFrame = new byte[lenFrame];
+        while (running) {
+          if (!readHeader(stream)) {
+            failed = true;
+            break;
+          }
+          readFully(stream, backFrame, 0, lenFrame);
+          synchronized (frameLock) {
+            byte[] frame = frontFrame;
+            frontFrame = backFrame;
+            backFrame = frame;
+            frameTime = new Date().getTime();
+            frameSequence++;
+            frameLock.notifyAll();
+            if (isIdle()) {
+              break;
+            }
+          }
+        }
+      } catch (IOException | JadbException e) {
+        if (running) {
+          log(-1, "FrameStream: %s", e);
+          failed = true;
+        }
+      }
+      synchronized (frameLock) {
+        if (failed && frameSequence == 0) {
+          frameStreamFailed = true;
+          log(-1, "FrameStream: does not work on this device - using screencap");
+        }
+        running = false;
+        frameLock.notifyAll();
+      }
+      closeStream();
+      log(lvl, "FrameStream: stopped after %d frames", frameSequence);
     }
-    Mat matOrg = new Mat(actH, actW, CvType.CV_8UC4);
-    matOrg.put(0, 0, image);
-    Mat matImage = new Mat();
-    Imgproc.cvtColor(matOrg, matImage, Imgproc.COLOR_RGBA2BGR, 3);
-    return matImage;
   }
+  //</editor-fold>
 
   private int byte2int(byte[] bytes, int start, int len) {
     int val = 0;
@@ -346,31 +582,166 @@ public class ADBDevice {
     return null;
   }
 
-  public void inputKeyEvent(int key) {
-    try {
-      device.executeShell("input", "keyevent", Integer.toString(key));
-    } catch (Exception e) {
-      log(-1, "inputKeyEvent: %d did not work: %s", e.getMessage());
+  //<editor-fold desc="input">
+  private final List<String> inputQueue = new ArrayList<>();
+  private CompletableFuture<Boolean> inputDone = null;
+  private int inputBatch = 0;
+  private ExecutorService inputExecutor = null;
+
+  /**
+   * the following taps, swipes, key events and texts are only queued,
+   * until endBatch sends them to the device as one command sequence (batches might be nested)
+   */
+  public synchronized void startBatch() {
+    inputBatch++;
+  }
+
+  /**
+   * @return completes, when the device has processed the queued input (true if no errors were reported)
+   */
+  public CompletableFuture<Boolean> endBatch() {
+    synchronized (this) {
+      inputBatch = Math.max(0, inputBatch - 1);
+      if (inputBatch > 0) {
+        return SX.isNull(inputDone) ? CompletableFuture.completedFuture(true) : inputDone;
+      }
     }
+    return flush();
   }
 
-  public void tap(int x, int y) {
-    try {
-      device.executeShell("input tap", Integer.toString(x), Integer.toString(y));
-    } catch (IOException | JadbException e) {
-      log(-1, "tap: %s", e);
+  /**
+   * send the queued input to the device now
+   *
+   * @return completes, when the device has processed the input (true if no errors were reported)
+   */
+  public synchronized CompletableFuture<Boolean> flush() {
+    if (inputQueue.isEmpty()) {
+      return SX.isNull(inputDone) ? CompletableFuture.completedFuture(true) : inputDone;
+    }
+    final String commands = getInputCommands(inputQueue);
+    final int count = inputQueue.size();
+    final CompletableFuture<Boolean> done = inputDone;
+    inputQueue.clear();
+    inputDone = null;
+    if (SX.isNull(inputExecutor)) {
+      inputExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "SX.ADBInput");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
     }
+    inputExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        done.complete(runInput(commands, count));
+      }
+    });
+    return done;
   }
 
-  public void swipe(int x1, int y1, int x2, int y2) {
+  private synchronized CompletableFuture<Boolean> queueInput(String... commands) {
+    inputQueue.addAll(Arrays.asList(commands));
+    if (SX.isNull(inputDone)) {
+      inputDone = new CompletableFuture<>();
+    }
+    if (inputBatch > 0) {
+      return inputDone;
+    }
+    return flush();
+  }
+
+  // outside a batch the actions wait for the device as before
+  private void waitInput(CompletableFuture<Boolean> done) {
+    synchronized (this) {
+      if (inputBatch > 0) {
+        return;
+      }
+    }
+    done.join();
+  }
+
+  /**
+   * one shell command line: consecutive key events are given to one input keyevent
+   *
+   * @param queue input commands
+   * @return the commands separated by ;
+   */
+  public static String getInputCommands(List<String> queue) {
+    StringBuilder commands = new StringBuilder();
+    String keyEvent = "input keyevent ";
+    boolean lastWasKey = false;
+    for (String command : queue) {
+      boolean isKey = command.startsWith(keyEvent);
+      if (isKey && lastWasKey) {
+        commands.append(command.substring(keyEvent.length() - 1));
+      } else {
+        if (commands.length() > 0) {
+          commands.append("; ");
+        }
+        commands.append(command);
+      }
+      lastWasKey = isKey;
+    }
+    return commands.toString();
+  }
+
+  private boolean runInput(String commands, int count) {
+    InputStream stdout = null;
     try {
-      device.executeShell("input swipe", Integer.toString(x1), Integer.toString(y1),
-              Integer.toString(x2), Integer.toString(y2));
+      stdout = device.executeShell(commands);
+      String out = inputStreamToString(stdout, "UTF-8").trim();
+      if (out.contains("Error") || out.contains("Exception")) {
+        log(-1, "input: %s: %s", commands, out);
+        return false;
+      }
+      log(lvl, "input: %d actions", count);
+      return true;
     } catch (IOException | JadbException e) {
-      log(-1, "swipe: %s", e);
+      log(-1, "input: %s: %s", commands, e);
+      return false;
     }
   }
 
+  /**
+   * input text: space as %s, the rest single quoted for the shell<br>
+   * input text would type a % followed by an s as space, so the text is split between them
+   *
+   * @param text what to type
+   * @return the input text commands
+   */
+  public static List<String> getTextCommands(String text) {
+    List<String> commands = new ArrayList<>();
+    int start = 0;
+    int split;
+    while ((split = text.indexOf("%s", start)) > -1) {
+      commands.add(getTextCommand(text.substring(start, split + 1)));
+      start = split + 1;
+    }
+    if (start < text.length()) {
+      commands.add(getTextCommand(text.substring(start)));
+    }
+    return commands;
+  }
+
+  private static String getTextCommand(String text) {
+    return "input text '" + text.replace(" ", "%s").replace("'", "'\\''") + "'";
+  }
+
+  public void inputKeyEvent(int key) {
+    waitInput(queueInput("input keyevent " + key));
+  }
+
+  public void tap(int x, int y) {
+    waitInput(queueInput(String.format("input tap %d %d", x, y)));
+  }
+
+  public void swipe(int x1, int y1, int x2, int y2) {
+    waitInput(queueInput(String.format("input swipe %d %d %d %d", x1, y1, x2, y2)));
+  }
+
   private String textBuffer = "";
   private boolean typing = false;
 
@@ -398,12 +769,20 @@ public class ADBDevice {
 
   public static float inputDelay = 0.05f;
 
+  /**
+   * the text is sent as input text commands of at most Settings.ADBTextChunk characters each
+   *
+   * @param text what to type
+   */
   public void input(String text) {
-    try {
-      device.executeShell("input text ", text);
-      SX.pause(text.length() * inputDelay);
-    } catch (Exception e) {
-      log(-1, "input: %s", e);
+    int chunk = (int) Math.max(1, SX.getOptionNumber("Settings.ADBTextChunk", 100));
+    List<String> commands = new ArrayList<>();
+    for (int start = 0; start < text.length(); start += chunk) {
+      commands.addAll(getTextCommands(text.substring(start, Math.min(text.length(), start + chunk))));
+    }
+    if (commands.size() > 0) {
+      waitInput(queueInput(commands.toArray(new String[0])));
     }
   }
+  //</editor-fold>
 }
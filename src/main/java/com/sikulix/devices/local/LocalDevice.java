@@ -13,13 +13,21 @@ import com.sikulix.util.Capture;
 import com.sikulix.util.animation.Animator;
 import com.sikulix.util.animation.AnimatorOutQuarticEase;
 import com.sikulix.util.animation.AnimatorTimeBased;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
 import org.sikuli.script.Screen;
 
 import java.awt.*;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Date;
 
 public class LocalDevice extends IDevice {
 
@@ -59,6 +67,7 @@ public class LocalDevice extends IDevice {
 
   @Override
   public void stop() {
+    stopCaptureService();
     SX.setSXLOCALDEVICE(null);
   }
 
@@ -739,7 +748,14 @@ public class LocalDevice extends IDevice {
         what = (Element) args[0];
       }
     }
-    Picture img = new Picture(robot.createScreenCapture(what.getRectangle()));
+    Picture img = null;
+    if (SX.isOption("Settings.CaptureService", false)) {
+      img = getCaptureService().getFrame(what.getRectangle(),
+              (long) SX.getOptionNumber("Settings.CaptureMaxAge", 200));
+    }
+    if (SX.isNull(img)) {
+      img = new Picture(robot.createScreenCapture(what.getRectangle()));
+    }
     if (img.hasContent()) {
       what.setContent(img.getContent());
     } else {
@@ -749,6 +765,181 @@ public class LocalDevice extends IDevice {
   }
   //</editor-fold>
 
+  //<editor-fold desc="capture service">
+  private CaptureService captureService = null;
+
+  /**
+   * with Settings.CaptureService capture takes the pixels from the newest frame of a background capture,
+   * if it is not older than Settings.CaptureMaxAge msec<br>
+   * all monitors are captured Settings.CaptureRate times per second into two buffers, that are used alternately<br>
+   * the service pauses, if no frame was requested for Settings.CaptureIdleTime seconds,
+   * and resumes with the next request
+   *
+   * @return the running service
+   */
+  public synchronized CaptureService getCaptureService() {
+    if (SX.isNull(captureService)) {
+      captureService = new CaptureService(allMonitors);
+      captureService.start();
+    }
+    return captureService;
+  }
+
+  public synchronized void stopCaptureService() {
+    if (SX.isNotNull(captureService)) {
+      captureService.stopService();
+      captureService = null;
+    }
+  }
+
+  public class CaptureService extends Thread {
+
+    private final Rectangle rect;
+    private final Object frameLock = new Object();
+    private Mat frontFrame = Element.getNewMat();
+    private Mat backFrame = Element.getNewMat();
+    private long frameTime = 0;
+    private long frameSequence = 0;
+    private long lastRequest = 0;
+    private boolean running = true;
+
+    private ByteBuffer pixels = null;
+    private Mat mBGRA = Element.getNewMat();
+
+    private CaptureService(Rectangle rect) {
+      super("SX.CaptureService");
+      setDaemon(true);
+      this.rect = new Rectangle(rect);
+      lastRequest = new Date().getTime();
+    }
+
+    /**
+     * the given part of the newest frame
+     *
+     * @param part   what to capture
+     * @param maxAge the frame must not be older (msec), otherwise the next frame is waited for
+     * @return the pixels or null, if the part is not on the monitors or no frame came in time
+     */
+    public Picture getFrame(Rectangle part, long maxAge) {
+      if (!rect.contains(part) || part.isEmpty()) {
+        return null;
+      }
+      long requested = new Date().getTime();
+      long waitUntil = requested + Math.max(1000, 2 * getPeriod());
+      synchronized (frameLock) {
+        lastRequest = requested;
+        frameLock.notifyAll();
+        while (running && (frontFrame.empty() || frameTime < requested - maxAge)) {
+          long waitTime = waitUntil - new Date().getTime();
+          if (waitTime <= 0) {
+            log.trace("captureService: no frame within %d msec", maxAge);
+            return null;
+          }
+          try {
+            frameLock.wait(waitTime);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+          }
+        }
+        if (!running) {
+          return null;
+        }
+        return new Picture(frontFrame.submat(new Rect(part.x - rect.x, part.y - rect.y, part.width, part.height)));
+      }
+    }
+
+    public long getFrameSequence() {
+      synchronized (frameLock) {
+        return frameSequence;
+      }
+    }
+
+    public long getFrameTime() {
+      synchronized (frameLock) {
+        return frameTime;
+      }
+    }
+
+    public boolean isPaused() {
+      synchronized (frameLock) {
+        return isIdle();
+      }
+    }
+
+    private boolean isIdle() {
+      return new Date().getTime() - lastRequest > 1000 * SX.getOptionNumber("Settings.CaptureIdleTime", 5);
+    }
+
+    private long getPeriod() {
+      return (long) (1000 / Math.max(0.1, SX.getOptionNumber("Settings.CaptureRate", 10)));
+    }
+
+    private void stopService() {
+      synchronized (frameLock) {
+        running = false;
+        frameLock.notifyAll();
+      }
+    }
+
+    @Override
+    public void run() {
+      log.trace("captureService: started %s", rect);
+      while (true) {
+        synchronized (frameLock) {
+          while (running && isIdle()) {
+            log.trace("captureService: paused (frame %d)", frameSequence);
+            try {
+              frameLock.wait();
+            } catch (InterruptedException e) {
+              running = false;
+            }
+          }
+          if (!running) {
+            break;
+          }
+        }
+        long begin_t = new Date().getTime();
+        BufferedImage bImg = robot.createScreenCapture(rect);
+        long captureTime = new Date().getTime();
+        toFrame(bImg, backFrame);
+        synchronized (frameLock) {
+          Mat frame = frontFrame;
+          frontFrame = backFrame;
+          backFrame = frame;
+          frameTime = captureTime;
+          frameSequence++;
+          frameLock.notifyAll();
+        }
+        long pause = getPeriod() - (new Date().getTime() - begin_t);
+        if (pause > 0) {
+          SX.pause(pause / 1000.0);
+        }
+      }
+      MatPool.release(frontFrame, backFrame, mBGRA);
+      log.trace("captureService: stopped after %d frames", frameSequence);
+    }
+
+    // the buffers are reused as long as the size does not change
+    private void toFrame(BufferedImage bImg, Mat frame) {
+      if (bImg.getType() != BufferedImage.TYPE_INT_RGB
+              || !(bImg.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+        new Picture(bImg).getContentBGR().copyTo(frame);
+        return;
+      }
+      int[] data = ((DataBufferInt) bImg.getRaster().getDataBuffer()).getData();
+      if (SX.isNull(pixels) || pixels.capacity() != data.length * 4) {
+        pixels = ByteBuffer.allocate(data.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      pixels.clear();
+      pixels.asIntBuffer().put(data);
+      mBGRA.create(bImg.getHeight(), bImg.getWidth(), CvType.CV_8UC4);
+      mBGRA.put(0, 0, pixels.array());
+      Imgproc.cvtColor(mBGRA, frame, Imgproc.COLOR_BGRA2BGR);
+    }
+  }
+  //</editor-fold>
+
   //<editor-fold desc="*** Callback">
   private Event callback = null;
   private boolean shouldRunCallback = false;
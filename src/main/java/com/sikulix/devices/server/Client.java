@@ -7,13 +7,22 @@ package com.sikulix.devices.server;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.mashape.unirest.request.GetRequest;
 import com.sikulix.core.SX;
 import com.sikulix.core.SXJson;
 import com.sikulix.core.SXLog;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.*;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 public class Client {
 
   static SXLog log;
@@ -51,6 +60,183 @@ public class Client {
     return response;
   }
 
+  //<editor-fold desc="batch and pipelining">
+
+  /**
+   * the commands are run by the server in one request, the first failing command ends the batch
+   *
+   * @param sessionId as returned by POST /session
+   * @param commands  [{"command": "find", "target": hash, ...}, {"command": "click"}, ...]
+   * @return the server response with content {"results": [...], "completed": n}
+   */
+  public static JSONObject batch(String sessionId, JSONArray commands) {
+    return post(String.format("/session/%s/batch", sessionId), new JSONObject().put("commands", commands).toString());
+  }
+
+  /**
+   * the request is sent without waiting for the response (kept alive connections are reused)<br>
+   * requests sent this way are independent: the server might run them in any order (use pipeline or batch for sequences)
+   *
+   * @param urlCommand the route
+   * @param body       JSON
+   * @return the future response (null, if the request failed)
+   */
+  public static CompletableFuture<JSONObject> postAsync(String urlCommand, String body) {
+    log.trace("postAsync(): %s body: %s", urlCommand, body);
+    final CompletableFuture<JSONObject> response = new CompletableFuture<>();
+    Unirest.post(urlBase + urlCommand)
+            .header("accept", "application/json")
+            .header("content-type", "application/json")
+            .body(body)
+            .asJsonAsync(new Callback<JsonNode>() {
+              @Override
+              public void completed(HttpResponse<JsonNode> jsonResponse) {
+                response.complete(SXJson.makeObject(jsonResponse.getBody().toString()));
+              }
+
+              @Override
+              public void failed(UnirestException e) {
+                log.error("postAsync(): %s", e.getMessage());
+                response.complete(null);
+              }
+
+              @Override
+              public void cancelled() {
+                response.complete(null);
+              }
+            });
+    return response;
+  }
+
+  /**
+   * HTTP pipelining: the commands are sent as separate requests one after the other on one connection,
+   * without waiting for the responses - the server handles one connection with one thread,
+   * so it runs them in this order and answers in this order<br>
+   * other than with batch, all commands are run, even if some fail
+   *
+   * @param sessionId as returned by POST /session
+   * @param commands  [{"command": "find", "target": hash, ...}, {"command": "click"}, ...]
+   * @return the server responses in the order of the commands (null for requests without a response)
+   */
+  public static List<JSONObject> pipeline(String sessionId, JSONArray commands) {
+    final List<byte[]> requests = new ArrayList<>();
+    List<JSONObject> responses = new ArrayList<>();
+    Socket socket = null;
+    try {
+      URL url = new URL(urlBase);
+      String host = url.getHost();
+      int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+      for (int n = 0; n < commands.length(); n++) {
+        JSONObject command = commands.getJSONObject(n);
+        byte[] body = command.toString().getBytes("UTF-8");
+        String header = String.format("POST /session/%s/%s HTTP/1.1\r\nHost: %s:%d\r\n" +
+                        "Accept: application/json\r\nContent-Type: application/json\r\nContent-Length: %d\r\n\r\n",
+                sessionId, command.getString("command"), host, port, body.length);
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write(header.getBytes("UTF-8"));
+        request.write(body);
+        requests.add(request.toByteArray());
+      }
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+      // written by a separate thread, so the responses are read, while the requests are still sent
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (byte[] request : requests) {
+              out.write(request);
+            }
+            out.flush();
+          } catch (IOException e) {
+            log.error("pipeline(): send: %s", e.getMessage());
+          }
+        }
+      }, "SXClient-pipeline");
+      writer.setDaemon(true);
+      writer.start();
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      for (int n = 0; n < requests.size(); n++) {
+        String response = readResponse(in);
+        if (SX.isNull(response)) {
+          break;
+        }
+        responses.add(SXJson.makeObject(response));
+      }
+    } catch (IOException e) {
+      log.error("pipeline(): %s", e.getMessage());
+    } finally {
+      if (SX.isNotNull(socket)) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+    while (responses.size() < commands.length()) {
+      responses.add(null);
+    }
+    return responses;
+  }
+
+  // the body of the next response on the connection (null if the connection ended)
+  private static String readResponse(InputStream in) throws IOException {
+    String statusLine = readLine(in);
+    if (SX.isNull(statusLine)) {
+      return null;
+    }
+    int length = -1;
+    boolean chunked = false;
+    String line;
+    while (SX.isNotNull(line = readLine(in)) && !line.isEmpty()) {
+      String lower = line.toLowerCase();
+      if (lower.startsWith("content-length:")) {
+        length = Integer.parseInt(line.substring(15).trim());
+      } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+        chunked = true;
+      }
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    if (chunked) {
+      int size;
+      while ((size = Integer.parseInt(readLine(in).trim().split(";")[0], 16)) > 0) {
+        readBytes(in, size, body);
+        readLine(in);
+      }
+      readLine(in);
+    } else if (length > -1) {
+      readBytes(in, length, body);
+    } else {
+      return null;
+    }
+    return body.toString("UTF-8");
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int next;
+    while ((next = in.read()) > -1 && next != '\n') {
+      if (next != '\r') {
+        line.append((char) next);
+      }
+    }
+    return next < 0 && line.length() == 0 ? null : line.toString();
+  }
+
+  private static void readBytes(InputStream in, int length, ByteArrayOutputStream body) throws IOException {
+    byte[] buffer = new byte[Math.min(Math.max(length, 1), 8192)];
+    while (length > 0) {
+      int count = in.read(buffer, 0, Math.min(buffer.length, length));
+      if (count < 0) {
+        throw new IOException("connection closed");
+      }
+      body.write(buffer, 0, count);
+      length -= count;
+    }
+  }
+  //</editor-fold>
+
   public static JSONObject get() {
     return get("/state");
   }
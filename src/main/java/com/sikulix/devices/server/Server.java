@@ -4,14 +4,48 @@
 
 package com.sikulix.devices.server;
 
+import com.sikulix.api.Do;
+import com.sikulix.api.Element;
+import com.sikulix.api.Event;
+import com.sikulix.api.Handler;
+import com.sikulix.api.Picture;
+import com.sikulix.core.Finder;
 import com.sikulix.core.SX;
 import com.sikulix.core.SXLog;
 import fi.iki.elonen.NanoHTTPD;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * a remote automation server (WebDriver like routes, JSON in and out)<br>
+ * GET /state, /stop, /sessions<br>
+ * POST /image (body: PNG/JPG bytes or raw pixels with ?width=&amp;height=&amp;channels=) - answers the content hash,
+ * GET /image/{hash} - is the image known?<br>
+ * POST /session {"device": "images"|"local"}, DELETE /session/{id}<br>
+ * POST /session/{id}/find|findall|wait {"target": hash, "base": hash, "score": 0.7, "timeout": 3}
+ * (without base the screen of a local session is used)<br>
+ * POST /session/{id}/click {"x": x, "y": y} or {"target": hash}, /session/{id}/type {"text": text} (local sessions)<br>
+ * POST /session/{id}/batch {"commands": [{"command": "find", ...}, ...]} - runs the commands in one request<br>
+ * POST /session/{id}/observe {"where": {...} or "base": hash, "events": [...]}, DELETE /session/{id}/observe/{observer},
+ * GET /session/{id}/events - the observed events as server-sent events<br>
+ * the requests are served by pooled threads (Settings.ServerThreads, at most Settings.ServerMaxConnections),
+ * images are kept by content hash (at most Settings.ServerMaxImages) and shared by all sessions,
+ * sessions without requests for Settings.ServerSessionTimeout seconds are closed (unless an event stream is open)
+ */
 public class Server extends NanoHTTPD {
 
   static SXLog log;
@@ -26,6 +60,15 @@ public class Server extends NanoHTTPD {
   static Server server = null;
   int currentPort = -1;
 
+  private final Map<String, RemoteSession> sessions = new ConcurrentHashMap<>();
+  private ScheduledExecutorService reaper = null;
+  private final Map<String, Picture> images = new LinkedHashMap<String, Picture>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Picture> eldest) {
+      return size() > SX.getOptionNumber("Settings.ServerMaxImages", 500);
+    }
+  };
+
   public Server() throws IOException {
     this(8080);
   }
@@ -33,10 +76,40 @@ public class Server extends NanoHTTPD {
   public Server(int port) throws IOException {
     super(port);
     currentPort = port;
+    int threads = (int) SX.getOptionNumber("Settings.ServerThreads", 0);
+    threads = threads < 1 ? Math.max(8, 2 * Runtime.getRuntime().availableProcessors()) : threads;
+    setAsyncRunner(new PoolRunner(threads,
+            Math.max(threads, (int) SX.getOptionNumber("Settings.ServerMaxConnections", 64))));
+    setServerSocketFactory(new ServerSocketFactory() {
+      @Override
+      public ServerSocket create() throws IOException {
+        return new ServerSocket() {
+          // headers and body are written separately: do not wait for the client's (delayed) ACK in between
+          @Override
+          public Socket accept() throws IOException {
+            Socket socket = super.accept();
+            socket.setTcpNoDelay(true);
+            return socket;
+          }
+        };
+      }
+    });
     start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+    startReaper();
     log.trace("started on localhost:%d", port);
   }
 
+  @Override
+  public void stop() {
+    if (SX.isNotNull(reaper)) {
+      reaper.shutdownNow();
+    }
+    for (String id : new ArrayList<>(sessions.keySet())) {
+      closeSession(id);
+    }
+    super.stop();
+  }
+
   static void createStopListener() {
     Runnable stopListener = new Runnable() {
       public void run() {
@@ -67,104 +140,789 @@ public class Server extends NanoHTTPD {
     return true;
   }
 
-  @Override
-  public Response serve(IHTTPSession session) {
-    Response.IStatus status = Response.Status.OK;
-    boolean isImplemented = true;
-    boolean isError = false;
-    String uri = session.getUri();
-    Method method = session.getMethod();
-    boolean isGet = Method.GET.equals(method);
-    boolean isDelete = Method.DELETE.equals(method);
-    boolean isPost = Method.POST.equals(method);
-    Map<String, String> headers = session.getHeaders();
+  //<editor-fold desc="worker pool">
 
-    log.trace("%s - %s", method, uri);
+  /**
+   * the connections are handled by pooled threads instead of one new thread per connection<br>
+   * a kept alive connection holds its thread until it is closed or idle (SOCKET_READ_TIMEOUT),
+   * so there are more threads while needed, but at most maxConnections - further connections are closed
+   */
+  private static class PoolRunner implements AsyncRunner {
 
-    String responseTemplate = "{\"sessionId\" : \"%s\", \"status\" : \"%s\", \"value\" : %s}";
-    String responseValue = "";
-    String responseValueContent = "";
-    String responseValueTemplate = "{\"message\" : \"%s(%s)\", \"content\" : %s}";
-    String responseValueMsg = uri;
-    String responseValueMsgSorry = "not implemented: " + uri;
-    String responseValueMsgError = "error: " + uri;
-
-    String command = "";
-    int commandStatus = 0;
-    boolean isCommandSession = false;
-    String sessionID = "0";
-    String subCommand = "";
-    String subCommandParm = "";
-    String[] route = uri.split("/");
+    private final ExecutorService pool;
+    private final List<ClientHandler> running = Collections.synchronizedList(new ArrayList<ClientHandler>());
 
-    if (route.length > 1) {
-      command = route[1].toLowerCase();
-      if ("session".equals(command)) {
-        isCommandSession = true;
-        if (route.length > 2) {
-          sessionID = route[2].toLowerCase();
+    PoolRunner(int threads, int maxConnections) {
+      pool = new ThreadPoolExecutor(threads, maxConnections, 60, TimeUnit.SECONDS,
+              new SynchronousQueue<Runnable>(), new ThreadFactory() {
+        private int threadCount = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, String.format("SXServer-%d", threadCount++));
+          thread.setDaemon(true);
+          return thread;
         }
-        if (route.length > 3) {
-          subCommand = route[3].toLowerCase();
+      });
+    }
+
+    @Override
+    public void closeAll() {
+      for (ClientHandler handler : new ArrayList<>(running)) {
+        running.remove(handler);
+        handler.close();
+      }
+    }
+
+    @Override
+    public void closed(ClientHandler handler) {
+      running.remove(handler);
+    }
+
+    @Override
+    public void exec(ClientHandler handler) {
+      running.add(handler);
+      try {
+        pool.execute(handler);
+      } catch (RejectedExecutionException e) {
+        log.error("too many connections (%d): connection closed", running.size());
+        handler.close();
+      }
+    }
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="sessions">
+  static class RemoteSession {
+    final String id;
+    final boolean isLocal;
+    final Map<String, Finder> finders = new ConcurrentHashMap<>();
+    final Map<Integer, List<Element>> observers = new ConcurrentHashMap<>();
+    final List<EventStream> streams = new CopyOnWriteArrayList<>();
+    int observerCount = 0;
+    long lastUsed = new Date().getTime();
+
+    RemoteSession(boolean isLocal) {
+      id = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+      this.isLocal = isLocal;
+    }
+
+    void publish(String key, JSONObject event) {
+      for (EventStream stream : streams) {
+        stream.offer(key, event);
+      }
+    }
+
+    void stopObserver(int observer) {
+      List<Element> wheres = observers.remove(observer);
+      if (SX.isNotNull(wheres)) {
+        for (Element where : wheres) {
+          where.observeStop();
         }
-        if (route.length > 4) {
-          subCommandParm = route[4].toLowerCase();
+      }
+    }
+
+    void close() {
+      for (Integer observer : new ArrayList<>(observers.keySet())) {
+        stopObserver(observer);
+      }
+      for (EventStream stream : streams) {
+        stream.close();
+      }
+      for (Finder finder : finders.values()) {
+        finder.release();
+      }
+      finders.clear();
+    }
+  }
+
+  // looks for expired sessions every tenth of the timeout (at least every second)
+  private void startReaper() {
+    final long timeout = (long) (1000 * SX.getOptionNumber("Settings.ServerSessionTimeout", 600));
+    if (timeout <= 0) {
+      return;
+    }
+    reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SXServer-reaper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(1000, timeout / 10);
+    reaper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        long now = new Date().getTime();
+        for (RemoteSession session : sessions.values()) {
+          if (session.streams.isEmpty() && now - session.lastUsed > timeout) {
+            log.trace("session %s: closed after %d secs without requests", session.id, (now - session.lastUsed) / 1000);
+            closeSession(session.id);
+          }
         }
       }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  private void closeSession(String id) {
+    RemoteSession session = sessions.remove(id);
+    if (SX.isNotNull(session)) {
+      session.close();
+    }
+  }
+
+  private RemoteSession getSession(String id) {
+    RemoteSession session = sessions.get(id);
+    if (SX.isNotNull(session)) {
+      session.lastUsed = new Date().getTime();
+    }
+    return session;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="images">
+
+  /**
+   * @param bytes encoded image (PNG, JPG, ...) or raw pixels (BGR order)
+   * @param parms for raw pixels: width, height, channels (1, 3 or 4)
+   * @return the content hash or null, if the bytes are not an image
+   * @throws CommandException if width, height or channels are not valid or do not fit the number of bytes
+   */
+  private String putImage(byte[] bytes, Map<String, String> parms) throws CommandException {
+    boolean raw = parms.containsKey("width");
+    int width = getNumber(parms, "width", 0);
+    int height = getNumber(parms, "height", 0);
+    int channels = getNumber(parms, "channels", 3);
+    if (raw) {
+      if (width < 1 || height < 1 || (channels != 1 && channels != 3 && channels != 4)) {
+        throw new CommandException(Response.Status.BAD_REQUEST,
+                String.format("image: width %d, height %d, channels %d not valid", width, height, channels));
+      }
+      if ((long) width * height * channels != bytes.length) {
+        throw new CommandException(Response.Status.BAD_REQUEST,
+                String.format("image: %dx%dx%d does not fit %d bytes", width, height, channels, bytes.length));
+      }
+    }
+    String hash = raw ? getHash(bytes, width, height, channels) : getHash(bytes);
+    synchronized (images) {
+      if (images.containsKey(hash)) {
+        return hash;
+      }
+    }
+    SX.loadNative(SX.NATIVES.OPENCV);
+    Mat mat;
+    if (raw) {
+      mat = new Mat(height, width, CvType.makeType(CvType.CV_8U, channels));
+      mat.put(0, 0, bytes);
     } else {
-      isGet = true;
-      command = "state";
-      responseValueMsg = "using GET/state: " + uri;
+      mat = Imgcodecs.imdecode(new MatOfByte(bytes), Imgcodecs.IMREAD_UNCHANGED);
     }
-    if (isGet) {
-      if (isCommandSession) {
-        isImplemented = false;
-      } else if (command.startsWith("stop")) {
-        shouldStop = true;
-        log.trace("stopping intentionally");
-        responseValueMsg = "server is stopping";
-      } else if (command.startsWith("state")) {
-        responseValueContent = String.format("\"running on localhost:%d\"", currentPort);
-      } else if (command.startsWith("sessions")) {
-        isImplemented = false;
+    if (mat.empty()) {
+      return null;
+    }
+    Picture picture = new Picture(mat, false);
+    picture.setName(hash);
+    synchronized (images) {
+      images.put(hash, picture);
+    }
+    return hash;
+  }
+
+  private static int getNumber(Map<String, String> parms, String name, int defaultValue) throws CommandException {
+    String number = parms.get(name);
+    if (SX.isNull(number)) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(number.trim());
+    } catch (NumberFormatException e) {
+      throw new CommandException(Response.Status.BAD_REQUEST, String.format("%s not a number: %s", name, number));
+    }
+  }
+
+  private Picture getImage(String hash) {
+    if (SX.isNull(hash)) {
+      return null;
+    }
+    synchronized (images) {
+      return images.get(hash);
+    }
+  }
+
+  /**
+   * the content hash used to reference uploaded images (hex MD5 of the uploaded bytes)
+   *
+   * @param bytes as uploaded
+   * @return the hash
+   */
+  public static String getHash(byte[] bytes) {
+    return getHash("", bytes);
+  }
+
+  /**
+   * the content hash of raw pixels: the same bytes are another image in another shape
+   *
+   * @param bytes    as uploaded
+   * @param width    of the image
+   * @param height   of the image
+   * @param channels of the image
+   * @return the hash
+   */
+  public static String getHash(byte[] bytes, int width, int height, int channels) {
+    return getHash(String.format("%dx%dx%d:", width, height, channels), bytes);
+  }
+
+  private static String getHash(String shape, byte[] bytes) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      digest.update(shape.getBytes());
+      StringBuilder hash = new StringBuilder();
+      for (byte digit : digest.digest(bytes)) {
+        hash.append(String.format("%02x", digit));
+      }
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  private static byte[] readBody(IHTTPSession session) throws IOException, CommandException {
+    int length = getNumber(session.getHeaders(), "content-length", 0);
+    if (length < 0) {
+      throw new CommandException(Response.Status.BAD_REQUEST, "content-length not valid: " + length);
+    }
+    byte[] body = new byte[length];
+    InputStream input = session.getInputStream();
+    int offset = 0;
+    while (offset < body.length) {
+      int count = input.read(body, offset, body.length - offset);
+      if (count < 0) {
+        throw new IOException("body incomplete");
+      }
+      offset += count;
+    }
+    return body;
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="observe">
+
+  /**
+   * the observed events are run by the Events loop of the server (regions with the same rectangle are captured once),
+   * each happening is published to all event streams of the session
+   *
+   * @param parameters {"where": {"x","y","w","h"}} (local sessions: the screen) or {"base": hash},
+   *                   "events": [{"type": "appear"|"vanish", "target": hash, "score": 0.7}, {"type": "change", "minimum": 50}],
+   *                   "repeat": seconds until an event is observed again (-1 = only once, default 1)
+   * @return {"observer": id}
+   */
+  private JSONObject startObserver(final RemoteSession session, JSONObject parameters) throws CommandException {
+    Element area;
+    if (parameters.has("base")) {
+      area = getImage(parameters.getString("base"));
+      if (SX.isNull(area)) {
+        throw new CommandException(Response.Status.NOT_FOUND, "base unknown: " + parameters.getString("base"));
+      }
+    } else if (session.isLocal && parameters.has("where")) {
+      JSONObject jWhere = parameters.getJSONObject("where");
+      area = new Element(jWhere.getInt("x"), jWhere.getInt("y"), jWhere.getInt("w"), jWhere.getInt("h"));
+    } else {
+      throw new CommandException(Response.Status.BAD_REQUEST, "observe: where (local sessions) or base missing");
+    }
+    JSONArray jEvents = parameters.optJSONArray("events");
+    if (SX.isNull(jEvents) || jEvents.length() == 0) {
+      throw new CommandException(Response.Status.BAD_REQUEST, "observe: events missing");
+    }
+    // all events are checked before any is registered: an invalid event leaves nothing behind
+    List<Element> whats = new ArrayList<>();
+    for (int n = 0; n < jEvents.length(); n++) {
+      JSONObject jEvent = jEvents.getJSONObject(n);
+      String type = jEvent.optString("type", "").toLowerCase();
+      if ("change".equals(type)) {
+        whats.add(null);
+      } else if ("appear".equals(type) || "vanish".equals(type)) {
+        whats.add(getTarget(jEvent));
       } else {
-        isImplemented = false;
+        throw new CommandException(Response.Status.BAD_REQUEST, "observe: event type invalid: " + type);
+      }
+    }
+    final int repeat = parameters.optInt("repeat", 1);
+    final int observer;
+    synchronized (session) {
+      observer = ++session.observerCount;
+    }
+    List<Element> wheres = new ArrayList<>();
+    for (int n = 0; n < jEvents.length(); n++) {
+      JSONObject jEvent = jEvents.getJSONObject(n);
+      final String type = jEvent.optString("type", "").toLowerCase();
+      final String key = String.format("%d-%d", observer, n);
+      // one where per event: the events of an element are kept by what (equal, if of same size)
+      Element where = area instanceof Picture ? new Picture(area.getContent(), false) : new Element(area);
+      Handler handler = new Handler() {
+        @Override
+        public void run(Event event) {
+          JSONObject published = new JSONObject().put("observer", observer).put("type", type)
+                  .put("time", event.getWhen()).put("count", event.getCount());
+          if (event.isChange()) {
+            JSONArray changes = new JSONArray();
+            for (Element change : event.getChanges()) {
+              changes.put(new JSONObject().put("x", change.x).put("y", change.y).put("w", change.w).put("h", change.h));
+            }
+            published.put("changes", changes);
+          } else {
+            published.put("match", toJSON(event.isAppear() ? event.getMatch() : event.getVanish()));
+          }
+          session.publish(key, published);
+          if (repeat > -1) {
+            event.repeat(repeat);
+          }
+        }
+      };
+      if ("change".equals(type)) {
+        where.onChange(jEvent.optInt("minimum", 50), handler);
+      } else if ("appear".equals(type)) {
+        where.onAppear(whats.get(n), handler);
+      } else {
+        where.onVanish(whats.get(n), handler);
+      }
+      wheres.add(where);
+    }
+    session.observers.put(observer, wheres);
+    for (Element where : wheres) {
+      where.observe();
+    }
+    return new JSONObject().put("observer", observer);
+  }
+
+  /**
+   * the events of a session as server-sent events (text/event-stream, chunked) on a long-lived connection<br>
+   * a slow client gets coalesced events: while not yet sent, a newer happening of the same event replaces the older one
+   * (counted in "coalesced", the change rectangles are merged), so the memory per stream is bounded
+   * by the number of observed events and the observation never waits for the client
+   */
+  static class EventStream extends InputStream {
+
+    private static final int HEARTBEAT = 15000;
+    private static final int MAX_CHANGES = 50;
+
+    private final RemoteSession session;
+    private final LinkedHashMap<String, JSONObject> pending = new LinkedHashMap<>();
+    private byte[] chunk = new byte[0];
+    private int position = 0;
+    private long sequence = 0;
+    private boolean closed = false;
+
+    EventStream(RemoteSession session) {
+      this.session = session;
+      session.streams.add(this);
+    }
+
+    synchronized void offer(String key, JSONObject event) {
+      if (closed) {
+        return;
+      }
+      JSONObject previous = pending.get(key);
+      if (SX.isNotNull(previous)) {
+        event.put("coalesced", previous.optInt("coalesced", 0) + 1);
+        if (event.has("changes") && previous.has("changes")) {
+          event.put("changes", mergeChanges(previous.getJSONArray("changes"), event.getJSONArray("changes")));
+        }
       }
-    } else if (isDelete) {
+      pending.put(key, event);
+      notifyAll();
+    }
+
+    // all rectangles, but only their bounding box, when there would be too many
+    private static JSONArray mergeChanges(JSONArray before, JSONArray after) {
+      JSONArray merged = new JSONArray();
+      for (JSONArray changes : new JSONArray[]{before, after}) {
+        for (int n = 0; n < changes.length(); n++) {
+          merged.put(changes.get(n));
+        }
+      }
+      if (merged.length() <= MAX_CHANGES) {
+        return merged;
+      }
+      java.awt.Rectangle union = null;
+      for (int n = 0; n < merged.length(); n++) {
+        JSONObject change = merged.getJSONObject(n);
+        java.awt.Rectangle rect = new java.awt.Rectangle(change.getInt("x"), change.getInt("y"),
+                change.getInt("w"), change.getInt("h"));
+        union = SX.isNull(union) ? rect : union.union(rect);
+      }
+      return new JSONArray().put(new JSONObject().put("x", union.x).put("y", union.y)
+              .put("w", union.width).put("h", union.height));
+    }
 
-    } else if (isPost) {
-      final HashMap<String, String> bodyFiles = new HashMap<String, String>();
-      if ("application/json".equals(headers.get("content-type"))) {
+    // the next event in SSE format, a comment as heartbeat after some idle time (detects gone clients), null at end
+    private synchronized byte[] next() {
+      if (pending.isEmpty() && !closed) {
         try {
-          session.parseBody(bodyFiles);
-          responseValueContent = bodyFiles.get("postData");
-        } catch (Exception e) {
-          log.error("POST: invalid: %s", e.getMessage());
-          isImplemented = false;
+          wait(HEARTBEAT);
+        } catch (InterruptedException e) {
+          closed = true;
         }
-        if ("execute".equals(subCommand)) {
-          log.trace("EXECUTE: %s", responseValueContent);
+      }
+      if (pending.isEmpty()) {
+        return closed ? null : ": heartbeat\n\n".getBytes();
+      }
+      Iterator<Map.Entry<String, JSONObject>> entries = pending.entrySet().iterator();
+      JSONObject event = entries.next().getValue();
+      entries.remove();
+      try {
+        return String.format("id: %d\nevent: %s\ndata: %s\n\n",
+                ++sequence, event.getString("type"), event.toString()).getBytes("UTF-8");
+      } catch (IOException e) {
+        return new byte[0];
+      }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (position >= chunk.length) {
+        chunk = next();
+        position = 0;
+        if (SX.isNull(chunk)) {
+          return -1;
         }
-      } else {
-        isImplemented = false;
       }
-      if (isImplemented) {
+      int count = Math.min(length, chunk.length - position);
+      System.arraycopy(chunk, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      int count;
+      while ((count = read(one, 0, 1)) == 0) {
       }
-    } else {
-        isImplemented = false;
+      return count < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+      session.streams.remove(this);
+      session.lastUsed = new Date().getTime();
+    }
+  }
+
+  /**
+   * an event stream holds a connection (and its thread) while open, so there are at most
+   * Settings.ServerMaxStreams per session and half of Settings.ServerMaxConnections for all sessions
+   */
+  private EventStream openStream(RemoteSession session) throws CommandException {
+    synchronized (sessions) {
+      int maxStreams = (int) SX.getOptionNumber("Settings.ServerMaxStreams", 2);
+      if (session.streams.size() >= maxStreams) {
+        throw new CommandException(Response.Status.CONFLICT,
+                String.format("events: session has %d open event streams", session.streams.size()));
+      }
+      int allStreams = 0;
+      for (RemoteSession remoteSession : sessions.values()) {
+        allStreams += remoteSession.streams.size();
+      }
+      if (allStreams >= SX.getOptionNumber("Settings.ServerMaxConnections", 64) / 2) {
+        throw new CommandException(Response.Status.CONFLICT,
+                String.format("events: too many open event streams (%d)", allStreams));
+      }
+      return new EventStream(session);
+    }
+  }
+
+  // the events are sent as they happen (no compression buffering)
+  @Override
+  protected boolean useGzipWhenAccepted(Response response) {
+    return !"text/event-stream".equals(response.getMimeType()) && super.useGzipWhenAccepted(response);
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="commands">
+  private static class CommandException extends Exception {
+    final Response.Status status;
+
+    CommandException(Response.Status status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private static JSONObject toJSON(Element match) {
+    if (SX.isNull(match) || !match.isValid()) {
+      return null;
+    }
+    JSONObject jMatch = new JSONObject();
+    jMatch.put("x", match.x);
+    jMatch.put("y", match.y);
+    jMatch.put("w", match.w);
+    jMatch.put("h", match.h);
+    jMatch.put("score", match.getScore());
+    return jMatch;
+  }
+
+  private Element getTarget(JSONObject parameters) throws CommandException {
+    Picture target = getImage(parameters.optString("target", null));
+    if (SX.isNull(target)) {
+      throw new CommandException(Response.Status.NOT_FOUND, "target unknown: " + parameters.optString("target"));
+    }
+    if (parameters.has("score")) {
+      target = new Picture(target);
+      target.setWantedScore(parameters.getDouble("score"));
+    }
+    return target;
+  }
+
+  // the base image (cached Finder per session) or the screen of a local session
+  private Finder getFinder(RemoteSession session, JSONObject parameters) throws CommandException {
+    String baseHash = parameters.optString("base", null);
+    if (SX.isNull(baseHash)) {
+      if (!session.isLocal) {
+        throw new CommandException(Response.Status.BAD_REQUEST, "base missing");
+      }
+      return new Finder(Do.capture());
+    }
+    Finder finder = session.finders.get(baseHash);
+    if (SX.isNull(finder)) {
+      Picture base = getImage(baseHash);
+      if (SX.isNull(base)) {
+        throw new CommandException(Response.Status.NOT_FOUND, "base unknown: " + baseHash);
+      }
+      finder = new Finder(base);
+      session.finders.put(baseHash, finder);
+    }
+    return finder;
+  }
+
+  // the Finder of a screen capture is only used once: its Mats go back to the pool
+  private void release(Finder finder, JSONObject parameters) {
+    if (SX.isNull(parameters.optString("base", null))) {
+      finder.release();
     }
-    if (!isImplemented) {
-      status = Response.Status.NOT_IMPLEMENTED;
-      responseValueMsg = responseValueMsgSorry;
-    } else if (isError) {
-      responseValueMsg = responseValueMsgError;
+  }
+
+  private Element find(RemoteSession session, JSONObject parameters, Element target) throws CommandException {
+    Finder finder = getFinder(session, parameters);
+    try {
+      return finder.find(target);
+    } finally {
+      release(finder, parameters);
+    }
+  }
+
+  private Object execute(RemoteSession session, String command, JSONObject parameters) throws CommandException {
+    if ("find".equals(command)) {
+      return toJSON(find(session, parameters, getTarget(parameters)));
+    } else if ("findall".equals(command)) {
+      Element target = getTarget(parameters);
+      JSONArray matches = new JSONArray();
+      Finder finder = getFinder(session, parameters);
+      try {
+        for (Element match : finder.findAll(target)) {
+          matches.put(toJSON(match));
+        }
+      } finally {
+        release(finder, parameters);
+      }
+      return matches;
+    } else if ("wait".equals(command)) {
+      Element target = getTarget(parameters);
+      long waitUntil = new Date().getTime() + (long) (1000 * parameters.optDouble("timeout", 3));
+      while (true) {
+        Element match = find(session, parameters, target);
+        if (match.isMatch() || parameters.has("base") || new Date().getTime() > waitUntil) {
+          return toJSON(match);
+        }
+        SX.pause(1 / Math.max(0.1, SX.getOptionNumber("Settings.WaitScanRate", 3)));
+      }
+    } else if ("click".equals(command) || "type".equals(command)) {
+      if (!session.isLocal) {
+        throw new CommandException(Response.Status.BAD_REQUEST, command + ": only for local sessions");
+      }
+      if ("type".equals(command)) {
+        return Do.write(parameters.optString("text", ""));
+      }
+      if (parameters.has("target")) {
+        return toJSON(Do.click(getTarget(parameters)));
+      }
+      return toJSON(Do.click(new Element(parameters.getInt("x"), parameters.getInt("y"))));
     }
-    if (!Response.Status.OK.equals(status)) {
-      commandStatus = status.getRequestStatus();
+    throw new CommandException(Response.Status.NOT_IMPLEMENTED, "not implemented: " + command);
+  }
+
+  /**
+   * the commands are run in the given order, the first failing command (error or nothing found) ends the batch
+   * (unless "abort": false)<br>
+   * a click without target and coordinates clicks the center of the previous match
+   *
+   * @param parameters {"commands": [{"command": "find", "target": hash, ...}, ...], "abort": true}
+   * @return {"results": [{"command", "status", "message", "content"}, ...], "completed": number of successful commands}
+   */
+  private JSONObject executeBatch(RemoteSession session, JSONObject parameters) throws CommandException {
+    JSONArray commands = parameters.optJSONArray("commands");
+    if (SX.isNull(commands)) {
+      throw new CommandException(Response.Status.BAD_REQUEST, "batch: commands missing");
+    }
+    boolean shouldAbort = parameters.optBoolean("abort", true);
+    JSONArray results = new JSONArray();
+    JSONObject lastMatch = null;
+    int completed = 0;
+    for (int n = 0; n < commands.length(); n++) {
+      JSONObject commandParameters = commands.getJSONObject(n);
+      String command = commandParameters.optString("command", "").toLowerCase();
+      if ("click".equals(command) && SX.isNotNull(lastMatch)
+              && !commandParameters.has("target") && !commandParameters.has("x")) {
+        commandParameters.put("x", lastMatch.getInt("x") + lastMatch.getInt("w") / 2);
+        commandParameters.put("y", lastMatch.getInt("y") + lastMatch.getInt("h") / 2);
+      }
+      JSONObject result = new JSONObject().put("command", command);
+      Response.Status status = Response.Status.OK;
+      Object content = null;
+      try {
+        content = execute(session, command, commandParameters);
+        if (SX.isNull(content) && ("find".equals(command) || "wait".equals(command))) {
+          status = Response.Status.NOT_FOUND;
+          result.put("message", "not found");
+        }
+      } catch (CommandException e) {
+        status = e.status;
+        result.put("message", e.getMessage());
+      } catch (Exception e) {
+        log.error("batch: %s: %s", command, e);
+        status = Response.Status.INTERNAL_ERROR;
+        result.put("message", "error: " + e.getMessage());
+      }
+      if (content instanceof JSONObject && ((JSONObject) content).has("score")) {
+        lastMatch = (JSONObject) content;
+      }
+      results.put(result.put("status", Response.Status.OK.equals(status) ? 0 : status.getRequestStatus())
+              .put("content", SX.isNull(content) ? JSONObject.NULL : content));
+      if (!Response.Status.OK.equals(status)) {
+        if (shouldAbort) {
+          break;
+        }
+      } else {
+        completed++;
+      }
+    }
+    return new JSONObject().put("results", results).put("completed", completed);
+  }
+  //</editor-fold>
+
+  @Override
+  public Response serve(IHTTPSession session) {
+    Response.Status status = Response.Status.OK;
+    String uri = session.getUri();
+    Method method = session.getMethod();
+    log.trace("%s - %s", method, uri);
+
+    String sessionID = "0";
+    String message = uri;
+    Object content = JSONObject.NULL;
+    String[] route = uri.split("/");
+    String command = route.length > 1 ? route[1].toLowerCase() : "state";
+    try {
+      if ("session".equals(command)) {
+        if (route.length < 3) {
+          if (!Method.POST.equals(method)) {
+            throw new CommandException(Response.Status.METHOD_NOT_ALLOWED, "use POST to create a session");
+          }
+          JSONObject parameters = getParameters(session);
+          RemoteSession remoteSession = new RemoteSession("local".equals(parameters.optString("device")));
+          sessions.put(remoteSession.id, remoteSession);
+          sessionID = remoteSession.id;
+          content = new JSONObject().put("sessionId", sessionID).put("local", remoteSession.isLocal);
+        } else {
+          sessionID = route[2];
+          RemoteSession remoteSession = getSession(sessionID);
+          if (SX.isNull(remoteSession)) {
+            throw new CommandException(Response.Status.NOT_FOUND, "session unknown: " + sessionID);
+          }
+          if (route.length < 4) {
+            if (!Method.DELETE.equals(method)) {
+              throw new CommandException(Response.Status.METHOD_NOT_ALLOWED, "use DELETE to end a session");
+            }
+            closeSession(sessionID);
+          } else if ("events".equals(route[3].toLowerCase())) {
+            log.trace("%s - %s: event stream", method, uri);
+            return newChunkedResponse(Response.Status.OK, "text/event-stream", openStream(remoteSession));
+          } else if ("observe".equals(route[3].toLowerCase())) {
+            if (Method.DELETE.equals(method)) {
+              remoteSession.stopObserver(Integer.parseInt(route[4]));
+            } else {
+              content = startObserver(remoteSession, getParameters(session));
+            }
+          } else if ("image".equals(route[3].toLowerCase())) {
+            content = uploadImage(session);
+          } else if ("batch".equals(route[3].toLowerCase())) {
+            content = executeBatch(remoteSession, getParameters(session));
+          } else {
+            content = execute(remoteSession, route[3].toLowerCase(), getParameters(session));
+          }
+        }
+      } else if ("image".equals(command)) {
+        if (Method.POST.equals(method)) {
+          content = uploadImage(session);
+        } else {
+          Picture image = getImage(route.length > 2 ? route[2] : null);
+          if (SX.isNull(image)) {
+            throw new CommandException(Response.Status.NOT_FOUND, "image unknown");
+          }
+          content = new JSONObject().put("hash", route[2]).put("w", image.w).put("h", image.h);
+        }
+      } else if (command.startsWith("stop")) {
+        shouldStop = true;
+        log.trace("stopping intentionally");
+        message = "server is stopping";
+      } else if (command.startsWith("state")) {
+        content = String.format("running on localhost:%d", currentPort);
+      } else if (command.startsWith("sessions")) {
+        content = new JSONArray(sessions.keySet());
+      } else {
+        throw new CommandException(Response.Status.NOT_IMPLEMENTED, "not implemented: " + uri);
+      }
+    } catch (CommandException e) {
+      status = e.status;
+      message = e.getMessage();
+    } catch (Exception e) {
+      log.error("%s - %s: %s", method, uri, e);
+      status = Response.Status.INTERNAL_ERROR;
+      message = "error: " + uri + ": " + e.getMessage();
     }
-    responseValue = String.format(responseValueTemplate, method, responseValueMsg, responseValueContent);
-    String theResponse = String.format(responseTemplate, sessionID, commandStatus, responseValue);
+    int commandStatus = Response.Status.OK.equals(status) ? 0 : status.getRequestStatus();
+    JSONObject value = new JSONObject()
+            .put("message", String.format("%s(%s)", method, message))
+            .put("content", SX.isNull(content) ? JSONObject.NULL : content);
+    String theResponse = new JSONObject()
+            .put("sessionId", sessionID)
+            .put("status", "" + commandStatus)
+            .put("value", value).toString();
     log.trace("Response: %s", theResponse);
     return newFixedLengthResponse(status, "application/json", theResponse);
   }
+
+  private static JSONObject getParameters(IHTTPSession session) throws IOException, CommandException {
+    byte[] body = readBody(session);
+    if (body.length == 0) {
+      return new JSONObject();
+    }
+    try {
+      return new JSONObject(new String(body, "UTF-8"));
+    } catch (JSONException e) {
+      throw new CommandException(Response.Status.BAD_REQUEST, "body not valid JSON: " + e.getMessage());
+    }
+  }
+
+  private JSONObject uploadImage(IHTTPSession session) throws IOException, CommandException {
+    String hash = putImage(readBody(session), session.getParms());
+    if (SX.isNull(hash)) {
+      throw new CommandException(Response.Status.BAD_REQUEST, "not an image");
+    }
+    return new JSONObject().put("hash", hash);
+  }
 }
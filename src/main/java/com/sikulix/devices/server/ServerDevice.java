@@ -29,7 +29,7 @@ public class ServerDevice extends IDevice {
 
   @Override
   public void stop() {
-
+    Server.shouldStop = true;
   }
 
   @Override
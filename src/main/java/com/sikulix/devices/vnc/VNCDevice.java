@@ -12,8 +12,6 @@ import com.sikulix.vnc.VNCClient;
 
 import java.awt.Rectangle;
 import java.io.Closeable;
-import java.util.ArrayList;
-import java.util.List;
 
 public class VNCDevice extends IDevice implements Closeable {
 
@@ -82,8 +80,6 @@ public class VNCDevice extends IDevice implements Closeable {
   }
   //</editor-fold>
 
-  private static List<IDevice> devices = new ArrayList<>();
-
   private String ip = null;
   private Integer port = null;
   private String user = null;
@@ -91,9 +87,10 @@ public class VNCDevice extends IDevice implements Closeable {
   private Integer connectionTimeout = null;
   private Integer timeout = null;
 
+  private VNCSessions.Session session = null;
   private VNCClient client = null;
-  private volatile boolean closed;
   private Picture lastScreenImage;
+  private boolean settled = false;
 
   @Override
   public IDevice start(Object... args) {
@@ -101,21 +98,9 @@ public class VNCDevice extends IDevice implements Closeable {
       parameters.initParameters(this, args);
       log.trace("start(): %s", parameters);
       try {
-        client = VNCClient.connect(ip, port, password, true);
-        new Thread(new Runnable() {
-          @Override
-          public void run() {
-            try {
-              client.processMessages();
-            } catch (RuntimeException e) {
-              if (!closed) {
-                throw e;
-              }
-            }
-          }
-        }).start();
+        session = VNCSessions.open(ip, port, password);
+        client = session.getClient();
         capture();
-        devices.add(this);
         return this;
       } catch (Exception e) {
         log.error("VNCClient.connect: did not work: %s", e.getMessage());
@@ -130,29 +115,29 @@ public class VNCDevice extends IDevice implements Closeable {
   @Override
   public void stop() {
     log.trace("stop(): %s", getIp());
-    devices.remove(this);
     close();
   }
 
   @Override
-  public void close() {
-    closed = true;
-    client.close();
+  public synchronized void close() {
+    if (SX.isNull(session)) {
+      return;
+    }
+    VNCSessions.release(session);
+    session = null;
     client = null;
   }
 
+  /**
+   * closes all VNC sessions and stops the shared threads (see VNCSessions.shutdown)
+   */
   public static void stopAll() {
-    if (devices.size() > 0) {
-      for (IDevice device : devices.toArray(new IDevice[]{})) {
-        device.stop();
-        devices.remove(device);
-      }
-    }
+    VNCSessions.shutdown();
   }
 
   @Override
   public boolean isValid() {
-    return SX.isNotNull(client);
+    return SX.isNotNull(session) && !session.isClosed();
   }
 
   @Override
@@ -287,8 +272,15 @@ public class VNCDevice extends IDevice implements Closeable {
 
   }
 
-  int maxChecks = 100;
-
+  /**
+   * the pixels are taken from the framebuffer mirror (see getMirror) without copying<br>
+   * the first capture waits until the screen has settled
+   * (no change for Settings.VNCSettleTime seconds, at most Settings.VNCSettleTimeout seconds),
+   * later ones only with Settings.VNCSettleAlways (see getMirror().waitSettled to wait when needed)
+   *
+   * @param args optional: the Element to capture (default the whole screen)
+   * @return the pixels
+   */
   @Override
   public Picture capture(Object... args) {
     Element what = new Element(client.getBounds());
@@ -297,34 +289,31 @@ public class VNCDevice extends IDevice implements Closeable {
         what = (Element) args[0];
       }
     }
-    if (maxChecks > 0) {
-      client.refreshFramebuffer(what.x, what.y, what.w, what.h, false);
+    VNCSessions.Mirror mirror = getMirror();
+    if (!settled || SX.isOption("Settings.VNCSettleAlways", false)) {
+      long settleTime = (long) (1000 * SX.getOptionNumber("Settings.VNCSettleTime", 0.15));
+      mirror.waitSettled(settleTime, (long) (1000 * SX.getOptionNumber("Settings.VNCSettleTimeout", 3)));
+      settled = true;
     }
-    Picture picture2;
-    Picture picture1 = new Picture(client.getFrameBuffer(what.x, what.y, what.w, what.h));
-    if (maxChecks > 0) {
-      SX.pause(0.15);
-      picture2 = new Picture(client.getFrameBuffer(what.x, what.y, what.w, what.h));
-      List<Element> rectangles = Finder.detectChanges(picture1.getContent(), picture2.getContent());
-      while (rectangles.size() == 0) {
-        picture1 = new Picture(picture2);
-        picture2 = new Picture(client.getFrameBuffer(what.x, what.y, what.w, what.h));
-        rectangles = Finder.detectChanges(picture1.getContent(), picture2.getContent());
-        maxChecks--;
-        if (maxChecks < 0) {
-          break;
-        }
-      }
-      while (rectangles.size() > 0) {
-        picture1 = new Picture(picture2);
-        picture2 = new Picture(client.getFrameBuffer(what.x, what.y, what.w, what.h));
-        rectangles = Finder.detectChanges(picture1.getContent(), picture2.getContent());
-      }
-      maxChecks = 0;
-    } else {
-      return picture1;
+    Picture picture = mirror.getFrame(what.getRectangle());
+    if (SX.isNull(picture)) {
+      picture = new Picture(client.getFrameBuffer(what.x, what.y, what.w, what.h));
     }
-    return picture2;
+    return picture;
+  }
+
+  /**
+   * @return the framebuffer mirror of the session (see VNCSessions.Mirror)
+   */
+  public VNCSessions.Mirror getMirror() {
+    return session.getMirror();
+  }
+
+  /**
+   * @return the session (connection) used by this device - might be shared with other devices
+   */
+  public VNCSessions.Session getSession() {
+    return session;
   }
 
   @Override
@@ -0,0 +1,573 @@
+/*
+ * Copyright (c) 2017 - sikulix.com - MIT license
+ */
+
+package com.sikulix.devices.vnc;
+
+import com.sikulix.api.Element;
+import com.sikulix.api.Picture;
+import com.sikulix.core.ChangeDetector;
+import com.sikulix.core.SX;
+import com.sikulix.core.SXLog;
+import com.sikulix.vnc.VNCClient;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * the VNC connections of this JVM: one session per ip:port, shared by all VNCDevices using it<br>
+ * the blocking message loops of the clients run in a shared pool of daemon threads,
+ * the framebuffer mirrors of all sessions are updated by Settings.VNCThreads shared threads<br>
+ * shutdown closes all sessions and stops the threads (VNCDevice.stopAll)
+ */
+public class VNCSessions {
+
+  private static final SXLog log = SX.getSXLog("SX.VNCSessions");
+
+  private static final Map<String, Session> sessions = new HashMap<>();
+  private static ExecutorService messagePool = null;
+  private static ScheduledExecutorService mirrorPool = null;
+
+  private VNCSessions() {
+  }
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      private int threadCount = 0;
+
+      @Override
+      public synchronized Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, String.format("%s-%d", name, threadCount++));
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static synchronized ExecutorService getMessagePool() {
+    if (SX.isNull(messagePool)) {
+      messagePool = Executors.newCachedThreadPool(newThreadFactory("SX.VNCMessages"));
+    }
+    return messagePool;
+  }
+
+  private static synchronized ScheduledExecutorService getMirrorPool() {
+    if (SX.isNull(mirrorPool)) {
+      int threads = (int) Math.max(1, SX.getOptionNumber("Settings.VNCThreads", 2));
+      mirrorPool = Executors.newScheduledThreadPool(threads, newThreadFactory("SX.VNCMirror"));
+    }
+    return mirrorPool;
+  }
+
+  //<editor-fold desc="open, release, shutdown">
+
+  /**
+   * the session for ip:port - an open session is reused, otherwise a new connection is made
+   *
+   * @param ip       host
+   * @param port     port
+   * @param password might be null
+   * @return the session (to be given back with release)
+   * @throws Exception if the connection did not work
+   */
+  public static Session open(String ip, int port, String password) throws Exception {
+    String key = String.format("%s:%d", ip, port);
+    Session session = reuse(key);
+    if (SX.isNotNull(session)) {
+      return session;
+    }
+    // connecting might take long: other sessions are not blocked meanwhile
+    VNCClient client = VNCClient.connect(ip, port, password, true);
+    synchronized (sessions) {
+      session = reuse(key);
+      if (SX.isNull(session)) {
+        session = new Session(key, client);
+        sessions.put(key, session);
+        session.start();
+        log.trace("open: connected %s", key);
+        return session;
+      }
+    }
+    // connected in parallel to an open session
+    try {
+      client.close();
+    } catch (RuntimeException e) {
+      log.error("open: %s: close: %s", key, e.getMessage());
+    }
+    return session;
+  }
+
+  private static Session reuse(String key) {
+    synchronized (sessions) {
+      Session session = sessions.get(key);
+      if (SX.isNull(session) || session.isClosed()) {
+        return null;
+      }
+      session.users++;
+      log.trace("open: reused %s (%d users)", key, session.users);
+      return session;
+    }
+  }
+
+  /**
+   * a user of the session is done - the last one closes the connection
+   *
+   * @param session as from open
+   */
+  public static void release(Session session) {
+    synchronized (sessions) {
+      session.users--;
+      if (session.users > 0) {
+        return;
+      }
+      if (sessions.get(session.key) == session) {
+        sessions.remove(session.key);
+      }
+    }
+    session.close();
+  }
+
+  /**
+   * @return the open sessions
+   */
+  public static List<Session> getSessions() {
+    synchronized (sessions) {
+      return new ArrayList<>(sessions.values());
+    }
+  }
+
+  /**
+   * close all sessions and stop the shared threads
+   */
+  public static void shutdown() {
+    List<Session> open;
+    synchronized (sessions) {
+      open = new ArrayList<>(sessions.values());
+      sessions.clear();
+    }
+    for (Session session : open) {
+      session.close();
+    }
+    ExecutorService messages;
+    ScheduledExecutorService mirrors;
+    synchronized (VNCSessions.class) {
+      messages = messagePool;
+      mirrors = mirrorPool;
+      messagePool = null;
+      mirrorPool = null;
+    }
+    for (ExecutorService pool : new ExecutorService[]{mirrors, messages}) {
+      if (SX.isNull(pool)) {
+        continue;
+      }
+      pool.shutdown();
+      try {
+        if (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+          pool.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        pool.shutdownNow();
+      }
+    }
+    log.trace("shutdown: %d sessions closed", open.size());
+  }
+
+  public static String getStatsString() {
+    StringBuilder stats = new StringBuilder();
+    for (Session session : getSessions()) {
+      stats.append(session.getStatsString()).append("\n");
+    }
+    return stats.toString();
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="Session">
+  public static class Session {
+
+    private final String key;
+    private final VNCClient client;
+    private final Mirror mirror;
+    private int users = 1;
+    private volatile boolean closed = false;
+    private Future<?> messages = null;
+
+    private Session(String key, VNCClient client) {
+      this.key = key;
+      this.client = client;
+      mirror = new Mirror(this);
+    }
+
+    private void start() {
+      messages = getMessagePool().submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            client.processMessages();
+          } catch (RuntimeException e) {
+            if (!closed) {
+              log.error("session %s: %s", key, e.getMessage());
+              synchronized (sessions) {
+                if (sessions.get(key) == Session.this) {
+                  sessions.remove(key);
+                }
+              }
+              close();
+            }
+          }
+        }
+      });
+      mirror.start();
+    }
+
+    private synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      mirror.stop();
+      try {
+        client.close();
+      } catch (RuntimeException e) {
+        log.error("session %s: close: %s", key, e.getMessage());
+      }
+      if (SX.isNotNull(messages)) {
+        messages.cancel(true);
+      }
+      log.trace("session %s: closed (%s)", key, mirror.getStatsString());
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    public VNCClient getClient() {
+      return client;
+    }
+
+    public Mirror getMirror() {
+      return mirror;
+    }
+
+    /**
+     * @return {frames/s, framebuffer reads/s, changed bytes/s, read latency msec, reads skipped (backpressure)}
+     */
+    public double[] getStats() {
+      return mirror.getStats();
+    }
+
+    public String getStatsString() {
+      return String.format("%s: %s", key, mirror.getStatsString());
+    }
+  }
+  //</editor-fold>
+
+  //<editor-fold desc="Mirror">
+
+  /**
+   * a local mirror of the framebuffer, that follows the changes on the VNC screen:<br>
+   * Settings.VNCMirrorRate times per second an incremental framebuffer update is requested
+   * (the server only sends the changed rectangles), the framebuffer is read and the changed regions are evaluated
+   * (see ChangeDetector) - while the screen does not change, the reads get less frequent (down to 1/16 of the rate)<br>
+   * a frame is never changed after it was published, so captures are views into the newest frame<br>
+   * backpressure: as long as more than Settings.VNCMaxPendingFrames changed frames were not looked at,
+   * no more updates are requested - after Settings.VNCIdleTime seconds without any request the mirror pauses<br>
+   * a consumer always gets a current frame: if updates were skipped or the newest frame is older than one period,
+   * the framebuffer is read right away
+   */
+  public static class Mirror {
+
+    private static final int maxDirtyFrames = 100;
+    private static final int maxQuietShift = 4;
+
+    private final Session session;
+    private final Object frameLock = new Object();
+    private final Object tickLock = new Object();
+    private Mat frame = Element.getNewMat();
+    private long frameNumber = 0;
+    private long frameTime = 0;
+    private long changeTime = 0;
+    private long consumedFrame = 0;
+    private long lastRequest = 0;
+    private boolean first = true;
+    private boolean running = true;
+    private final LinkedList<DirtyFrame> dirtyFrames = new LinkedList<>();
+    private final ChangeDetector detector = new ChangeDetector();
+    private ScheduledFuture<?> ticks = null;
+
+    private long windowStart = 0;
+    private long windowFrames = 0;
+    private long windowReads = 0;
+    private long windowBytes = 0;
+    private long windowReadTime = 0;
+    private double[] stats = new double[]{0, 0, 0, 0, 0};
+    private long skipped = 0;
+    private long skippedSeen = 0;
+    private long period = 100;
+    private int quietReads = 0;
+    private int quietTicks = 0;
+
+    private Mirror(Session session) {
+      this.session = session;
+    }
+
+    private void start() {
+      lastRequest = new Date().getTime();
+      windowStart = lastRequest;
+      period = (long) (1000 / Math.max(0.1, SX.getOptionNumber("Settings.VNCMirrorRate", 10)));
+      ticks = getMirrorPool().scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          tick(false);
+        }
+      }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void stop() {
+      if (SX.isNotNull(ticks)) {
+        ticks.cancel(false);
+      }
+      synchronized (frameLock) {
+        running = false;
+        frameLock.notifyAll();
+      }
+    }
+
+    // a consumer looks at the mirror: resume if paused, refresh if updates were skipped or the frame is outdated,
+    // frames up to now are consumed
+    private void request() {
+      boolean shouldRefresh;
+      synchronized (frameLock) {
+        long now = new Date().getTime();
+        shouldRefresh = isIdle() || skipped > skippedSeen || now - frameTime > period;
+        skippedSeen = skipped;
+        lastRequest = now;
+        quietReads = 0;
+      }
+      if (shouldRefresh) {
+        tick(true);
+      }
+      synchronized (frameLock) {
+        consumedFrame = frameNumber;
+      }
+    }
+
+    private boolean isIdle() {
+      return new Date().getTime() - lastRequest > 1000 * SX.getOptionNumber("Settings.VNCIdleTime", 5);
+    }
+
+    /**
+     * @param part what to capture
+     * @return a view into the newest frame or null, if the part is not on the screen or there is no frame yet
+     */
+    public Picture getFrame(Rectangle part) {
+      request();
+      synchronized (frameLock) {
+        if (frame.empty() || part.isEmpty() || !new Rectangle(0, 0, frame.cols(), frame.rows()).contains(part)) {
+          return null;
+        }
+        return new Picture(frame.submat(new Rect(part.x, part.y, part.width, part.height)), false);
+      }
+    }
+
+    /**
+     * @return the number of the newest frame (counts the changes of the screen)
+     */
+    public long getFrameNumber() {
+      synchronized (frameLock) {
+        return frameNumber;
+      }
+    }
+
+    /**
+     * @return the time (msec) of the last read of the framebuffer (0 if there is no frame yet)
+     */
+    public long getFrameTime() {
+      synchronized (frameLock) {
+        return frameTime;
+      }
+    }
+
+    /**
+     * @return the time (msec) of the last change of the screen (0 if there is no frame yet)
+     */
+    public long getSettledSince() {
+      synchronized (frameLock) {
+        return changeTime;
+      }
+    }
+
+    /**
+     * @param settleTime msec without any change
+     * @return true if there was no change for the given time
+     */
+    public boolean isSettled(long settleTime) {
+      synchronized (frameLock) {
+        return frameNumber > 0 && frameTime - changeTime >= settleTime;
+      }
+    }
+
+    /**
+     * @param settleTime msec without any change
+     * @param timeout    msec to wait at most
+     * @return true if the screen settled in time
+     */
+    public boolean waitSettled(long settleTime, long timeout) {
+      request();
+      long waitUntil = new Date().getTime() + timeout;
+      synchronized (frameLock) {
+        while (running && !isSettled(settleTime)) {
+          long waitTime = waitUntil - new Date().getTime();
+          if (waitTime <= 0) {
+            log.trace("mirror %s: not settled within %d msec", session.key, timeout);
+            return false;
+          }
+          try {
+            frameLock.wait(waitTime);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+          lastRequest = new Date().getTime();
+          consumedFrame = frameNumber;
+          quietReads = 0;
+        }
+        return running;
+      }
+    }
+
+    /**
+     * @param sinceFrame a frame number as returned by getFrameNumber
+     * @return the regions changed after this frame (the whole screen, if the frame is not in the history anymore)
+     */
+    public List<Element> getDirtyRegions(long sinceFrame) {
+      request();
+      List<Element> regions = new ArrayList<>();
+      synchronized (frameLock) {
+        if (sinceFrame >= frameNumber) {
+          return regions;
+        }
+        if (dirtyFrames.isEmpty() || dirtyFrames.getFirst().number > sinceFrame + 1) {
+          regions.add(new Element(0, 0, frame.cols(), frame.rows()));
+          return regions;
+        }
+        for (DirtyFrame dirty : dirtyFrames) {
+          if (dirty.number > sinceFrame) {
+            regions.addAll(dirty.regions);
+          }
+        }
+      }
+      return regions;
+    }
+
+    private void tick(boolean requested) {
+      synchronized (tickLock) {
+        synchronized (frameLock) {
+          if (!running) {
+            return;
+          }
+          if (!requested) {
+            if (isIdle()) {
+              return;
+            }
+            if (frameNumber - consumedFrame > SX.getOptionNumber("Settings.VNCMaxPendingFrames", 3)) {
+              skipped++;
+              return;
+            }
+            // a quiet screen: every 2nd, 4th, ... tick reads
+            if (++quietTicks < 1 << Math.min(quietReads, maxQuietShift)) {
+              return;
+            }
+          }
+          quietTicks = 0;
+        }
+        long begin_t = new Date().getTime();
+        Mat next;
+        List<Element> changes;
+        try {
+          Rectangle bounds = session.client.getBounds();
+          session.client.refreshFramebuffer(0, 0, bounds.width, bounds.height, !first);
+          next = new Picture(session.client.getFrameBuffer(0, 0, bounds.width, bounds.height)).getContent();
+          changes = detector.detect(next);
+        } catch (RuntimeException e) {
+          if (running) {
+            log.error("mirror %s: %s", session.key, e.getMessage());
+          }
+          return;
+        }
+        first = false;
+        long readTime = new Date().getTime();
+        synchronized (frameLock) {
+          if (frame.empty() || !frame.size().equals(next.size())) {
+            changes = new ArrayList<>();
+            changes.add(new Element(0, 0, next.cols(), next.rows()));
+          }
+          if (changes.isEmpty()) {
+            next.release();
+            quietReads++;
+          } else {
+            quietReads = 0;
+            frame = next;
+            frameNumber++;
+            changeTime = readTime;
+            dirtyFrames.add(new DirtyFrame(frameNumber, changes));
+            while (dirtyFrames.size() > maxDirtyFrames) {
+              dirtyFrames.removeFirst();
+            }
+            windowFrames++;
+            for (Element change : changes) {
+              windowBytes += 4L * change.w * change.h;
+            }
+          }
+          frameTime = readTime;
+          windowReads++;
+          windowReadTime += readTime - begin_t;
+          if (readTime - windowStart >= 1000) {
+            double seconds = (readTime - windowStart) / 1000.0;
+            stats = new double[]{windowFrames / seconds, windowReads / seconds, windowBytes / seconds,
+                    windowReads > 0 ? windowReadTime / (double) windowReads : 0, skipped};
+            windowStart = readTime;
+            windowFrames = windowReads = windowBytes = windowReadTime = 0;
+          }
+          frameLock.notifyAll();
+        }
+      }
+    }
+
+    /**
+     * measured over the last full second with framebuffer reads
+     *
+     * @return {frames/s, framebuffer reads/s, changed bytes/s, read latency msec, reads skipped (backpressure)}
+     */
+    public double[] getStats() {
+      synchronized (frameLock) {
+        double[] current = stats.clone();
+        current[4] = skipped;
+        return current;
+      }
+    }
+
+    public String getStatsString() {
+      double[] current = getStats();
+      return String.format("%.1f fps, %.1f reads/s, %.0f KB/s changed, %.1f msec/read, %.0f skipped",
+              current[0], current[1], current[2] / 1024, current[3], current[4]);
+    }
+  }
+
+  private static class DirtyFrame {
+    final long number;
+    final List<Element> regions;
+
+    DirtyFrame(long number, List<Element> regions) {
+      this.number = number;
+      this.regions = regions;
+    }
+  }
+  //</editor-fold>
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017 - sikulix.com - MIT license
+ */
+
+package com.sikulix.devices.server;
+
+import com.sikulix.core.SX;
+import com.sikulix.core.SXLog;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.*;
+import org.junit.runners.MethodSorters;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * the event stream of a server session without a connection: what a client gets, that does not read
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestServerEvents {
+
+  static SXLog log = SX.getSXLog("SX_TestServerEvents");
+
+  private String currentTest = "";
+  private String result = "";
+
+  @After
+  public void tearDown() {
+    log.info("!%s: %s", currentTest, result);
+  }
+
+  // the data of the next server-sent event (null if the stream ended)
+  private static JSONObject readEvent(BufferedReader events) throws IOException {
+    String line;
+    JSONObject event = null;
+    while (SX.isNotNull(line = events.readLine())) {
+      if (line.startsWith("data: ")) {
+        event = new JSONObject(line.substring(6));
+      } else if (line.isEmpty() && SX.isNotNull(event)) {
+        return event;
+      }
+    }
+    return null;
+  }
+
+  private static JSONObject change(int x, int y) {
+    return new JSONObject().put("type", "change").put("changes",
+            new JSONArray().put(new JSONObject().put("x", x).put("y", y).put("w", 5).put("h", 5)));
+  }
+
+  @Test
+  public void test_001_eventsCoalesced() throws Exception {
+    currentTest = "test_001_eventsCoalesced";
+    Server.RemoteSession session = new Server.RemoteSession(false);
+    Server.EventStream stream = new Server.EventStream(session);
+    assert session.streams.contains(stream) : "stream not kept with the session";
+    // a client, that does not read, gets the newest happening of an event with the number of the coalesced ones
+    for (int n = 0; n < 3; n++) {
+      session.publish("1-0", change(10 * n, 0).put("count", n + 1));
+    }
+    session.publish("1-1", new JSONObject().put("type", "appear").put("count", 1));
+    BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+    JSONObject event = readEvent(reader);
+    assert event.getInt("count") == 3 && event.getInt("coalesced") == 2
+            && event.getJSONArray("changes").length() == 3 : "coalesced: " + event;
+    event = readEvent(reader);
+    assert "appear".equals(event.getString("type")) && !event.has("coalesced") : "other event: " + event;
+    // too many rectangles are replaced by their bounding box: bounded, but all changes covered
+    for (int n = 0; n < 200; n++) {
+      session.publish("1-0", change(n, n));
+    }
+    JSONArray changes = readEvent(reader).getJSONArray("changes");
+    Rectangle covered = new Rectangle();
+    for (int n = 0; n < changes.length(); n++) {
+      JSONObject change = changes.getJSONObject(n);
+      covered = covered.union(new Rectangle(change.getInt("x"), change.getInt("y"),
+              change.getInt("w"), change.getInt("h")));
+    }
+    assert changes.length() <= 50 && covered.equals(new Rectangle(0, 0, 204, 204)) : "merged changes: " + changes;
+    stream.close();
+    assert SX.isNull(readEvent(reader)) : "stream not ended";
+    assert !session.streams.contains(stream) : "closed stream still with the session";
+    result = "events: coalesced and bounded for a slow client, stream ended on close";
+  }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2017 - sikulix.com - MIT license
+ */
+
+package com.sikulix.test;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * a local RFB (VNC) server as test double: security none, raw encoding only<br>
+ * each update request is answered with the whole screen, if it changed since the last update of the connection
+ * (incremental) or always (not incremental) - otherwise with an empty update<br>
+ * animate: the screen changes with every update request
+ */
+public class RFBStubServer {
+
+  private final ServerSocket serverSocket;
+  private final int width;
+  private final int height;
+  private final int[] screen;
+  private long version = 0;
+  private boolean animate = false;
+  private int animateStep = 0;
+  private final List<Socket> clients = new CopyOnWriteArrayList<>();
+  private int connections = 0;
+  private int updateRequests = 0;
+
+  public RFBStubServer(int width, int height) throws IOException {
+    this.width = width;
+    this.height = height;
+    screen = new int[width * height];
+    fill(new Rectangle(0, 0, width, height), Color.GRAY);
+    serverSocket = new ServerSocket(0);
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!serverSocket.isClosed()) {
+          try {
+            final Socket socket = serverSocket.accept();
+            clients.add(socket);
+            synchronized (RFBStubServer.this) {
+              connections++;
+            }
+            Thread client = new Thread(new Runnable() {
+              @Override
+              public void run() {
+                serve(socket);
+              }
+            }, "RFBStub-client");
+            client.setDaemon(true);
+            client.start();
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }
+    }, "RFBStub-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public synchronized void fill(Rectangle rect, Color color) {
+    for (int y = rect.y; y < rect.y + rect.height; y++) {
+      for (int x = rect.x; x < rect.x + rect.width; x++) {
+        screen[y * width + x] = color.getRGB();
+      }
+    }
+    version++;
+  }
+
+  public synchronized void setAnimate(boolean animate) {
+    this.animate = animate;
+  }
+
+  /**
+   * @return the connections made since start
+   */
+  public synchronized int getConnections() {
+    return connections;
+  }
+
+  /**
+   * @return the connections open now
+   */
+  public int getOpenConnections() {
+    int open = 0;
+    for (Socket client : clients) {
+      if (!client.isClosed()) {
+        open++;
+      }
+    }
+    return open;
+  }
+
+  public synchronized int getUpdateRequests() {
+    return updateRequests;
+  }
+
+  public void stop() {
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+    }
+    for (Socket client : clients) {
+      try {
+        client.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  //<editor-fold desc="protocol">
+  private static class PixelFormat {
+    int bitsPerPixel = 32;
+    int depth = 24;
+    boolean bigEndian = false;
+    int redMax = 255;
+    int greenMax = 255;
+    int blueMax = 255;
+    int redShift = 16;
+    int greenShift = 8;
+    int blueShift = 0;
+
+    void read(DataInputStream in) throws IOException {
+      bitsPerPixel = in.readUnsignedByte();
+      depth = in.readUnsignedByte();
+      bigEndian = in.readUnsignedByte() != 0;
+      in.readUnsignedByte();
+      redMax = in.readUnsignedShort();
+      greenMax = in.readUnsignedShort();
+      blueMax = in.readUnsignedShort();
+      redShift = in.readUnsignedByte();
+      greenShift = in.readUnsignedByte();
+      blueShift = in.readUnsignedByte();
+      in.skipBytes(3);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeByte(bitsPerPixel);
+      out.writeByte(depth);
+      out.writeByte(bigEndian ? 1 : 0);
+      out.writeByte(1);
+      out.writeShort(redMax);
+      out.writeShort(greenMax);
+      out.writeShort(blueMax);
+      out.writeByte(redShift);
+      out.writeByte(greenShift);
+      out.writeByte(blueShift);
+      out.write(new byte[3]);
+    }
+
+    void put(byte[] pixels, int offset, int rgb) {
+      int value = (((rgb >> 16) & 0xff) * redMax / 255) << redShift
+              | (((rgb >> 8) & 0xff) * greenMax / 255) << greenShift
+              | ((rgb & 0xff) * blueMax / 255) << blueShift;
+      int bytes = bitsPerPixel / 8;
+      for (int n = 0; n < bytes; n++) {
+        int shift = 8 * (bigEndian ? bytes - 1 - n : n);
+        pixels[offset + n] = (byte) (value >> shift);
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      out.write("RFB 003.008\n".getBytes("US-ASCII"));
+      out.flush();
+      byte[] clientVersion = new byte[12];
+      in.readFully(clientVersion);
+      int minor = Integer.parseInt(new String(clientVersion, 8, 3, "US-ASCII"));
+      if (minor < 7) {
+        out.writeInt(1);
+      } else {
+        out.writeByte(1);
+        out.writeByte(1);
+        out.flush();
+        in.readUnsignedByte();
+        if (minor >= 8) {
+          out.writeInt(0);
+        }
+      }
+      out.flush();
+      in.readUnsignedByte();
+      PixelFormat format = new PixelFormat();
+      out.writeShort(width);
+      out.writeShort(height);
+      format.write(out);
+      byte[] name = "RFBStub".getBytes("US-ASCII");
+      out.writeInt(name.length);
+      out.write(name);
+      out.flush();
+      long sent = -1;
+      while (true) {
+        int type = in.readUnsignedByte();
+        if (type == 0) {
+          in.skipBytes(3);
+          format.read(in);
+        } else if (type == 2) {
+          in.readUnsignedByte();
+          in.skipBytes(4 * in.readUnsignedShort());
+        } else if (type == 3) {
+          boolean incremental = in.readUnsignedByte() != 0;
+          in.skipBytes(8);
+          sent = update(out, format, incremental, sent);
+        } else if (type == 4) {
+          in.skipBytes(7);
+        } else if (type == 5) {
+          in.skipBytes(5);
+        } else if (type == 6) {
+          in.skipBytes(3);
+          in.skipBytes(in.readInt());
+        } else {
+          break;
+        }
+      }
+    } catch (EOFException e) {
+    } catch (SocketException e) {
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  // the whole screen or nothing: returns the version sent
+  private long update(DataOutputStream out, PixelFormat format, boolean incremental, long sent) throws IOException {
+    byte[] pixels = null;
+    long current;
+    synchronized (this) {
+      updateRequests++;
+      if (animate) {
+        animateStep = (animateStep + 1) % (width / 10);
+        fill(new Rectangle(0, 0, width, 10), Color.GRAY);
+        fill(new Rectangle(animateStep * 10, 0, 10, 10), Color.RED);
+      }
+      current = version;
+      if (!incremental || current != sent) {
+        int bytes = format.bitsPerPixel / 8;
+        pixels = new byte[width * height * bytes];
+        for (int n = 0; n < screen.length; n++) {
+          format.put(pixels, n * bytes, screen[n]);
+        }
+      }
+    }
+    out.writeByte(0);
+    out.writeByte(0);
+    if (pixels == null) {
+      out.writeShort(0);
+    } else {
+      out.writeShort(1);
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(width);
+      out.writeShort(height);
+      out.writeInt(0);
+      out.write(pixels);
+    }
+    out.flush();
+    return current;
+  }
+  //</editor-fold>
+}
@@ -8,19 +8,36 @@ import com.sikulix.api.*;
 import com.sikulix.api.Event;
 import com.sikulix.core.*;
 import com.sikulix.devices.IDevice;
+import com.sikulix.devices.android.ADBDevice;
 import com.sikulix.devices.hook.HookDevice;
+import com.sikulix.devices.local.LocalDevice;
+import com.sikulix.devices.server.Server;
 import com.sikulix.devices.vnc.VNCDevice;
+import com.sikulix.devices.vnc.VNCSessions;
 import com.sikulix.run.Runner;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.*;
 import org.junit.runners.MethodSorters;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 import org.sikuli.script.Location;
 import org.sikuli.script.Region;
 import org.sikuli.script.Screen;
 
 import java.awt.*;
-import java.io.File;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -341,6 +358,185 @@ public class TestAll {
     result = tEnd + String.format("%d images", matches.size());
   }
 
+  @Test
+  public void test_046_findAllTiledBenchmark() {
+    currentTest = "test_046_findAllTiledBenchmark";
+    Picture target = new Picture(imageNameDefault);
+    assert target.isValid() : "target not valid";
+    Mat mBase = new Mat();
+    Core.repeat(target.getContentBGR(), 2160 / target.h + 1, 3840 / target.w + 1, mBase);
+    Picture base = new Picture(mBase.submat(new Rect(0, 0, 3840, 2160)));
+    int expected = (base.w / target.w) * (base.h / target.h);
+    Finder finder = new Finder(base);
+    finder.setPyramidLevels(1);
+    finder.setTileMinPixels(1);
+    String timings = "";
+    long single = -1;
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      finder.setTileThreads(threads);
+      start();
+      List<Element> matches = finder.findAll(target);
+      long duration = new Date().getTime() - startTime;
+      end();
+      assert matches.size() == expected : String.format("threads %d: %d of %d", threads, matches.size(), expected);
+      if (threads == 1) {
+        single = duration;
+      }
+      timings += String.format("%d: %d msec (%.1fx) ", threads, duration, single / (double) Math.max(1, duration));
+    }
+    result = String.format("findAll #%d in (%dx%d) with tiles: %s", expected, base.w, base.h, timings);
+  }
+
+  @Test
+  public void test_047_bufferedImageConversionBenchmark() {
+    currentTest = "test_047_bufferedImageConversionBenchmark";
+    Picture target = new Picture(imageNameDefault);
+    assert target.isValid() : "target not valid";
+    Mat mBase = new Mat();
+    Core.repeat(target.getContentBGR(), 2160 / target.h + 1, 3840 / target.w + 1, mBase);
+    Picture base = new Picture(mBase.submat(new Rect(0, 0, 3840, 2160)));
+    String timings = "";
+    for (int n = 0; n < 3; n++) {
+      start();
+      BufferedImage bImg = base.get();
+      long toImage = new Date().getTime() - startTime;
+      start();
+      Picture back = new Picture(bImg);
+      long toMat = new Date().getTime() - startTime;
+      end();
+      Mat mDiff = new Mat();
+      Core.absdiff(base.getContentBGR(), back.getContentBGR(), mDiff);
+      assert Core.countNonZero(mDiff.reshape(1)) == 0 : "pixels changed by conversion";
+      timings += String.format("get %d msec, back %d msec ", toImage, toMat);
+    }
+    // int pixels (as from Robot or VNC): every pixel checked, alpha becomes the mask
+    for (int type : new int[]{BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB}) {
+      BufferedImage bImg = new BufferedImage(base.w, base.h + 1, type);
+      int[] pixels = new int[bImg.getWidth() * bImg.getHeight()];
+      for (int n = 0; n < pixels.length; n++) {
+        pixels[n] = (((n % 251) + 1) << 24) | ((n * 7) & 0xffffff);
+      }
+      bImg.setRGB(0, 0, bImg.getWidth(), bImg.getHeight(), pixels, 0, bImg.getWidth());
+      start();
+      Picture back = new Picture(bImg);
+      long toMat = new Date().getTime() - startTime;
+      end();
+      byte[] bgr = new byte[pixels.length * 3];
+      back.getContentBGR().get(0, 0, bgr);
+      byte[] alpha = new byte[pixels.length];
+      if (type == BufferedImage.TYPE_INT_ARGB) {
+        assert back.hasMask() : "alpha not kept as mask";
+        back.getMask().get(0, 0, alpha);
+      }
+      for (int n = 0; n < pixels.length; n++) {
+        int pixel = pixels[n];
+        assert (bgr[3 * n] & 0xff) == (pixel & 0xff) && (bgr[3 * n + 1] & 0xff) == ((pixel >> 8) & 0xff)
+                && (bgr[3 * n + 2] & 0xff) == ((pixel >> 16) & 0xff) : String.format("type %d: pixel %d wrong", type, n);
+        assert type != BufferedImage.TYPE_INT_ARGB || (alpha[n] & 0xff) == ((pixel >> 24) & 0xff) :
+                String.format("type %d: alpha %d wrong", type, n);
+      }
+      timings += String.format("int type %d back %d msec ", type, toMat);
+    }
+    result = String.format("(%dx%d) BufferedImage/Mat: %s", base.w, base.h, timings);
+  }
+
+  @Test
+  public void test_048_incrementalFindAfterSmallChanges() {
+    currentTest = "test_048_incrementalFindAfterSmallChanges";
+    boolean checkLastSeen = SX.isOption("Settings.CheckLastSeen");
+    SX.setOption("Settings.CheckLastSeen", "false");
+    Mat mBase = new Mat(600, 800, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    Rect rTarget = new Rect(300, 200, 40, 30);
+    Picture target = new Picture(mBase.submat(rTarget));
+    String scores = "";
+    try {
+      for (int levels : new int[]{1, 3}) {
+        Picture base = new Picture(mBase);
+        Finder finder = new Finder(base);
+        finder.setPyramidLevels(levels);
+        finder.setIncremental(true);
+        double before = finder.find(target).getScore();
+        // pixels of one channel changed below the former change threshold
+        // (enough of them, that the score drops more than the rounding noise of the match)
+        Mat mChanged = mBase.clone();
+        for (int n = 0; n < 100; n++) {
+          double[] pixel = mChanged.get(rTarget.y + 10 + n / 10, rTarget.x + 10 + n % 10);
+          pixel[0] = pixel[0] < 128 ? pixel[0] + 2 : pixel[0] - 2;
+          mChanged.put(rTarget.y + 10 + n / 10, rTarget.x + 10 + n % 10, pixel);
+        }
+        base.setContent(mChanged);
+        finder.refreshBase();
+        Element match = finder.find(target);
+        assert match.isMatch() && match.getScore() < before :
+                String.format("levels %d: not searched again after a small change (%.6f)", levels, match.getScore());
+        // the target moves
+        Mat mMoved = mChanged.clone();
+        Core.randu(mMoved.submat(rTarget), 0, 255);
+        target.getContentBGR().copyTo(mMoved.submat(new Rect(600, 450, rTarget.width, rTarget.height)));
+        base.setContent(mMoved);
+        finder.refreshBase();
+        match = finder.find(target);
+        assert match.isMatch() && match.x == 600 && match.y == 450 :
+                String.format("levels %d: moved target not found: %s", levels, match);
+        scores += String.format("levels %d: %.6f -> %.6f ", levels, before, match.getScore());
+      }
+    } finally {
+      SX.setOption("Settings.CheckLastSeen", checkLastSeen ? "true" : "false");
+    }
+    result = "incremental find: " + scores;
+  }
+
+  @Test
+  public void test_049_lastSeenHints() {
+    currentTest = "test_049_lastSeenHints";
+    double maxEntries = SX.getOptionNumber("Settings.LastSeenMaxEntries", 2000);
+    Mat mBase = new Mat(300, 400, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    Picture base = new Picture(mBase);
+    Picture target = new Picture(mBase.submat(new Rect(100, 50, 40, 30)).clone());
+    LastSeen.clear();
+    try {
+      String key = LastSeen.getKey(target, base);
+      assert SX.isNotNull(target.getContentHash()) : "hash not kept with the target";
+      assert key.equals(LastSeen.getKey(target, base)) : "key changed";
+      target.setContent(mBase.submat(new Rect(200, 50, 40, 30)).clone());
+      assert SX.isNull(target.getContentHash()) && !key.equals(LastSeen.getKey(target, base)) :
+              "hash not made again for new content";
+      // most often seen first, at most 3 locations
+      LastSeen.add(key, 30, 40);
+      for (int n = 0; n < 3; n++) {
+        LastSeen.add(key, 10, 20);
+      }
+      LastSeen.add(key, 50, 60);
+      LastSeen.add(key, 70, 80);
+      List<int[]> hints = LastSeen.get(key);
+      assert hints.size() == 3 && hints.get(0)[0] == 10 && hints.get(0)[1] == 20 :
+              "hints not sorted or not bounded: " + hints.size();
+      // the least recently used entries are dropped
+      SX.setOption("Settings.LastSeenMaxEntries", "2");
+      for (int n = 0; n < 3; n++) {
+        SX.pause(0.01);
+        LastSeen.add(key + n, n, n);
+      }
+      assert LastSeen.size() == 2 && LastSeen.get(key).isEmpty() && LastSeen.get(key + "0").isEmpty() :
+              "entries not evicted: " + LastSeen.size();
+      Finder finder = new Finder(base);
+      Element match = finder.find(target);
+      assert match.isMatch() && match.x == 200 && match.y == 50 : "not found: " + match;
+    } finally {
+      SX.setOption("Settings.LastSeenMaxEntries", "" + (int) maxEntries);
+      LastSeen.clear();
+    }
+    LastSeen.save();
+    File store = new File(SX.getSXSTORE(), "LastSeen.txt");
+    assert !store.exists() || store.length() == 0 : "store not cleared: " + store.length();
+    result = "LastSeen: key cached, hints sorted and bounded, entries evicted, store cleared";
+  }
+
   @Test
   public void test_050_captureDefaultScreen() {
     currentTest = "test_050_captureDefaultScreen";
@@ -448,6 +644,55 @@ public class TestAll {
     Do.showMatch();
   }
 
+  @Test
+  public void test_057_findAllPeaksSuppressed() {
+    currentTest = "test_057_findAllPeaksSuppressed";
+    Mat mTarget = new Mat(30, 40, CvType.CV_8UC3);
+    Core.randu(mTarget, 0, 255);
+    Imgproc.GaussianBlur(mTarget, mTarget, new Size(5, 5), 2);
+    Mat mBase = new Mat(400, 800, CvType.CV_8UC3, new Scalar(128, 128, 128));
+    int[] xs = new int[]{50, 130, 300, 500, 650};
+    for (int x : xs) {
+      mTarget.copyTo(mBase.submat(new Rect(x, 100, 40, 30)));
+    }
+    Picture target = new Picture(mTarget);
+    target.setWantedScore(0.9);
+    for (int levels : new int[]{1, 3}) {
+      Finder finder = new Finder(new Picture(mBase));
+      finder.setPyramidLevels(levels);
+      List<Element> all = finder.findAll(target);
+      assert all.size() == xs.length : String.format("levels %d: %d matches", levels, all.size());
+      for (Element match : all) {
+        assert match.y == 100 && Arrays.binarySearch(xs, match.x) > -1 :
+                String.format("levels %d: wrong match: %s", levels, match);
+      }
+      finder.setFindAllMaxMatches(3);
+      assert finder.findAll(target).size() == 3 : String.format("levels %d: max matches ignored", levels);
+      finder.setFindAllMaxMatches(0);
+      // 50 and 130 are only 80 apart
+      finder.setFindAllMinSpacing(100);
+      assert finder.findAll(target).size() == xs.length - 1 : String.format("levels %d: min spacing ignored", levels);
+    }
+    // a checkerboard (period 20) matches every 20 pixels: neighbours overlap by 1/3 (IoU)
+    Mat mBoard = new Mat(40, 80, CvType.CV_8UC3, new Scalar(0, 0, 0));
+    for (int y = 0; y < 40; y += 10) {
+      for (int x = (y / 10) % 2 * 10; x < 80; x += 20) {
+        mBoard.submat(new Rect(x, y, 10, 10)).setTo(new Scalar(255, 255, 255));
+      }
+    }
+    mBase = new Mat(200, 300, CvType.CV_8UC3, new Scalar(128, 128, 128));
+    mBoard.copyTo(mBase.submat(new Rect(100, 80, 80, 40)));
+    target = new Picture(mBoard.submat(new Rect(0, 0, 40, 40)).clone());
+    target.setWantedScore(0.9);
+    Finder finder = new Finder(new Picture(mBase));
+    finder.setPyramidLevels(1);
+    int nDefault = finder.findAll(target).size();
+    finder.setFindAllMaxOverlap(0.5);
+    int nOverlap = finder.findAll(target).size();
+    assert nDefault == 2 && nOverlap == 3 : String.format("overlap: %d (0.3) %d (0.5)", nDefault, nOverlap);
+    result = "findAll: one match per copy, max matches, min spacing and max overlap applied";
+  }
+
   @Test
   public void test_058_basicFindWithMask() {
     currentTest = "test_058_basicFindWithMask";
@@ -479,6 +724,83 @@ public class TestAll {
     }
   }
 
+  @Test
+  public void test_059_matPoolReuseAndBounds() {
+    currentTest = "test_059_matPoolReuseAndBounds";
+    double poolSize = SX.getOptionNumber("Settings.MatPoolSize", 64);
+    boolean checkLastSeen = SX.isOption("Settings.CheckLastSeen");
+    SX.setOption("Settings.CheckLastSeen", "false");
+    MatPool.clear();
+    try {
+      long[] stats = MatPool.getStats();
+      Mat mat = MatPool.get(100, 200, CvType.CV_8UC3);
+      MatPool.put(mat);
+      assert MatPool.getStats()[6] == stats[6] + 100 * 200 * 3 : "not pooled";
+      assert MatPool.get(100, 200, CvType.CV_8UC3) == mat : "not reused";
+      Mat other = MatPool.get(100, 200, CvType.CV_8UC1);
+      assert other != mat && MatPool.getStats()[0] == stats[0] + 2 && MatPool.getStats()[2] == stats[2] + 1 :
+              "other type: " + MatPool.getStatsString();
+      // a submat is released only, the Mat it belongs to is kept
+      MatPool.put(mat.submat(new Rect(0, 0, 10, 10)));
+      assert MatPool.getStats()[6] == stats[6] && !mat.empty() : "submat pooled";
+      MatPool.put(mat, other);
+      // beyond Settings.MatPoolSize Mats are released
+      SX.setOption("Settings.MatPoolSize", "1");
+      long released = MatPool.getStats()[3];
+      Mat big = MatPool.get(1000, 1000, CvType.CV_8UC3);
+      MatPool.put(big);
+      assert big.empty() && MatPool.getStats()[3] == released + 1 && MatPool.getStats()[6] < 1024 * 1024 :
+              "pool not bounded: " + MatPool.getStatsString();
+      SX.setOption("Settings.MatPoolSize", "" + poolSize);
+      // repeated finds come to a steady state: no more allocations
+      Mat mBase = new Mat(300, 400, CvType.CV_8UC3);
+      Core.randu(mBase, 0, 255);
+      Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+      Picture target = new Picture(mBase.submat(new Rect(100, 50, 40, 30)).clone());
+      long allocated = 0;
+      for (int n = 0; n < 5; n++) {
+        Finder finder = new Finder(new Picture(mBase));
+        assert finder.find(target).isMatch() : "not found";
+        finder.findAll(target);
+        finder.release();
+        if (n == 1) {
+          allocated = MatPool.getStats()[0];
+        }
+      }
+      assert MatPool.getStats()[0] == allocated : "still allocating: " + MatPool.getStatsString();
+      // the same for the Finders made by Do.find
+      Picture base = new Picture(mBase);
+      for (int n = 0; n < 5; n++) {
+        assert Do.find(target, base).isMatch() : "Do.find: not found";
+        if (n == 1) {
+          allocated = MatPool.getStats()[0];
+        }
+      }
+      assert MatPool.getStats()[0] == allocated : "Do.find: still allocating: " + MatPool.getStatsString();
+      // new frames searched in gray and in color: always the bases of the frame searched
+      Picture frame = new Picture(mBase);
+      Finder finder = new Finder(frame);
+      finder.setPyramidLevels(2);
+      for (int n = 0; n < 6; n++) {
+        Mat mFrame = new Mat(300, 400, CvType.CV_8UC3, new Scalar(128, 128, 128));
+        target.getContent().copyTo(mFrame.submat(new Rect(20 + 50 * n, 40 + 30 * n, 40, 30)));
+        frame.setContent(mFrame);
+        finder.refreshBase();
+        for (boolean gray : new boolean[]{n % 2 == 0, n % 2 == 1}) {
+          finder.setGrayFirst(gray);
+          Element match = finder.find(target);
+          assert match.x == 20 + 50 * n && match.y == 40 + 30 * n :
+                  String.format("frame %d (gray %s): wrong match: %s", n, gray, match);
+        }
+      }
+      finder.release();
+    } finally {
+      SX.setOption("Settings.MatPoolSize", "" + poolSize);
+      SX.setOption("Settings.CheckLastSeen", checkLastSeen ? "true" : "false");
+    }
+    result = "MatPool: reused, bounded, steady state: " + MatPool.getStatsString();
+  }
+
   @Test
   public void test_060_basicStory() {
     currentTest = "test_060_basicStory";
@@ -496,6 +818,142 @@ public class TestAll {
     assert true;
   }
 
+  @Test
+  public void test_061_grayFirstColorVerify() {
+    currentTest = "test_061_grayFirstColorVerify";
+    // same gray value (60), other color: only the color verification tells them apart
+    Mat mTarget = new Mat(40, 60, CvType.CV_8UC3, new Scalar(240, 240, 240));
+    Imgproc.rectangle(mTarget, new org.opencv.core.Point(2, 2), new org.opencv.core.Point(57, 37),
+            new Scalar(40, 40, 40), 2);
+    Mat mDecoy = mTarget.clone();
+    Imgproc.circle(mTarget, new org.opencv.core.Point(30, 20), 10, new Scalar(0, 0, 200), -1);
+    Imgproc.circle(mDecoy, new org.opencv.core.Point(30, 20), 10, new Scalar(0, 102, 0), -1);
+    Mat mBase = new Mat(600, 800, CvType.CV_8UC3, new Scalar(200, 200, 200));
+    mDecoy.copyTo(mBase.submat(new Rect(100, 100, 60, 40)));
+    mTarget.copyTo(mBase.submat(new Rect(500, 400, 60, 40)));
+    Picture target = new Picture(mTarget);
+    target.setWantedScore(0.95);
+    Finder finder = new Finder(new Picture(mBase));
+    finder.setGrayFirst(true);
+    finder.setPyramidLevels(2);
+    long released = -1;
+    for (int n = 0; n < 5; n++) {
+      Element match = finder.find(target);
+      assert match.isMatch() && match.x == 500 && match.y == 400 : "gray first: wrong match: " + match;
+      List<Element> all = finder.findAll(target);
+      assert all.size() == 1 && all.get(0).x == 500 : "gray first: findAll: " + all.size();
+      if (n == 0) {
+        released = MatPool.getStats()[3];
+      }
+    }
+    // the gray targets and probes are taken from the pool and given back
+    assert MatPool.getStats()[3] == released : "pooled Mats released: " + (MatPool.getStats()[3] - released);
+    result = "gray first: decoy of same gray rejected in color, " + MatPool.getStatsString();
+  }
+
+  @Test
+  public void test_062_captureServiceFrames() {
+    currentTest = "test_062_captureServiceFrames";
+    prepareDefaultScreen();
+    if (isHeadless) {
+      return;
+    }
+    double rate = SX.getOptionNumber("Settings.CaptureRate", 10);
+    double idleTime = SX.getOptionNumber("Settings.CaptureIdleTime", 5);
+    SX.setOption("Settings.CaptureRate", "20");
+    SX.setOption("Settings.CaptureIdleTime", "1");
+    LocalDevice device = SX.getSXLOCALDEVICE();
+    try {
+      LocalDevice.CaptureService service = device.getCaptureService();
+      Rectangle screen = Do.on().getRectangle();
+      Rectangle part = new Rectangle(screen.x + 10, screen.y + 10, 200, 100);
+      Picture first = service.getFrame(part, 200);
+      assert SX.isNotNull(first) && first.w == 200 && first.h == 100 : "no frame: " + first;
+      Mat mFirst = first.getContent().clone();
+      long sequence = service.getFrameSequence();
+      SX.pause(0.5);
+      assert service.getFrameSequence() > sequence : "no frames captured in the background";
+      // a frame given out is not changed by the following captures
+      assert Core.norm(first.getContent(), mFirst) == 0 : "frame changed after given out";
+      assert SX.isNull(service.getFrame(new Rectangle(screen.x - 100, screen.y, 200, 100), 200)) :
+              "frame for a part outside the monitors";
+      // no requests: paused
+      SX.pause(1.5);
+      long paused = service.getFrameSequence();
+      SX.pause(0.3);
+      assert service.isPaused() && service.getFrameSequence() == paused : "not paused when idle";
+      assert SX.isNotNull(service.getFrame(part, 200)) && service.getFrameSequence() > paused : "not resumed";
+      result = String.format("capture service: %d frames, paused when idle, resumed", service.getFrameSequence());
+    } finally {
+      device.stopCaptureService();
+      SX.setOption("Settings.CaptureRate", "" + rate);
+      SX.setOption("Settings.CaptureIdleTime", "" + idleTime);
+    }
+  }
+
+  @Test
+  public void test_063_freezeSnapshot() {
+    currentTest = "test_063_freezeSnapshot";
+    boolean checkLastSeen = SX.isOption("Settings.CheckLastSeen");
+    SX.setOption("Settings.CheckLastSeen", "false");
+    Mat mBase = new Mat(300, 400, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    Picture base = new Picture(mBase);
+    Picture target = new Picture(mBase.submat(new Rect(100, 50, 40, 30)).clone());
+    Picture other = new Picture(mBase.submat(new Rect(250, 200, 40, 30)).clone());
+    try {
+      assert SX.isNotNull(base.freeze().getFrozenFinder()) : "no Finder for the snapshot";
+      Finder finder = base.getFrozenFinder();
+      // nested: only the outermost freeze/unfreeze counts
+      base.freeze();
+      assert base.getFrozenFinder() == finder : "nested freeze made a new Finder";
+      Element match = Do.find(target, base);
+      assert match.isMatch() && match.x == 100 && match.y == 50 : "not found: " + match;
+      assert SX.isNotNull(finder.getLastFindResult()) : "find did not use the snapshot Finder";
+      match = Do.find(other, base);
+      assert match.isMatch() && match.x == 250 && match.y == 200 : "not found: " + match;
+      assert finder.getLastFindResult().getMatch().x == 250 : "second find did not use the snapshot Finder";
+      base.unfreeze();
+      assert base.isFrozen() && base.getFrozenFinder() == finder : "snapshot ended by inner unfreeze";
+      long pooled = MatPool.getStats()[5];
+      base.unfreeze();
+      assert !base.isFrozen() && SX.isNull(base.getFrozenFinder()) : "snapshot not ended";
+      assert MatPool.getStats()[5] > pooled : "Mats of the snapshot Finder not given back";
+      base.unfreeze();
+      assert !base.isFrozen() : "unfreeze below zero";
+    } finally {
+      SX.setOption("Settings.CheckLastSeen", checkLastSeen ? "true" : "false");
+    }
+    result = "freeze: nested, finds share one Finder, Mats given back on unfreeze";
+  }
+
+  @Test
+  public void test_064_pyramidFallbackToOriginal() {
+    currentTest = "test_064_pyramidFallbackToOriginal";
+    // pixel noise does not survive downsizing: the coarsest level has no candidate
+    Mat mBase = new Mat(600, 800, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Picture target = new Picture(mBase.submat(new Rect(301, 203, 60, 40)).clone());
+    target.setWantedScore(0.9);
+    boolean checkLastSeen = SX.isOption("Settings.CheckLastSeen");
+    SX.setOption("Settings.CheckLastSeen", "false");
+    try {
+      Finder finder = new Finder(new Picture(mBase));
+      finder.setPyramidLevels(3);
+      finder.setPyramidFallback(false);
+      assert !finder.find(target).isMatch() : "found in the coarsest level: no fallback tested";
+      finder.setPyramidFallback(true);
+      Element match = finder.find(target);
+      assert match.x == 301 && match.y == 203 : "fallback: " + match;
+      assert finder.getLastLevelTimes().length == 2 : "not coarsest level and original";
+      assert finder.findAll(target).size() == 1 : "fallback: findAll";
+    } finally {
+      SX.setOption("Settings.CheckLastSeen", checkLastSeen ? "true" : "false");
+    }
+    result = "pyramid: searched again in the original, if the coarsest level has no candidate";
+  }
+
   @Test
   public void test_070_handlingWhatImageNotOnImagePath() {
     currentTest = "test_070_handlingWhatImageNotOnImagePath";
@@ -604,6 +1062,49 @@ public class TestAll {
     where.observe();
   }
 
+  @Test
+  public void test_083_observeImageAppearVanishRepeated() {
+    currentTest = "test_083_observeImageAppearVanishRepeated";
+    Mat mBase = new Mat(400, 600, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    Picture what = new Picture(mBase.submat(new Rect(200, 150, 60, 40)));
+    Mat mOther = new Mat(40, 60, CvType.CV_8UC3);
+    Core.randu(mOther, 0, 255);
+    Picture notThere = new Picture(mOther);
+    final List<Element> appeared = new ArrayList<>();
+    final List<Element> vanished = new ArrayList<>();
+    int rounds = 5;
+    // each round starts observing, after the event loop of the round before has ended
+    for (int n = 0; n < rounds; n++) {
+      Picture where = new Picture(mBase);
+      where.onAppear(what, new Handler() {
+        public void run(Event event) {
+          synchronized (appeared) {
+            appeared.add(event.getMatch());
+          }
+        }
+      });
+      where.onVanish(notThere, new Handler() {
+        public void run(Event event) {
+          synchronized (vanished) {
+            vanished.add(event.getVanish());
+          }
+        }
+      });
+      where.observe();
+      Events.waitUntilFinished();
+      SX.pause(0.2);
+      assert appeared.size() == n + 1 : String.format("round %d: appear not handled", n);
+    }
+    for (Element match : appeared) {
+      assert match.x == 200 && match.y == 150 : "appear: wrong match " + match;
+    }
+    // vanish is only reported for something, that was visible before
+    assert vanished.isEmpty() : "vanish reported for an image never visible";
+    result = String.format("%d rounds: appear at (%d,%d)", rounds, appeared.get(0).x, appeared.get(0).y);
+  }
+
   @Test
   public void test_090_edgeDetectionBasic() {
     currentTest = "test_090_edgeDetectionBasic";
@@ -652,6 +1153,89 @@ public class TestAll {
     changed.show(2);
   }
 
+  // every rect is covered by a change, that is at most slack larger on each side
+  private boolean isCovered(List<Element> changes, Rect[] rects, int slack) {
+    if (changes.size() != rects.length) {
+      return false;
+    }
+    for (Rect rect : rects) {
+      boolean covered = false;
+      for (Element change : changes) {
+        covered |= change.x <= rect.x && change.y <= rect.y
+                && change.x + change.w >= rect.x + rect.width && change.y + change.h >= rect.y + rect.height
+                && change.x >= rect.x - slack && change.y >= rect.y - slack
+                && change.x + change.w <= rect.x + rect.width + slack
+                && change.y + change.h <= rect.y + rect.height + slack;
+      }
+      if (!covered) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Test
+  public void test_096_changeDetectorRects() {
+    currentTest = "test_096_changeDetectorRects";
+    Mat mBase = new Mat(400, 600, CvType.CV_8UC3, new Scalar(100, 100, 100));
+    Mat mChanged = mBase.clone();
+    Rect[] rects = new Rect[]{new Rect(50, 60, 40, 30), new Rect(300, 200, 80, 50)};
+    mChanged.submat(rects[0]).setTo(new Scalar(200, 200, 200));
+    mChanged.submat(rects[1]).setTo(new Scalar(30, 30, 30));
+    ChangeDetector detector = new ChangeDetector();
+    List<Element> changes = detector.detect(mBase, mChanged);
+    assert isCovered(changes, rects, 8) : "detect: " + changes;
+    assert isCovered(Finder.detectChanges(mBase, mChanged), rects, 8) : "detectChanges: not the same";
+    assert detector.hasChanged(mBase, mChanged) && !detector.hasChanged(mBase, mBase.clone()) : "hasChanged";
+    assert detector.detect(mBase, mBase.clone()).isEmpty() : "changes without a change";
+    // a small change is dropped with a minimum size
+    Mat mSmall = mBase.clone();
+    mSmall.submat(new Rect(500, 300, 3, 3)).setTo(new Scalar(250, 250, 250));
+    assert detector.detect(mBase, mSmall).size() == 1 : "small change not detected";
+    detector.setMinimumSize(20);
+    assert detector.detect(mBase, mSmall).isEmpty() : "small change not dropped";
+    // the buffers follow another size
+    Mat mOther = new Mat(100, 200, CvType.CV_8UC3, new Scalar(100, 100, 100));
+    Mat mOtherChanged = mOther.clone();
+    Rect[] others = new Rect[]{new Rect(150, 10, 30, 30)};
+    mOtherChanged.submat(others[0]).setTo(new Scalar(0, 0, 0));
+    assert isCovered(detector.detect(mOther, mOtherChanged), others, 8) : "other size";
+    // exact: one channel of one pixel by 1
+    Mat mExact = mBase.clone();
+    mExact.put(123, 456, new byte[]{100, 101, 100});
+    changes = detector.detectExact(mBase, mExact);
+    assert changes.size() == 1 && changes.get(0).x == 456 && changes.get(0).y == 123
+            && changes.get(0).w == 1 && changes.get(0).h == 1 : "detectExact: " + changes;
+    assert isCovered(detector.detectExact(mBase, mChanged), rects, 0) : "detectExact: rects";
+    result = "ChangeDetector: rects of changes, minimum size, exact changes";
+  }
+
+  @Test
+  public void test_097_changeDetectorTiles() {
+    currentTest = "test_097_changeDetectorTiles";
+    ChangeDetector detector = new ChangeDetector();
+    Mat mFrame = new Mat(400, 600, CvType.CV_8UC3, new Scalar(100, 100, 100));
+    assert detector.detect(mFrame).isEmpty() : "first frame is only the reference";
+    assert detector.detect(mFrame.clone()).isEmpty() : "changes in the same frame";
+    Mat mNext = mFrame.clone();
+    Rect[] rects = new Rect[]{new Rect(10, 10, 20, 20), new Rect(420, 330, 60, 40)};
+    for (Rect rect : rects) {
+      mNext.submat(rect).setTo(new Scalar(0, 0, 255));
+    }
+    assert isCovered(detector.detect(mNext), rects, 8) : "changes against the previous frame";
+    // the changed frame is the reference now
+    assert detector.detect(mNext.clone()).isEmpty() : "not compared with the previous frame";
+    Rect[] back = new Rect[]{rects[1]};
+    Mat mBack = mNext.clone();
+    mFrame.submat(back[0]).copyTo(mBack.submat(back[0]));
+    assert isCovered(detector.detect(mBack), back, 8) : "change back";
+    // another size is a new reference
+    assert detector.detect(new Mat(100, 100, CvType.CV_8UC3, new Scalar(0, 0, 0))).isEmpty() : "other size";
+    detector.reset();
+    assert detector.detect(mFrame).isEmpty() : "reset: first frame is only the reference";
+    result = "ChangeDetector: changes against the previous frame by tiles";
+  }
+
   @Test
   public void test_101_mouseHoverWithHookCheck() {
     currentTest = "test_101_mouseHoverWithHookCheck";
@@ -843,6 +1427,398 @@ public class TestAll {
 
   //TODO test for write()
 
+  @Test
+  public void test_602_adbInputCommands() {
+    currentTest = "test_602_adbInputCommands";
+    List<String> queue = new ArrayList<>();
+    queue.add("input keyevent 3");
+    queue.add("input keyevent 4");
+    queue.add("input tap 10 20");
+    queue.add("input keyevent 5");
+    String commands = ADBDevice.getInputCommands(queue);
+    assert "input keyevent 3 4; input tap 10 20; input keyevent 5".equals(commands) : commands;
+    assert ADBDevice.getTextCommands("it's a test").equals(Arrays.asList("input text 'it'\\''s%sa%stest'")) :
+            ADBDevice.getTextCommands("it's a test");
+    // as typed by input text on the device: %s is a space
+    for (String text : new String[]{"100%sure", "%s", "a%%sb %", "%s%s s%", "no percent"}) {
+      String typed = "";
+      for (String command : ADBDevice.getTextCommands(text)) {
+        String quoted = command.substring("input text '".length(), command.length() - 1).replace("'\\''", "'");
+        StringBuilder chars = new StringBuilder(quoted);
+        for (int n = 0; n < chars.length() - 1; n++) {
+          if (chars.charAt(n) == '%' && chars.charAt(n + 1) == 's') {
+            chars.replace(n, n + 2, " ");
+          }
+        }
+        typed += chars;
+      }
+      assert text.equals(typed) : String.format("%s typed as %s", text, typed);
+    }
+    result = "ADB input commands: " + ADBDevice.getTextCommands("100%sure");
+  }
+
+  @Test
+  public void test_603_vncSessions() throws Exception {
+    currentTest = "test_603_vncSessions";
+    double maxPending = SX.getOptionNumber("Settings.VNCMaxPendingFrames", 3);
+    RFBStubServer server = new RFBStubServer(320, 200);
+    RFBStubServer other = new RFBStubServer(160, 100);
+    final ServerSocket silent = new ServerSocket(0);
+    try {
+      // one connection per ip:port, closed with the last user
+      VNCSessions.Session session = VNCSessions.open("127.0.0.1", server.getPort(), null);
+      VNCSessions.Session shared = VNCSessions.open("127.0.0.1", server.getPort(), null);
+      assert session == shared && server.getConnections() == 1 : "session not reused";
+      VNCSessions.release(shared);
+      assert !session.isClosed() : "closed with a user left";
+      VNCSessions.release(session);
+      assert session.isClosed() && VNCSessions.getSessions().isEmpty() : "not closed by the last user";
+      // a connect, that hangs, does not block the other sessions
+      Thread hanging = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            VNCSessions.open("127.0.0.1", silent.getLocalPort(), null);
+          } catch (Exception e) {
+          }
+        }
+      });
+      hanging.setDaemon(true);
+      hanging.start();
+      // ends the hanging connect in any case: a blocked open below fails instead of hanging
+      Thread watchdog = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          SX.pause(3);
+          try {
+            silent.close();
+          } catch (IOException e) {
+          }
+        }
+      });
+      watchdog.setDaemon(true);
+      watchdog.start();
+      SX.pause(0.3);
+      long begin = new Date().getTime();
+      // backpressure: a changing screen, that nobody looks at, is read only Settings.VNCMaxPendingFrames ahead
+      SX.setOption("Settings.VNCMaxPendingFrames", "2");
+      server.setAnimate(true);
+      session = VNCSessions.open("127.0.0.1", server.getPort(), null);
+      assert new Date().getTime() - begin < 2000 && server.getConnections() == 2 : "not connected while another connect hangs";
+      VNCSessions.Mirror mirror = session.getMirror();
+      long waitUntil = new Date().getTime() + 5000;
+      while (mirror.getStats()[4] == 0 && new Date().getTime() < waitUntil) {
+        SX.pause(0.1);
+      }
+      assert mirror.getStats()[4] > 0 && mirror.getFrameNumber() <= 3 : "not skipped: " + mirror.getStatsString();
+      // the frames looked at: the mirror follows the screen again
+      long frame = mirror.getFrameNumber();
+      waitUntil = new Date().getTime() + 5000;
+      while (mirror.getFrameNumber() <= frame + 3 && new Date().getTime() < waitUntil) {
+        assert SX.isNotNull(mirror.getFrame(new Rectangle(0, 0, 320, 200))) : "no frame";
+        SX.pause(0.1);
+      }
+      assert mirror.getFrameNumber() > frame + 3 : "not resumed: " + mirror.getStatsString();
+      // shutdown closes all sessions
+      VNCSessions.Session otherSession = VNCSessions.open("127.0.0.1", other.getPort(), null);
+      VNCSessions.shutdown();
+      assert session.isClosed() && otherSession.isClosed() && VNCSessions.getSessions().isEmpty() :
+              "not all closed by shutdown";
+      waitUntil = new Date().getTime() + 2000;
+      while (server.getOpenConnections() + other.getOpenConnections() > 0 && new Date().getTime() < waitUntil) {
+        SX.pause(0.1);
+      }
+      assert server.getOpenConnections() + other.getOpenConnections() == 0 : "connections left open";
+    } finally {
+      SX.setOption("Settings.VNCMaxPendingFrames", "" + (int) maxPending);
+      VNCSessions.shutdown();
+      silent.close();
+      server.stop();
+      other.stop();
+    }
+    result = "VNC sessions: reused, released, connected in parallel, backpressure, shutdown";
+  }
+
+  @Test
+  public void test_604_vncMirror() throws Exception {
+    currentTest = "test_604_vncMirror";
+    double settleTimeout = SX.getOptionNumber("Settings.VNCSettleTimeout", 3);
+    RFBStubServer server = new RFBStubServer(320, 200);
+    VNCDevice vnc = new VNCDevice();
+    try {
+      // the first capture (in start) waits for a settled screen, the later ones do not
+      SX.setOption("Settings.VNCSettleTimeout", "1");
+      server.setAnimate(true);
+      long begin = new Date().getTime();
+      assert SX.isNotNull(vnc.start("127.0.0.1", server.getPort())) : "not started";
+      assert new Date().getTime() - begin >= 1000 : "first capture did not wait";
+      begin = new Date().getTime();
+      Picture picture = vnc.capture();
+      assert new Date().getTime() - begin < 500 && picture.w == 320 && picture.h == 200 : "capture waited";
+      server.setAnimate(false);
+      VNCSessions.Mirror mirror = vnc.getMirror();
+      assert mirror.waitSettled(150, 2000) : "not settled";
+      // the regions changed since a frame
+      long frame = mirror.getFrameNumber();
+      server.fill(new Rectangle(100, 80, 40, 30), Color.BLUE);
+      long waitUntil = new Date().getTime() + 3000;
+      while (mirror.getFrameNumber() == frame && new Date().getTime() < waitUntil) {
+        vnc.capture();
+        SX.pause(0.05);
+      }
+      Rectangle dirty = null;
+      for (Element region : mirror.getDirtyRegions(frame)) {
+        dirty = SX.isNull(dirty) ? region.getRectangle() : dirty.union(region.getRectangle());
+      }
+      assert SX.isNotNull(dirty) && dirty.contains(new Rectangle(100, 80, 40, 30)) && dirty.width < 320 :
+              "dirty regions: " + dirty;
+      double[] pixel = vnc.capture(new Element(100, 80, 40, 30)).getContent().get(15, 20);
+      assert pixel[0] > 200 && pixel[1] < 50 && pixel[2] < 50 : "not blue: " + Arrays.toString(pixel);
+      // a screen, that does not change, is read less often
+      mirror.waitSettled(150, 2000);
+      int requests = server.getUpdateRequests();
+      SX.pause(2);
+      requests = server.getUpdateRequests() - requests;
+      assert requests < 10 : "quiet screen read too often: " + requests;
+      result = String.format("VNC mirror: settled once, dirty regions, %d reads in 2 s on a quiet screen", requests);
+    } finally {
+      SX.setOption("Settings.VNCSettleTimeout", "" + settleTimeout);
+      vnc.stop();
+      server.stop();
+    }
+  }
+
+  //<editor-fold desc="server">
+  private static int getFreePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    return port;
+  }
+
+  // the server response {"sessionId", "status", "value": {"message", "content"}}
+  private static JSONObject serverRequest(int port, String method, String path, byte[] body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    connection.setRequestMethod(method);
+    if (SX.isNotNull(body)) {
+      connection.setDoOutput(true);
+      OutputStream out = connection.getOutputStream();
+      out.write(body);
+      out.close();
+    }
+    InputStream in = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream response = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) > -1) {
+      response.write(buffer, 0, count);
+    }
+    in.close();
+    return new JSONObject(response.toString("UTF-8"));
+  }
+
+  private static JSONObject serverRequest(int port, String method, String path, JSONObject body) throws IOException {
+    return serverRequest(port, method, path, body.toString().getBytes("UTF-8"));
+  }
+
+  private static String uploadRaw(int port, Mat mat) throws IOException {
+    byte[] pixels = new byte[(int) (mat.total() * mat.channels())];
+    mat.get(0, 0, pixels);
+    return serverRequest(port, "POST", String.format("/image?width=%d&height=%d&channels=%d",
+            mat.cols(), mat.rows(), mat.channels()), pixels).getJSONObject("value").getJSONObject("content")
+            .getString("hash");
+  }
+
+  private static Object getContent(JSONObject response) {
+    return response.getJSONObject("value").get("content");
+  }
+
+  @Test
+  public void test_701_serverRoutes() throws Exception {
+    currentTest = "test_701_serverRoutes";
+    Mat mBase = new Mat(300, 400, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    final int port = getFreePort();
+    Server server = new Server(port);
+    try {
+      final String base = uploadRaw(port, mBase);
+      final String target = uploadRaw(port, mBase.submat(new Rect(100, 50, 40, 30)).clone());
+      JSONObject image = (JSONObject) getContent(serverRequest(port, "GET", "/image/" + base, (byte[]) null));
+      assert image.getInt("w") == 400 && image.getInt("h") == 300 : "image: " + image;
+      // the same pixels in another shape are another image
+      String reshaped = uploadRaw(port, mBase.reshape(3, 150));
+      image = (JSONObject) getContent(serverRequest(port, "GET", "/image/" + reshaped, (byte[]) null));
+      assert !reshaped.equals(base) && image.getInt("w") == 800 && image.getInt("h") == 150 : "reshaped: " + image;
+      final String session = ((JSONObject) getContent(serverRequest(port, "POST", "/session",
+              new JSONObject().put("device", "images")))).getString("sessionId");
+      final JSONObject find = new JSONObject().put("target", target).put("base", base);
+      JSONObject match = (JSONObject) getContent(serverRequest(port, "POST", "/session/" + session + "/find", find));
+      assert match.getInt("x") == 100 && match.getInt("y") == 50 : "find: " + match;
+      JSONArray all = (JSONArray) getContent(serverRequest(port, "POST", "/session/" + session + "/findall", find));
+      assert all.length() == 1 : "findall: " + all;
+      // errors are answered with a status, the server goes on
+      assert "400".equals(serverRequest(port, "POST", "/session/" + session + "/find",
+              new JSONObject().put("target", target)).getString("status")) : "base missing";
+      assert "404".equals(serverRequest(port, "POST", "/session/" + session + "/find",
+              new JSONObject().put("target", "nohash").put("base", base)).getString("status")) : "target unknown";
+      assert "400".equals(serverRequest(port, "POST", "/session/" + session + "/find",
+              "{target".getBytes("UTF-8")).getString("status")) : "bad JSON";
+      assert "400".equals(serverRequest(port, "POST", "/image?width=10&height=10&channels=3",
+              new byte[299]).getString("status")) : "raw size";
+      // concurrent requests of one session
+      final List<String> failed = new ArrayList<>();
+      List<Thread> threads = new ArrayList<>();
+      for (int n = 0; n < 8; n++) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int m = 0; m < 5; m++) {
+                JSONObject match = (JSONObject) getContent(serverRequest(port, "POST",
+                        "/session/" + session + "/find", find));
+                if (match.getInt("x") != 100 || match.getInt("y") != 50) {
+                  throw new IOException("wrong match: " + match);
+                }
+              }
+            } catch (Exception e) {
+              synchronized (failed) {
+                failed.add(e.toString());
+              }
+            }
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assert failed.isEmpty() : "concurrent finds: " + failed;
+      serverRequest(port, "DELETE", "/session/" + session, (byte[]) null);
+      assert "404".equals(serverRequest(port, "POST", "/session/" + session + "/find", find).getString("status")) :
+              "session not ended";
+    } finally {
+      server.stop();
+    }
+    result = "server: upload, find, findall, errors, 40 concurrent finds, session end";
+  }
+
+  @Test
+  public void test_702_serverBatchAbort() throws Exception {
+    currentTest = "test_702_serverBatchAbort";
+    Mat mBase = new Mat(300, 400, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    Mat mOther = new Mat(30, 40, CvType.CV_8UC3);
+    Core.randu(mOther, 0, 255);
+    int port = getFreePort();
+    Server server = new Server(port);
+    try {
+      String base = uploadRaw(port, mBase);
+      String target = uploadRaw(port, mBase.submat(new Rect(100, 50, 40, 30)).clone());
+      String notThere = uploadRaw(port, mOther);
+      String session = ((JSONObject) getContent(serverRequest(port, "POST", "/session",
+              new JSONObject().put("device", "images")))).getString("sessionId");
+      JSONArray commands = new JSONArray()
+              .put(new JSONObject().put("command", "find").put("target", target).put("base", base))
+              .put(new JSONObject().put("command", "find").put("target", notThere).put("base", base))
+              .put(new JSONObject().put("command", "findall").put("target", target).put("base", base));
+      JSONObject batch = (JSONObject) getContent(serverRequest(port, "POST", "/session/" + session + "/batch",
+              new JSONObject().put("commands", commands)));
+      JSONArray results = batch.getJSONArray("results");
+      assert batch.getInt("completed") == 1 && results.length() == 2 : "not aborted: " + batch;
+      assert results.getJSONObject(0).getInt("status") == 0
+              && results.getJSONObject(0).getJSONObject("content").getInt("x") == 100 : "first: " + results;
+      assert results.getJSONObject(1).getInt("status") == 404 : "not found: " + results;
+      // all commands run, the failing one is reported
+      batch = (JSONObject) getContent(serverRequest(port, "POST", "/session/" + session + "/batch",
+              new JSONObject().put("commands", commands).put("abort", false)));
+      results = batch.getJSONArray("results");
+      assert batch.getInt("completed") == 2 && results.length() == 3
+              && results.getJSONObject(2).getJSONArray("content").length() == 1 : "abort false: " + batch;
+      // an unknown image or command ends the batch like a failed find
+      commands = new JSONArray()
+              .put(new JSONObject().put("command", "find").put("target", "nohash").put("base", base))
+              .put(new JSONObject().put("command", "find").put("target", target).put("base", base));
+      batch = (JSONObject) getContent(serverRequest(port, "POST", "/session/" + session + "/batch",
+              new JSONObject().put("commands", commands)));
+      assert batch.getInt("completed") == 0 && batch.getJSONArray("results").length() == 1 : "unknown: " + batch;
+      commands = new JSONArray().put(new JSONObject().put("command", "nocommand"));
+      batch = (JSONObject) getContent(serverRequest(port, "POST", "/session/" + session + "/batch",
+              new JSONObject().put("commands", commands)));
+      assert batch.getJSONArray("results").getJSONObject(0).getInt("status") == 501 : "unknown command: " + batch;
+      assert "400".equals(serverRequest(port, "POST", "/session/" + session + "/batch",
+              new JSONObject()).getString("status")) : "commands missing";
+    } finally {
+      server.stop();
+    }
+    result = "batch: ends with the first failing command, abort false runs all";
+  }
+
+  // the data of the next server-sent event (null if the stream ended)
+  private static JSONObject readEvent(BufferedReader events) throws IOException {
+    String line;
+    JSONObject event = null;
+    while (SX.isNotNull(line = events.readLine())) {
+      if (line.startsWith("data: ")) {
+        event = new JSONObject(line.substring(6));
+      } else if (line.isEmpty() && SX.isNotNull(event)) {
+        return event;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void test_703_serverEventStream() throws Exception {
+    currentTest = "test_703_serverEventStream";
+    Mat mBase = new Mat(300, 400, CvType.CV_8UC3);
+    Core.randu(mBase, 0, 255);
+    Imgproc.GaussianBlur(mBase, mBase, new Size(9, 9), 3);
+    int port = getFreePort();
+    Server server = new Server(port);
+    List<HttpURLConnection> streams = new ArrayList<>();
+    try {
+      String base = uploadRaw(port, mBase);
+      String target = uploadRaw(port, mBase.submat(new Rect(100, 50, 40, 30)).clone());
+      String session = ((JSONObject) getContent(serverRequest(port, "POST", "/session",
+              new JSONObject().put("device", "images")))).getString("sessionId");
+      for (int n = 0; n < 2; n++) {
+        HttpURLConnection stream = (HttpURLConnection) new URL(String.format("http://localhost:%d/session/%s/events",
+                port, session)).openConnection();
+        stream.setReadTimeout(10000);
+        assert stream.getResponseCode() == 200 : "event stream not opened";
+        streams.add(stream);
+      }
+      assert "409".equals(serverRequest(port, "GET", "/session/" + session + "/events", (byte[]) null)
+              .getString("status")) : "more than Settings.ServerMaxStreams";
+      // an invalid event leaves no observer behind
+      JSONArray events = new JSONArray().put(new JSONObject().put("type", "appear").put("target", target))
+              .put(new JSONObject().put("type", "nothing"));
+      assert "400".equals(serverRequest(port, "POST", "/session/" + session + "/observe",
+              new JSONObject().put("base", base).put("events", events)).getString("status")) : "invalid event";
+      events = new JSONArray().put(new JSONObject().put("type", "appear").put("target", target));
+      JSONObject observer = (JSONObject) getContent(serverRequest(port, "POST", "/session/" + session + "/observe",
+              new JSONObject().put("base", base).put("events", events).put("repeat", -1)));
+      assert observer.getInt("observer") == 1 : "observer: " + observer;
+      // every open stream gets the event
+      for (HttpURLConnection stream : streams) {
+        JSONObject event = readEvent(new BufferedReader(new InputStreamReader(stream.getInputStream(), "UTF-8")));
+        assert SX.isNotNull(event) && "appear".equals(event.getString("type")) && event.getInt("observer") == 1
+                && event.getJSONObject("match").getInt("x") == 100 : "event: " + event;
+      }
+      serverRequest(port, "DELETE", "/session/" + session + "/observe/1", (byte[]) null);
+    } finally {
+      for (HttpURLConnection stream : streams) {
+        stream.disconnect();
+      }
+      server.stop();
+    }
+    result = "events: streamed to all streams, limited";
+  }
+  //</editor-fold>
+
   @Test
   public void test_800_basicTesseract() {
     currentTest = "test_800_basicTesseract";
@@ -853,6 +1829,98 @@ public class TestAll {
       assert !"did not work".equals(textRead) : "read did not work";
     }
   }
+
+  private static Element getWord(String text, int x, int y, int w, double score) {
+    Element word = new Element(x, y, w, 12);
+    word.setName(text);
+    word.setScore(score);
+    return word;
+  }
+
+  @Test
+  public void test_801_textMatches() {
+    currentTest = "test_801_textMatches";
+    // words as given by TextFinder.getWords: reading order, text as name, confidence as score
+    List<Element> words = new ArrayList<>();
+    words.add(getWord("Hello", 10, 10, 40, 0.9));
+    words.add(getWord("World", 55, 11, 45, 0.8));
+    words.add(getWord("hello", 10, 40, 40, 0.95));
+    words.add(getWord("world", 10, 60, 45, 0.9));
+    words.add(getWord("HELLO", 10, 80, 40, 0.7));
+    words.add(getWord("there", 55, 80, 40, 0.9));
+    words.add(getWord("world", 100, 80, 45, 0.6));
+    List<Element> matches = Text.getMatches("hello  world", words);
+    assert matches.size() == 1 : "not only on one line: " + matches.size();
+    Element match = matches.get(0);
+    assert match.x == 10 && match.y == 10 && match.w == 90 && match.h == 13 && match.getScore() == 0.8 :
+            "union of the words, lowest score: " + match;
+    assert Text.getMatches("hello", words).size() == 3 : "case not ignored";
+    assert Text.getMatches("hello there world", words).size() == 1 : "three words";
+    assert Text.getMatches("hello world there", words).isEmpty() : "words after the last one";
+    assert Text.getMatches(" ", words).isEmpty() && Text.getMatches(null, words).isEmpty() : "no text";
+    // the words of an element at (100, 50) are moved there
+    TextFinder textFinder = new TextFinder() {
+      @Override
+      public List<Element> getWords(Mat mat, List<Rectangle> regions) {
+        List<Element> words = new ArrayList<>();
+        words.add(getWord("Hello", 10, 10, 40, 0.9));
+        words.add(getWord("World", 55, 11, 45, 0.8));
+        return words;
+      }
+    };
+    Picture where = new Picture(new Mat(100, 200, CvType.CV_8UC3, new Scalar(255, 255, 255)));
+    where.at(100, 50);
+    match = new Text("hello world", textFinder).find(where).getLastMatch();
+    assert match.x == 110 && match.y == 60 && match.w == 90 : "find: not moved: " + match;
+    matches = new Text("world", textFinder).findAll(where).getLastMatches();
+    assert matches.size() == 1 && matches.get(0).x == 155 && matches.get(0).y == 61 : "findAll: not moved: " + matches;
+    result = "Text: words matched on one line, case ignored, moved to the element";
+  }
+
+  @Test
+  public void test_802_textEnginePool() throws Exception {
+    currentTest = "test_802_textEnginePool";
+    double engines = SX.getOptionNumber("Settings.TextEngines", 0);
+    SX.setOption("Settings.TextEngines", "2");
+    TextFinder.dispose();
+    try {
+      final TextFinder textFinder = new TextFinder();
+      if (!textFinder.isValid()) {
+        result = "Tesseract not available: not tested";
+        return;
+      }
+      final Mat mText = new Picture("gui-button").getContent();
+      final String text = textFinder.read(mText);
+      assert !"did not work".equals(text) : "read did not work";
+      final List<String> texts = new ArrayList<>();
+      List<Thread> threads = new ArrayList<>();
+      for (int n = 0; n < 6; n++) {
+        Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            String read = textFinder.read(mText);
+            synchronized (texts) {
+              texts.add(read);
+            }
+          }
+        });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      for (String read : texts) {
+        assert text.equals(read) : String.format("concurrent read: %s (%s)", read, text);
+      }
+      long[] stats = TextFinder.getStats().values().iterator().next();
+      assert stats[0] <= 2 && stats[2] == 7 : "engines not bounded or reads lost: " + TextFinder.getStatsString();
+      result = "TextFinder: 6 concurrent reads, " + TextFinder.getStatsString().trim();
+    } finally {
+      TextFinder.dispose();
+      SX.setOption("Settings.TextEngines", "" + (int) engines);
+    }
+  }
   //</editor-fold>
 
   //<editor-fold desc="ignored">